@@ -1,11 +1,16 @@
 package peergos.server;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
 import peergos.server.util.*;
+import peergos.shared.hamt.*;
 
 import java.io.IOException;
+import java.util.*;
 
 /**
  * A wrapper around the prometheus metrics and HTTP exporter.
@@ -25,6 +30,7 @@ public class AggregatedMetrics {
     public static final Counter DHT_ID  = build("dht_id", "Total id calls.");
     public static final Counter DHT_BLOCK_PUT  = build("dht_block_put", "Total DHT block puts.");
     public static final Counter DHT_BLOCK_GET  = build("dht_block_get", "Total DHT block gets.");
+    public static final Counter DHT_BLOCK_GET_MANY  = build("dht_block_get_many", "Total DHT multi block gets.");
     public static final Counter DHT_BLOCK_STAT  = build("dht_block_stat", "Total DHT block stats.");
     public static final Counter DHT_BLOCK_REFS  = build("dht_block_refs", "Total DHT block refs.");
     public static final Counter DHT_TRANSACTION_START  = build("dht_transaction_start", "Total DHT transaction starts.");
@@ -51,6 +57,21 @@ public class AggregatedMetrics {
             .register();
 
 
+    /** The champ cache is in shared code, which can't depend on prometheus, so its statistics are read on each scrape.
+     */
+    private static class ChampCacheCollector extends Collector {
+        @Override
+        public List<MetricFamilySamples> collect() {
+            ChampCache cache = ChampCache.shared();
+            return Arrays.asList(
+                    new CounterMetricFamily("champ_cache_hits", "Champ node lookups served from the cache.", cache.hitCount()),
+                    new CounterMetricFamily("champ_cache_misses", "Champ node lookups which had to be fetched.", cache.missCount()),
+                    new GaugeMetricFamily("champ_cache_hit_rate", "Fraction of champ node lookups served from the cache.", cache.hitRate()),
+                    new GaugeMetricFamily("champ_cache_bytes", "Estimated size of the cached champ nodes.", cache.estimatedBytes()));
+        }
+    }
+
+    public static final Collector CHAMP_CACHE = new ChampCacheCollector().register();
 
     public static void startExporter(String address, int port) throws IOException {
         Logging.LOG().info("Starting metrics server at " + address + ":" + port);
@@ -8,6 +8,7 @@ import peergos.server.crypto.hash.*;
 import peergos.server.crypto.random.*;
 import peergos.server.crypto.symmetric.*;
 import peergos.server.mutable.*;
+import peergos.server.net.*;
 import peergos.server.space.*;
 import peergos.server.sql.*;
 import peergos.server.storage.*;
@@ -165,7 +166,15 @@ public class Builder {
                 S3Config config = S3Config.build(a);
                 Optional<String> authedUrl = Optional.of("https://" + config.getHost() + "/");
                 BlockStoreProperties props = new BlockStoreProperties(directWrites, publicReads, authedReads, publicReadUrl, authedUrl);
-                return new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")), props, transactions, ipfs);
+                S3BlockStorage s3 = new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")), props, transactions, ipfs);
+                return new TieredCachingStorage(s3,
+                        a.getLong("block-cache.heap-bytes", 64 * 1024 * 1024L),
+                        a.getInt("block-cache.max-heap-block-size", 64 * 1024),
+                        a.fromPeergosDir("block-cache-dir", "block-cache"),
+                        a.getLong("block-cache.disk-bytes", 2 * 1024 * 1024 * 1024L));
+            } else if (a.getBoolean("packed-blockstore", false)) {
+                return new PackedBlockStore(a.fromPeergosDir("packed-blockstore-dir", "packed-blockstore"), transactions,
+                        a.getLong("packed-blockstore.segment-bytes", PackedBlockStore.DEFAULT_SEGMENT_SIZE));
             } else {
                 return new FileContentAddressedStorage(blockstorePath(a), transactions);
             }
@@ -229,7 +238,8 @@ public class Builder {
                                 .commit(peergosIdentity, pkiSigner, MaybeMultihash.empty(), mutable, dht, crypto.hasher, tid)
                                 .thenApply(version -> version.get(pkiSigner).hash), dht).join();
 
-            return new IpfsCoreNode(pkiSigner, a.getInt("max-daily-signups"), currentPkiRoot, dht, crypto.hasher, mutable, peergosIdentity);
+            return new IpfsCoreNode(pkiSigner, a.getInt("max-daily-signups"), currentPkiRoot, dht, crypto.hasher,
+                    mutable, peergosIdentity, a.fromPeergosDir("pki-state-path", "pki-node-state.cbor"));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -264,8 +274,8 @@ public class Builder {
 
     public static CompletableFuture<NetworkAccess> buildJavaNetworkAccess(URL apiAddress, URL proxyAddress, String pkiNodeId) {
         Multihash pkiServerNodeId = Cid.decode(pkiNodeId);
-        JavaPoster p2pPoster = new JavaPoster(proxyAddress, false);
-        JavaPoster apiPoster = new JavaPoster(apiAddress, false);
+        AsyncJavaPoster p2pPoster = new AsyncJavaPoster(proxyAddress, false);
+        AsyncJavaPoster apiPoster = new AsyncJavaPoster(apiAddress, false);
         return NetworkAccess.build(apiPoster, p2pPoster, pkiServerNodeId, NetworkAccess.buildLocalDht(apiPoster, true), new ScryptJava(), false);
     }
 
@@ -275,7 +285,7 @@ public class Builder {
     }
 
     public static CompletableFuture<NetworkAccess> buildNonCachingJavaNetworkAccess(URL target, boolean isPublicServer) {
-        JavaPoster poster = new JavaPoster(target, isPublicServer);
+        AsyncJavaPoster poster = new AsyncJavaPoster(target, isPublicServer);
         Multihash pkiNodeId = null; // This is not required when talking to a Peergos server
         ContentAddressedStorage localDht = NetworkAccess.buildLocalDht(poster, true);
         return NetworkAccess.build(poster, poster, pkiNodeId, localDht, new ScryptJava(), false);
@@ -40,6 +40,8 @@ public class Main extends Builder {
     public static final String PEERGOS_PATH = "PEERGOS_PATH";
     public static final Path DEFAULT_PEERGOS_DIR_PATH =
             Paths.get(System.getProperty("user.home"), ".peergos");
+    // how long a write from a writer we don't know yet waits for that writer's pending events
+    private static final long PENDING_EVENTS_TIMEOUT_MILLIS = 5_000;
 
     static {
         PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, initCrypto().signer);
@@ -118,11 +120,17 @@ public class Main extends Builder {
                     new Command.Arg("domain", "Domain name to bind to,", false, "localhost"),
                     new Command.Arg("max-users", "The maximum number of local users", false, "1"),
                     new Command.Arg("useIPFS", "Use IPFS for storage or a local disk store", false, "true"),
+                    new Command.Arg("packed-blockstore", "Store blocks in large segment files when not using IPFS", false, "false"),
+                    new Command.Arg("packed-blockstore-dir", "The directory for the packed blockstore's segment files and index", false, "packed-blockstore"),
+                    new Command.Arg("packed-blockstore.segment-bytes", "The maximum size of a packed blockstore segment file", false, Long.toString(PackedBlockStore.DEFAULT_SEGMENT_SIZE)),
                     new Command.Arg("mutable-pointers-file", "The filename for the mutable pointers datastore", true, "mutable.sql"),
                     new Command.Arg("social-sql-file", "The filename for the follow requests datastore", true, "social.sql"),
                     new Command.Arg("space-requests-sql-file", "The filename for the space requests datastore", true, "space-requests.sql"),
                     new Command.Arg("space-usage-sql-file", "The filename for the space usage datastore", true, "space-usage.sql"),
                     new Command.Arg("server-messages-sql-file", "The filename for the server messages datastore", true, "server-messages.sql"),
+                    new Command.Arg("usage-workers", "The number of writers whose usage is recalculated in parallel on startup", false, "4"),
+                    new Command.Arg("max-queued-events", "The maximum number of distinct pointer update events waiting to be processed", false, "1000"),
+                    new Command.Arg("event-workers", "The number of threads processing pointer update events", false, "4"),
                     new Command.Arg("transactions-sql-file", "The filename for the transactions datastore", false, "transactions.sql"),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
                     new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
@@ -406,12 +414,15 @@ public class Main extends Builder {
 
             DeletableContentAddressedStorage localStorage = buildLocalStorage(a, transactions);
             JdbcIpnsAndSocial rawPointers = buildRawPointers(a);
+            Supplier<Connection> usageDb = getDBConnector(a, "space-usage-sql-file");
+            JdbcSubtreeSizes subtreeSizes = new JdbcSubtreeSizes(usageDb, sqlCommands);
             boolean enableGC = a.getBoolean("enable-gc", false);
             GarbageCollector gc = null;
             if (enableGC) {
                 if (S3Config.useS3(a))
                     throw new IllegalStateException("GC should be run separately when using S3!");
-                gc = new GarbageCollector(localStorage, rawPointers);
+                gc = new GarbageCollector(localStorage, rawPointers, a.getInt("gc.parallelism", 10),
+                        a.getInt("gc.delete.parallelism", 4), subtreeSizes::removeAll);
                 gc.start(a.getInt("gc.period.millis", 60 * 60 * 1000), s -> Futures.of(true));
             }
 
@@ -426,15 +437,20 @@ public class Main extends Builder {
             QuotaAdmin userQuotas = buildSpaceQuotas(a, localStorage, core);
             CoreNode signupFilter = new SignUpFilter(core, userQuotas, nodeId);
 
-            Supplier<Connection> usageDb = getDBConnector(a, "space-usage-sql-file");
             UsageStore usageStore = new JdbcUsageStore(usageDb, sqlCommands);
             Hasher hasher = crypto.hasher;
-            SpaceCheckingKeyFilter.update(usageStore, userQuotas, core, localPointers, localStorage, hasher);
-            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, localStorage,
-                    hasher, userQuotas, usageStore);
-            CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(signupFilter);
+            ContentAddressedStorage sizedStorage = new SubtreeSizeIndexedStorage(localStorage, subtreeSizes);
+            SpaceCheckingKeyFilter.update(usageStore, userQuotas, core, localPointers, sizedStorage, hasher,
+                    a.getInt("usage-workers", 4));
+            int maxQueuedEvents = a.getInt("max-queued-events", 1000);
+            int eventWorkers = a.getInt("event-workers", 4);
+            CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(signupFilter, maxQueuedEvents, eventWorkers);
+            MutableEventPropagator localMutable = new MutableEventPropagator(localPointers, maxQueuedEvents, eventWorkers);
+            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, sizedStorage,
+                    hasher, userQuotas, usageStore, (owner, writer) ->
+                    corePropagator.awaitProcessed(owner, PENDING_EVENTS_TIMEOUT_MILLIS) &&
+                            localMutable.awaitProcessed(owner, PENDING_EVENTS_TIMEOUT_MILLIS));
             corePropagator.addListener(spaceChecker::accept);
-            MutableEventPropagator localMutable = new MutableEventPropagator(localPointers);
             localMutable.addListener(spaceChecker::accept);
 
             ContentAddressedStorage filteringDht = new WriteFilter(localStorage, spaceChecker::allowWrite);
@@ -475,8 +491,10 @@ public class Main extends Builder {
             int maxConnectionQueue = a.getInt("max-connection-queue", 500);
             int handlerThreads = a.getInt("handler-threads", 50);
             boolean isPublicServer = a.getBoolean("public-server", false);
+            int maxEndpointConcurrency = a.getInt("max-endpoint-concurrency", 50);
+            int maxEndpointQueue = a.getInt("max-endpoint-queue", 1000);
             peergos.initAndStart(localAddress, tlsProps, webroot, useWebAssetCache, isPublicServer, maxConnectionQueue,
-                    handlerThreads);
+                    handlerThreads, maxEndpointConcurrency, maxEndpointQueue);
             boolean isPkiNode = nodeId.equals(pkiServerNodeId);
             if (! isPkiNode && useIPFS) {
                 int pkiNodeSwarmPort = a.getInt("pki.node.swarm.port");
@@ -95,7 +95,7 @@ public class UserService {
                        SpaceUsage usage,
                        ServerMessageStore serverMessages,
                        GarbageCollector gc) {
-        this.storage = new CachingStorage(storage, 1000, 50 * 1024);
+        this.storage = new CachingStorage(storage, 10 * 1024 * 1024, 10 * 1024 * 1024, 50 * 1024);
         this.crypto = crypto;
         this.coreNode = coreNode;
         this.social = social;
@@ -121,7 +121,9 @@ public class UserService {
                                 boolean useWebCache,
                                 boolean isPublicServer,
                                 int connectionBacklog,
-                                int handlerPoolSize) throws IOException {
+                                int handlerPoolSize,
+                                int maxEndpointConcurrency,
+                                int maxEndpointQueue) throws IOException {
         InetAddress allInterfaces = InetAddress.getByName("::");
         if (tlsProps.isPresent())
             try {
@@ -215,20 +217,23 @@ public class UserService {
                 tlsServer.createContext(path, new HSTSHandler(handlerFunc));
         };
 
-        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer));
+        EndpointLimiter limiter = new EndpointLimiter(maxEndpointConcurrency, maxEndpointQueue);
+        DHTHandler dhtHandler = new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer);
+        addHandler.accept(Constants.DHT_URL, limiter.wrap(dhtHandler, dhtHandler::endpointName));
         addHandler.accept("/" + Constants.CORE_URL,
-                new CoreNodeHandler(this.coreNode, isPublicServer));
+                limiter.wrap(new CoreNodeHandler(this.coreNode, isPublicServer)));
         addHandler.accept("/" + Constants.SOCIAL_URL,
-                new SocialHandler(this.social, isPublicServer));
+                limiter.wrap(new SocialHandler(this.social, isPublicServer)));
         addHandler.accept("/" + Constants.MUTABLE_POINTERS_URL,
-                new MutationHandler(this.mutable, isPublicServer));
+                limiter.wrap(new MutationHandler(this.mutable, isPublicServer)));
         addHandler.accept("/" + Constants.ADMIN_URL,
-                new AdminHandler(this.controller, isPublicServer));
+                limiter.wrap(new AdminHandler(this.controller, isPublicServer)));
         addHandler.accept("/" + Constants.SPACE_USAGE_URL,
-                new SpaceHandler(this.usage, isPublicServer));
+                limiter.wrap(new SpaceHandler(this.usage, isPublicServer)));
         addHandler.accept("/" + Constants.SERVER_MESSAGE_URL,
-                new ServerMessageHandler(this.serverMessages, coreNode, storage, isPublicServer));
-        addHandler.accept("/" + Constants.PUBLIC_FILES_URL, new PublicFileHandler(crypto.hasher, coreNode, mutable, storage));
+                limiter.wrap(new ServerMessageHandler(this.serverMessages, coreNode, storage, isPublicServer)));
+        addHandler.accept("/" + Constants.PUBLIC_FILES_URL,
+                limiter.wrap(new PublicFileHandler(crypto.hasher, coreNode, mutable, storage)));
         addHandler.accept(UI_URL, handler);
 
         localhostServer.setExecutor(Executors.newFixedThreadPool(handlerPoolSize));
@@ -1,28 +1,48 @@
 package peergos.server.corenode;
 
+import peergos.server.util.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
-/** This class propagates core node writes to
+/** This class propagates core node writes to listeners, asynchronously.
  *
  */
 public class CorenodeEventPropagator implements CoreNode {
 
     private final CoreNode target;
-    private final List<Consumer<? super CorenodeEvent>> listeners = new ArrayList<>();
+    private final CoalescingEventBus<Pair<String, PublicKeyHash>, CorenodeEvent> events;
 
-    public CorenodeEventPropagator(CoreNode target) {
+    public CorenodeEventPropagator(CoreNode target, int maxQueuedEvents, int eventWorkers) {
         this.target = target;
+        this.events = new CoalescingEventBus<>("corenode", maxQueuedEvents, eventWorkers);
     }
 
     public void addListener(Consumer<? super CorenodeEvent> listener) {
-        listeners.add(listener);
+        events.addListener(listener);
+    }
+
+    /** Wait until all core node writes made before this call have been processed by the listeners.
+     */
+    public void awaitProcessed() {
+        events.awaitProcessed();
+    }
+
+    /** Wait until there are no core node writes for the given identity key waiting to be processed, or the timeout
+     *  expires.
+     *
+     * @param owner
+     * @param timeoutMillis
+     * @return whether all writes for the identity had been processed when this returned
+     */
+    public boolean awaitProcessed(PublicKeyHash owner, long timeoutMillis) {
+        return events.awaitProcessed(key -> key.right.equals(owner), timeoutMillis);
     }
 
     @Override
@@ -30,10 +50,8 @@ public class CorenodeEventPropagator implements CoreNode {
         return target.updateChain(username, chain, proof)
                 .thenApply(res -> {
                     if (res.isEmpty()) {
-                        CorenodeEvent event = new CorenodeEvent(username, chain.get(chain.size() - 1).owner);
-                        for (Consumer<? super CorenodeEvent> listener : listeners) {
-                            listener.accept(event);
-                        }
+                        PublicKeyHash owner = chain.get(chain.size() - 1).owner;
+                        events.publish(new Pair<>(username, owner), new CorenodeEvent(username, owner));
                     }
                     return res;
                 });
@@ -0,0 +1,156 @@
+package peergos.server.corenode;
+
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.hash.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A snapshot of the in memory pki mappings, tagged with the pki root they were derived from.
+ *
+ *  This lets a pki node or mirror start from the last snapshot, and only apply the diff to the current pki root,
+ *  instead of rebuilding the mappings from every user's claim chain.
+ */
+public class CorenodeState implements Cborable {
+    private static final Logger LOG = Logging.LOG();
+    public static final long CURRENT_VERSION = 1;
+
+    public final PublicKeyHash pkiOwnerIdentity, pkiKey;
+    public final MaybeMultihash pkiOwnerTarget, pkiKeyTarget;
+
+    public final Map<String, List<UserPublicKeyLink>> chains;
+    public final Map<PublicKeyHash, String> reverseLookup;
+    public final UsernameIndex usernames;
+
+    public CorenodeState(PublicKeyHash pkiOwnerIdentity,
+                         PublicKeyHash pkiKey,
+                         MaybeMultihash pkiOwnerTarget,
+                         MaybeMultihash pkiKeyTarget,
+                         Map<String, List<UserPublicKeyLink>> chains,
+                         Map<PublicKeyHash, String> reverseLookup,
+                         UsernameIndex usernames) {
+        this.pkiOwnerIdentity = pkiOwnerIdentity;
+        this.pkiKey = pkiKey;
+        this.pkiOwnerTarget = pkiOwnerTarget;
+        this.pkiKeyTarget = pkiKeyTarget;
+        this.chains = chains;
+        this.reverseLookup = reverseLookup;
+        this.usernames = usernames;
+    }
+
+    public static CorenodeState buildEmpty(PublicKeyHash pkiOwnerIdentity,
+                                           PublicKeyHash pkiKey,
+                                           MaybeMultihash pkiOwnerTarget,
+                                           MaybeMultihash pkiKeyTarget) {
+        return new CorenodeState(pkiOwnerIdentity, pkiKey, pkiOwnerTarget, pkiKeyTarget, new HashMap<>(),
+                new HashMap<>(), new UsernameIndex());
+    }
+
+    public void load(CorenodeState other) {
+        chains.putAll(other.chains);
+        reverseLookup.putAll(other.reverseLookup);
+        usernames.clear();
+        usernames.addAll(other.usernames.all());
+    }
+
+    /** Atomically replace the snapshot at the given path with this one
+     *
+     * @param statePath
+     */
+    public void save(Path statePath) {
+        byte[] serialized = toCbor().serialize();
+        LOG.info("Writing "+ serialized.length +" bytes to "+ statePath);
+        try {
+            Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+            Files.write(tmp, serialized);
+            Files.move(tmp, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *
+     * @param statePath
+     * @return the snapshot at the given path, or empty if there isn't a readable one of a version we understand
+     */
+    public static Optional<CorenodeState> load(Path statePath) {
+        LOG.info("Reading state from " + statePath + " which exists ? " + Files.exists(statePath) + " from cwd " + System.getProperty("cwd"));
+        if (! Files.exists(statePath))
+            return Optional.empty();
+        try {
+            byte[] data = Files.readAllBytes(statePath);
+            CborObject.CborMap map = (CborObject.CborMap) CborObject.fromByteArray(data);
+            long version = map.getOptionalLong("version").orElse(1L);
+            if (version != CURRENT_VERSION) {
+                LOG.info("Ignoring pki state with unknown version " + version + " in " + statePath);
+                return Optional.empty();
+            }
+            return Optional.of(fromCbor(map));
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Couldn't read pki state from " + statePath, e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public CborObject toCbor() {
+        Map<String, Cborable> res = new TreeMap<>();
+        res.put("version", new CborObject.CborLong(CURRENT_VERSION));
+        res.put("peergosKey", pkiOwnerIdentity);
+        res.put("peergosTarget", pkiOwnerTarget);
+        res.put("pkiKey", pkiKey);
+        res.put("pkiTarget", pkiKeyTarget);
+
+        TreeMap<String, Cborable> chainsMap = chains.entrySet()
+            .stream()
+            .collect(Collectors.toMap(
+                e -> e.getKey(),
+                e -> new CborObject.CborList(e.getValue()),
+                (a,b) -> a,
+                TreeMap::new
+            ));
+        res.put("chains", CborObject.CborMap.build(chainsMap));
+        TreeMap<CborObject, Cborable> reverseMap = reverseLookup.entrySet()
+            .stream()
+            .collect(Collectors.toMap(
+                e -> e.getKey().toCbor(),
+                e -> new CborObject.CborString(e.getValue()),
+                (a,b) -> a,
+                TreeMap::new
+            ));
+        res.put("reverse", new CborObject.CborList(reverseMap));
+        res.put("usernames", new CborObject.CborList(usernames.all().stream()
+                .map(CborObject.CborString::new)
+                .collect(Collectors.toList())));
+
+        return CborObject.CborMap.build(res);
+    }
+
+    public static CorenodeState fromCbor(CborObject cbor) {
+        CborObject.CborMap map = (CborObject.CborMap) cbor;
+        PublicKeyHash peergosKey = map.get("peergosKey", PublicKeyHash::fromCbor);
+        PublicKeyHash pkiKey = map.get("pkiKey", PublicKeyHash::fromCbor);
+        MaybeMultihash peergosTarget = map.get("peergosTarget", MaybeMultihash::fromCbor);
+        MaybeMultihash pkiTarget = map.get("pkiTarget", MaybeMultihash::fromCbor);
+
+        Function<Cborable, String> fromString = e -> ((CborObject.CborString) e).value;
+        Function<? super Cborable, List<UserPublicKeyLink>> chainParser =
+                c -> ((CborObject.CborList) c).map(UserPublicKeyLink::fromCbor);
+        Map<String, List<UserPublicKeyLink>> chains = ((CborObject.CborMap)map.get("chains"))
+                .getMap(fromString, chainParser);
+
+        Map<PublicKeyHash, String> reverse = ((CborObject.CborList)map.get("reverse"))
+                .getMap(PublicKeyHash::fromCbor, fromString);
+
+        UsernameIndex usernames = new UsernameIndex(map.getList("usernames", fromString));
+        return new CorenodeState(peergosKey, pkiKey, peergosTarget, pkiTarget, chains, reverse, usernames);
+    }
+}
@@ -16,6 +16,7 @@ import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
@@ -24,6 +25,7 @@ import java.util.stream.*;
 public class IpfsCoreNode implements CoreNode {
 	private static final Logger LOG = Logging.LOG();
 	public static final int MAX_FREE_PASSWORD_CHANGES = 10;
+    private static final Function<Cborable, CborObject.CborMerkleLink> FROM_CBOR = c -> (CborObject.CborMerkleLink)c;
 
     private final PublicKeyHash peergosIdentity;
     private final ContentAddressedStorage ipfs;
@@ -33,10 +35,12 @@ public class IpfsCoreNode implements CoreNode {
 
     private final Map<String, List<UserPublicKeyLink>> chains = new ConcurrentHashMap<>();
     private final Map<PublicKeyHash, String> reverseLookup = new ConcurrentHashMap<>();
-    private final List<String> usernames = new ArrayList<>();
+    private final UsernameIndex usernames = new UsernameIndex();
     private final DifficultyGenerator difficultyGenerator;
+    private final Path statePath;
 
     private MaybeMultihash currentRoot;
+    private MaybeMultihash savedRoot;
 
     public IpfsCoreNode(SigningPrivateKeyAndPublicHash pkiSigner,
                         int maxSignupsPerDay,
@@ -44,21 +48,59 @@ public class IpfsCoreNode implements CoreNode {
                         ContentAddressedStorage ipfs,
                         Hasher hasher,
                         MutablePointers mutable,
-                        PublicKeyHash peergosIdentity) {
+                        PublicKeyHash peergosIdentity,
+                        Path statePath) {
         this.currentRoot = MaybeMultihash.empty();
         this.ipfs = ipfs;
         this.hasher = hasher;
         this.mutable = mutable;
         this.peergosIdentity = peergosIdentity;
         this.signer = pkiSigner;
-        this.update(currentRoot);
+        this.statePath = statePath;
+        Optional<CorenodeState> snapshot = CorenodeState.load(statePath)
+                .filter(s -> s.pkiKey.equals(pkiSigner.publicKeyHash));
+        if (snapshot.isPresent()) {
+            CorenodeState state = snapshot.get();
+            chains.putAll(state.chains);
+            reverseLookup.putAll(state.reverseLookup);
+            usernames.addAll(state.usernames.all());
+            this.currentRoot = state.pkiKeyTarget;
+            this.savedRoot = state.pkiKeyTarget;
+            LOG.info("Loaded pki state for " + usernames.size() + " users from snapshot at " + state.pkiKeyTarget);
+        } else
+            this.savedRoot = MaybeMultihash.empty();
+        try {
+            this.update(currentRoot);
+        } catch (RuntimeException e) {
+            if (! snapshot.isPresent())
+                throw e;
+            // the snapshot's root may no longer be retrievable, so rebuild from scratch
+            LOG.log(Level.WARNING, "Couldn't update pki state from snapshot, rebuilding", e);
+            chains.clear();
+            reverseLookup.clear();
+            usernames.clear();
+            this.currentRoot = MaybeMultihash.empty();
+            this.update(currentRoot);
+        }
+        this.saveState();
         this.difficultyGenerator = new DifficultyGenerator(System.currentTimeMillis(), maxSignupsPerDay);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveState, "PKI state snapshot"));
     }
 
     public static CompletableFuture<byte[]> keyHash(ByteArrayWrapper username) {
         return Futures.of(Blake2b.Digest.newInstance().digest(username.data));
     }
 
+    /** Write a snapshot of the current mappings, unless the last one is already current
+     */
+    public synchronized void saveState() {
+        if (currentRoot.equals(savedRoot))
+            return;
+        new CorenodeState(peergosIdentity, signer.publicKeyHash, MaybeMultihash.empty(), currentRoot,
+                new HashMap<>(chains), new HashMap<>(reverseLookup), new UsernameIndex(usernames.all())).save(statePath);
+        savedRoot = currentRoot;
+    }
+
     /** Update the existing mappings based on the diff between the current champ and the champ with the supplied root.
      *
      * @param newRoot The root of the new champ
@@ -82,7 +124,7 @@ public class IpfsCoreNode implements CoreNode {
                                          ContentAddressedStorage ipfs,
                                          Map<String, List<UserPublicKeyLink>> chains,
                                          Map<PublicKeyHash, String> reverseLookup,
-                                         List<String> usernames) {
+                                         UsernameIndex usernames) {
         try {
             MaybeMultihash currentTree = getTreeRoot(currentChampRoot, ipfs);
             MaybeMultihash updatedTree = getTreeRoot(newChampRoot, ipfs);
@@ -103,7 +145,7 @@ public class IpfsCoreNode implements CoreNode {
                                      ContentAddressedStorage ipfs,
                                      Map<String, List<UserPublicKeyLink>> chains,
                                      Map<PublicKeyHash, String> reverseLookup,
-                                     List<String> usernames) {
+                                     UsernameIndex usernames) {
         try {
             Optional<CborObject> cborOpt = ipfs.get(newValue.get().target).get();
             if (!cborOpt.isPresent()) {
@@ -161,9 +203,9 @@ public class IpfsCoreNode implements CoreNode {
             MaybeMultihash currentTree = current.props.tree.map(MaybeMultihash::of).orElseGet(MaybeMultihash::empty);
 
             ChampWrapper<CborObject.CborMerkleLink> champ = currentTree.isPresent() ?
-                    ChampWrapper.create(currentTree.get(), IpfsCoreNode::keyHash, ipfs, hasher, c -> (CborObject.CborMerkleLink)c).get() :
+                    ChampWrapper.create(currentTree.get(), IpfsCoreNode::keyHash, ipfs, hasher, FROM_CBOR).get() :
                     IpfsTransaction.call(peergosIdentity,
-                            tid -> ChampWrapper.create(signer.publicKeyHash, signer, IpfsCoreNode::keyHash, tid, ipfs, hasher, c -> (CborObject.CborMerkleLink)c),
+                            tid -> ChampWrapper.create(signer.publicKeyHash, signer, IpfsCoreNode::keyHash, tid, ipfs, hasher, FROM_CBOR),
                             ipfs).get();
             Optional<CborObject.CborMerkleLink> existing = champ.get(username.getBytes()).get();
             Optional<CborObject> cborOpt = existing.isPresent() ?
@@ -233,10 +275,12 @@ public class IpfsCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(usernames);
+        return CompletableFuture.completedFuture(usernames.getByPrefix(prefix));
     }
 
     @Override
-    public void close() throws IOException {}
+    public void close() throws IOException {
+        saveState();
+    }
 
 }
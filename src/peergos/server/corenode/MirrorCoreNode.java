@@ -48,12 +48,8 @@ public class MirrorCoreNode implements CoreNode {
         this.transactions = transactions;
         this.pkiOwnerIdentity = pkiOwnerIdentity;
         this.statePath = statePath;
-        try {
-            this.state = load(statePath);
-        } catch (IOException e) {
-            // load empty
-            this.state = CorenodeState.buildEmpty(pkiOwnerIdentity, pkiOwnerIdentity, MaybeMultihash.empty(), MaybeMultihash.empty());
-        }
+        this.state = CorenodeState.load(statePath)
+                .orElseGet(() -> CorenodeState.buildEmpty(pkiOwnerIdentity, pkiOwnerIdentity, MaybeMultihash.empty(), MaybeMultihash.empty()));
         try {
             boolean changed = update();
             if (changed)
@@ -63,99 +59,6 @@ public class MirrorCoreNode implements CoreNode {
         }
     }
 
-    private static class CorenodeState implements Cborable {
-        private final PublicKeyHash pkiOwnerIdentity, pkiKey;
-        private final MaybeMultihash pkiOwnerTarget, pkiKeyTarget;
-
-        private final Map<String, List<UserPublicKeyLink>> chains;
-        private final Map<PublicKeyHash, String> reverseLookup;
-        private final List<String> usernames;
-
-        public CorenodeState(PublicKeyHash pkiOwnerIdentity,
-                             PublicKeyHash pkiKey,
-                             MaybeMultihash pkiOwnerTarget,
-                             MaybeMultihash pkiKeyTarget,
-                             Map<String, List<UserPublicKeyLink>> chains,
-                             Map<PublicKeyHash, String> reverseLookup,
-                             List<String> usernames) {
-            this.pkiOwnerIdentity = pkiOwnerIdentity;
-            this.pkiKey = pkiKey;
-            this.pkiOwnerTarget = pkiOwnerTarget;
-            this.pkiKeyTarget = pkiKeyTarget;
-            this.chains = chains;
-            this.reverseLookup = reverseLookup;
-            this.usernames = usernames;
-        }
-
-        public static CorenodeState buildEmpty(PublicKeyHash pkiOwnerIdentity,
-                                               PublicKeyHash pkiKey,
-                                               MaybeMultihash pkiOwnerTarget,
-                                               MaybeMultihash pkiKeyTarget) {
-            return new CorenodeState(pkiOwnerIdentity, pkiKey, pkiOwnerTarget, pkiKeyTarget, new HashMap<>(),
-                    new HashMap<>(), new ArrayList<>());
-        }
-
-        public void load(CorenodeState other) {
-            chains.putAll(other.chains);
-            reverseLookup.putAll(other.reverseLookup);
-            usernames.clear();
-            usernames.addAll(other.usernames);
-        }
-
-        @Override
-        public CborObject toCbor() {
-            Map<String, Cborable> res = new TreeMap<>();
-            res.put("peergosKey", pkiOwnerIdentity);
-            res.put("peergosTarget", pkiOwnerTarget);
-            res.put("pkiKey", pkiOwnerIdentity);
-            res.put("pkiTarget", pkiKeyTarget);
-
-            TreeMap<String, Cborable> chainsMap = chains.entrySet()
-                .stream()
-                .collect(Collectors.toMap(
-                    e -> e.getKey(),
-                    e -> new CborObject.CborList(e.getValue()),
-                    (a,b) -> a,
-                    TreeMap::new
-                ));
-            res.put("chains", CborObject.CborMap.build(chainsMap));
-            TreeMap<CborObject, Cborable> reverseMap = reverseLookup.entrySet()
-                .stream()
-                .collect(Collectors.toMap(
-                    e -> e.getKey().toCbor(),
-                    e -> new CborObject.CborString(e.getValue()),
-                    (a,b) -> a,
-                    TreeMap::new
-                ));
-            res.put("reverse", new CborObject.CborList(reverseMap));
-            res.put("usernames", new CborObject.CborList(usernames.stream()
-                    .map(CborObject.CborString::new)
-                    .collect(Collectors.toList())));
-
-            return CborObject.CborMap.build(res);
-        }
-
-        public static CorenodeState fromCbor(CborObject cbor) {
-            CborObject.CborMap map = (CborObject.CborMap) cbor;
-            PublicKeyHash peergosKey = map.get("peergosKey", PublicKeyHash::fromCbor);
-            PublicKeyHash pkiKey = map.get("pkiKey", PublicKeyHash::fromCbor);
-            MaybeMultihash peergosTarget = map.get("peergosTarget", MaybeMultihash::fromCbor);
-            MaybeMultihash pkiTarget = map.get("pkiTarget", MaybeMultihash::fromCbor);
-
-            Function<Cborable, String> fromString = e -> ((CborObject.CborString) e).value;
-            Function<? super Cborable, List<UserPublicKeyLink>> chainParser =
-                    c -> ((CborObject.CborList) c).map(UserPublicKeyLink::fromCbor);
-            Map<String, List<UserPublicKeyLink>> chains = ((CborObject.CborMap)map.get("chains"))
-                    .getMap(fromString, chainParser);
-
-            Map<PublicKeyHash, String> reverse = ((CborObject.CborList)map.get("reverse"))
-                    .getMap(PublicKeyHash::fromCbor, fromString);
-
-            List<String> usernames = map.getList("usernames", fromString);
-            return new CorenodeState(peergosKey, pkiKey, peergosTarget, pkiTarget, chains, reverse, usernames);
-        }
-    }
-
     public void start() {
         running = true;
         new Thread(() -> {
@@ -173,23 +76,7 @@ public class MirrorCoreNode implements CoreNode {
     }
 
     private synchronized void saveState() {
-        byte[] serialized = state.toCbor().serialize();
-        Logging.LOG().info("Writing "+ serialized.length +" bytes to "+ statePath);
-        try {
-            Files.write(
-                    statePath,
-                    serialized,
-                    StandardOpenOption.CREATE);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static CorenodeState load(Path statePath) throws IOException {
-        Logging.LOG().info("Reading state from " + statePath + " which exists ? " + Files.exists(statePath) + " from cwd " + System.getProperty("cwd"));
-        byte[] data = Files.readAllBytes(statePath);
-        CborObject object = CborObject.fromByteArray(data);
-        return CorenodeState.fromCbor(object);
+        state.save(statePath);
     }
 
     /**
@@ -284,7 +171,7 @@ public class MirrorCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(state.usernames);
+        return CompletableFuture.completedFuture(state.usernames.getByPrefix(prefix));
     }
 
     @Override
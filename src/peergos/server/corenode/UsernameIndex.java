@@ -0,0 +1,65 @@
+package peergos.server.corenode;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A concurrent sorted set of usernames which answers prefix queries without scanning every username.
+ *
+ *  A prefix query seeks to the first username not less than the prefix, which takes logarithmic time, and then reads
+ *  the following usernames in order until one doesn't match or the limit is reached.
+ */
+public class UsernameIndex {
+
+    private final ConcurrentSkipListSet<String> usernames = new ConcurrentSkipListSet<>();
+
+    public UsernameIndex() {}
+
+    public UsernameIndex(Collection<String> usernames) {
+        this.usernames.addAll(usernames);
+    }
+
+    public void add(String username) {
+        usernames.add(username);
+    }
+
+    public void addAll(Collection<String> usernames) {
+        this.usernames.addAll(usernames);
+    }
+
+    public void clear() {
+        usernames.clear();
+    }
+
+    public int size() {
+        return usernames.size();
+    }
+
+    /**
+     *
+     * @param prefix
+     * @param limit the maximum number of usernames to return
+     * @return The first usernames starting with prefix, in order
+     */
+    public List<String> getByPrefix(String prefix, int limit) {
+        List<String> res = new ArrayList<>();
+        for (String username : usernames.tailSet(prefix)) {
+            if (res.size() >= limit || ! username.startsWith(prefix))
+                break;
+            res.add(username);
+        }
+        return res;
+    }
+
+    /**
+     *
+     * @param prefix
+     * @return All usernames starting with prefix, in order
+     */
+    public List<String> getByPrefix(String prefix) {
+        return getByPrefix(prefix, Integer.MAX_VALUE);
+    }
+
+    public List<String> all() {
+        return new ArrayList<>(usernames);
+    }
+}
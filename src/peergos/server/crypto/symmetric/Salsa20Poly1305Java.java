@@ -1,17 +1,271 @@
 package peergos.server.crypto.symmetric;
 
 import peergos.server.crypto.*;
+import peergos.shared.crypto.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.util.*;
 
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+
+/** XSalsa20-Poly1305 secret boxes, byte for byte compatible with TweetNaCl.secretbox.
+ *
+ *  Salsa20 works on 32 bit words and Poly1305 on 26 bit limbs, directly over the caller's buffers, so boxing or
+ *  opening allocates only the result and never copies the message. Nothing branches on, or indexes by, secret data.
+ */
 public class Salsa20Poly1305Java implements Salsa20Poly1305 {
+    public static final int OVERHEAD_BYTES = TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    // "expand 32-byte k"
+    private static final int SIGMA0 = 0x61707865, SIGMA1 = 0x3320646e, SIGMA2 = 0x79622d32, SIGMA3 = 0x6b206574;
+    private static final long LIMB = 0x3ffffff;
 
     @Override
     public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
-        return TweetNaCl.secretbox(data, nonce, key);
+        byte[] res = new byte[OVERHEAD_BYTES + data.length];
+        seal(data, 0, data.length, res, 0, nonce, key);
+        return res;
     }
 
     @Override
     public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
-        return TweetNaCl.secretbox_open(cipher, nonce, key);
+        if (cipher.length < OVERHEAD_BYTES)
+            throw invalid(cipher);
+        byte[] res = new byte[cipher.length - OVERHEAD_BYTES];
+        if (! open(cipher, 0, cipher.length, res, 0, nonce, key))
+            throw invalid(cipher);
+        return res;
+    }
+
+    private static InvalidCipherTextException invalid(byte[] cipher) {
+        return new InvalidCipherTextException("Invalid encryption! ["+ cipher.length + "] = " +
+                ArrayOps.bytesToHex(Arrays.copyOfRange(cipher, 0, Math.min(cipher.length, 64))) + " ... " +
+                ArrayOps.bytesToHex(Arrays.copyOfRange(cipher, Math.max(0, cipher.length - 64), cipher.length)));
+    }
+
+    /** Box len bytes of in, writing the 16 byte authenticator followed by the cipher text to out.
+     *  To encrypt in place, leave 16 bytes free before the message and use outOff = inOff - 16.
+     */
+    public static void seal(byte[] in, int inOff, int len, byte[] out, int outOff, byte[] nonce, byte[] key) {
+        int[] state = initialState(nonce, key);
+        int[] block = new int[16];
+        salsa20(state, block);
+        int[] authKey = Arrays.copyOf(block, 8);
+        xorKeyStream(state, block, in, inOff, out, outOff + OVERHEAD_BYTES, len);
+        poly1305(authKey, out, outOff + OVERHEAD_BYTES, len, out, outOff);
+    }
+
+    /** Open a box of len bytes (authenticator and cipher text) from in, writing the message to out.
+     *  To decrypt in place use outOff = inOff + 16.
+     *
+     * @return whether the box was authentic; if not, nothing has been written to out
+     */
+    public static boolean open(byte[] in, int inOff, int len, byte[] out, int outOff, byte[] nonce, byte[] key) {
+        if (len < OVERHEAD_BYTES)
+            return false;
+        int[] state = initialState(nonce, key);
+        int[] block = new int[16];
+        salsa20(state, block);
+        int cipherLen = len - OVERHEAD_BYTES;
+        byte[] tag = new byte[OVERHEAD_BYTES];
+        poly1305(block, in, inOff + OVERHEAD_BYTES, cipherLen, tag, 0);
+        int diff = 0;
+        for (int i=0; i < OVERHEAD_BYTES; i++)
+            diff |= tag[i] ^ in[inOff + i];
+        if (diff != 0)
+            return false;
+        xorKeyStream(state, block, in, inOff + OVERHEAD_BYTES, out, outOff, cipherLen);
+        return true;
+    }
+
+    private static int ld32(byte[] b, int off) {
+        return (int) INT.get(b, off);
+    }
+
+    private static void st32(byte[] b, int off, int v) {
+        INT.set(b, off, v);
+    }
+
+    /** The Salsa20 state for block 0 of the XSalsa20 stream: the key is replaced by HSalsa20 of the key and the
+     *  first 16 bytes of the nonce, and the last 8 bytes of the nonce are used as the Salsa20 nonce.
+     */
+    private static int[] initialState(byte[] nonce, byte[] key) {
+        int[] state = {
+                SIGMA0, ld32(key, 0), ld32(key, 4), ld32(key, 8),
+                ld32(key, 12), SIGMA1, ld32(nonce, 0), ld32(nonce, 4),
+                ld32(nonce, 8), ld32(nonce, 12), SIGMA2, ld32(key, 16),
+                ld32(key, 20), ld32(key, 24), ld32(key, 28), SIGMA3
+        };
+        int[] x = state.clone();
+        doubleRounds(x);
+        state[1] = x[0];
+        state[2] = x[5];
+        state[3] = x[10];
+        state[4] = x[15];
+        state[11] = x[6];
+        state[12] = x[7];
+        state[13] = x[8];
+        state[14] = x[9];
+        state[6] = ld32(nonce, 16);
+        state[7] = ld32(nonce, 20);
+        state[8] = 0;
+        state[9] = 0;
+        return state;
+    }
+
+    private static void salsa20(int[] state, int[] out) {
+        System.arraycopy(state, 0, out, 0, 16);
+        doubleRounds(out);
+        for (int i=0; i < 16; i++)
+            out[i] += state[i];
+    }
+
+    private static void doubleRounds(int[] x) {
+        int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3], x4 = x[4], x5 = x[5], x6 = x[6], x7 = x[7];
+        int x8 = x[8], x9 = x[9], x10 = x[10], x11 = x[11], x12 = x[12], x13 = x[13], x14 = x[14], x15 = x[15];
+        for (int i=0; i < 10; i++) {
+            // columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        x[0] = x0; x[1] = x1; x[2] = x2; x[3] = x3; x[4] = x4; x[5] = x5; x[6] = x6; x[7] = x7;
+        x[8] = x8; x[9] = x9; x[10] = x10; x[11] = x11; x[12] = x12; x[13] = x13; x[14] = x14; x[15] = x15;
+    }
+
+    /** XOR len bytes with the key stream, starting after the 32 bytes of block 0 which key the authenticator.
+     */
+    private static void xorKeyStream(int[] state, int[] block, byte[] in, int inOff, byte[] out, int outOff, int len) {
+        int pos = 32; // position in the current key stream block
+        int done = 0;
+        while (done < len) {
+            if (pos == 64) {
+                if (++state[8] == 0)
+                    state[9]++;
+                salsa20(state, block);
+                pos = 0;
+            }
+            int n = Math.min(64 - pos, len - done);
+            int words = n / 4;
+            int w = pos / 4;
+            for (int i=0; i < words; i++) {
+                int off = 4 * i;
+                st32(out, outOff + done + off, ld32(in, inOff + done + off) ^ block[w + i]);
+            }
+            for (int i = 4 * words; i < n; i++) {
+                int k = block[w + i / 4] >>> (8 * (i % 4));
+                out[outOff + done + i] = (byte) (in[inOff + done + i] ^ k);
+            }
+            pos += n;
+            done += n;
+        }
+    }
+
+    /** Poly1305 of len bytes of m, keyed by the first 32 bytes of the key stream.
+     */
+    private static void poly1305(int[] key, byte[] m, int mOff, int len, byte[] out, int outOff) {
+        long r0 = key[0] & LIMB;
+        long r1 = ((key[0] >>> 26) | (key[1] << 6)) & 0x3ffff03;
+        long r2 = ((key[1] >>> 20) | (key[2] << 12)) & 0x3ffc0ff;
+        long r3 = ((key[2] >>> 14) | (key[3] << 18)) & 0x3f03fff;
+        long r4 = (key[3] >>> 8) & 0x00fffff;
+        long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+
+        byte[] last = new byte[16];
+        int end = mOff + len;
+        for (int off = mOff; off < end; off += 16) {
+            byte[] src = m;
+            int srcOff = off;
+            long hibit = 1 << 24;
+            if (end - off < 16) {
+                System.arraycopy(m, off, last, 0, end - off);
+                last[end - off] = 1;
+                src = last;
+                srcOff = 0;
+                hibit = 0;
+            }
+            int t0 = ld32(src, srcOff), t1 = ld32(src, srcOff + 4), t2 = ld32(src, srcOff + 8), t3 = ld32(src, srcOff + 12);
+            h0 += t0 & LIMB;
+            h1 += ((t0 >>> 26) | (t1 << 6)) & LIMB;
+            h2 += ((t1 >>> 20) | (t2 << 12)) & LIMB;
+            h3 += ((t2 >>> 14) | (t3 << 18)) & LIMB;
+            h4 += (t3 >>> 8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            d1 += d0 >>> 26; h0 = d0 & LIMB;
+            d2 += d1 >>> 26; h1 = d1 & LIMB;
+            d3 += d2 >>> 26; h2 = d2 & LIMB;
+            d4 += d3 >>> 26; h3 = d3 & LIMB;
+            h0 += (d4 >>> 26) * 5; h4 = d4 & LIMB;
+            h1 += h0 >>> 26; h0 &= LIMB;
+        }
+
+        // fully reduce h modulo 2^130 - 5
+        long c;
+        c = h1 >>> 26; h1 &= LIMB; h2 += c;
+        c = h2 >>> 26; h2 &= LIMB; h3 += c;
+        c = h3 >>> 26; h3 &= LIMB; h4 += c;
+        c = h4 >>> 26; h4 &= LIMB; h0 += c * 5;
+        c = h0 >>> 26; h0 &= LIMB; h1 += c;
+
+        long g0 = h0 + 5; c = g0 >>> 26; g0 &= LIMB;
+        long g1 = h1 + c; c = g1 >>> 26; g1 &= LIMB;
+        long g2 = h2 + c; c = g2 >>> 26; g2 &= LIMB;
+        long g3 = h3 + c; c = g3 >>> 26; g3 &= LIMB;
+        long g4 = h4 + c - (1 << 26);
+        // all ones if h >= 2^130 - 5, in which case use g = h - (2^130 - 5)
+        long select = (g4 >>> 63) - 1;
+        h0 = (h0 & ~select) | (g0 & select);
+        h1 = (h1 & ~select) | (g1 & select);
+        h2 = (h2 & ~select) | (g2 & select);
+        h3 = (h3 & ~select) | (g3 & select);
+        h4 = (h4 & ~select) | (g4 & select);
+
+        // tag = (h + s) mod 2^128
+        long f0 = ((h0 | (h1 << 26)) & 0xffffffffL) + (key[4] & 0xffffffffL);
+        long f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + (key[5] & 0xffffffffL) + (f0 >>> 32);
+        long f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + (key[6] & 0xffffffffL) + (f1 >>> 32);
+        long f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + (key[7] & 0xffffffffL) + (f2 >>> 32);
+        st32(out, outOff, (int) f0);
+        st32(out, outOff + 4, (int) f1);
+        st32(out, outOff + 8, (int) f2);
+        st32(out, outOff + 12, (int) f3);
     }
 }
@@ -1,35 +1,54 @@
 package peergos.server.mutable;
 
+import peergos.server.util.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
+/** Propagates successful pointer updates to listeners, asynchronously, so a pointer update returns as soon as it is
+ *  durable. Only the latest update of each writer which is still queued is delivered.
+ */
 public class MutableEventPropagator implements MutablePointers {
 
     private final MutablePointers target;
-    private final List<Consumer<? super MutableEvent>> listeners = new ArrayList<>();
+    private final CoalescingEventBus<Pair<PublicKeyHash, PublicKeyHash>, MutableEvent> events;
 
-    public MutableEventPropagator(MutablePointers target) {
+    public MutableEventPropagator(MutablePointers target, int maxQueuedEvents, int eventWorkers) {
         this.target = target;
+        this.events = new CoalescingEventBus<>("mutable", maxQueuedEvents, eventWorkers);
     }
 
     public void addListener(Consumer<? super MutableEvent> listener) {
-        listeners.add(listener);
+        events.addListener(listener);
+    }
+
+    /** Wait until all pointer updates made before this call have been processed by the listeners.
+     */
+    public void awaitProcessed() {
+        events.awaitProcessed();
+    }
+
+    /** Wait until there are no pointer updates of writers with the given owner waiting to be processed, or the
+     *  timeout expires.
+     *
+     * @param owner
+     * @param timeoutMillis
+     * @return whether all updates of the owner's writers had been processed when this returned
+     */
+    public boolean awaitProcessed(PublicKeyHash owner, long timeoutMillis) {
+        return events.awaitProcessed(key -> key.left.equals(owner), timeoutMillis);
     }
 
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         return target.setPointer(owner, writer, writerSignedBtreeRootHash)
                 .thenApply(res -> {
-                    if (res) {
-                        MutableEvent event = new MutableEvent(owner, writer, writerSignedBtreeRootHash);
-                        for (Consumer<? super MutableEvent> listener : listeners) {
-                            listener.accept(event);
-                        }
-                    }
+                    if (res)
+                        events.publish(new Pair<>(owner, writer), new MutableEvent(owner, writer, writerSignedBtreeRootHash));
                     return res;
                 });
     }
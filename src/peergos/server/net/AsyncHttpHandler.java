@@ -0,0 +1,43 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.util.*;
+
+import java.util.concurrent.*;
+
+/** A http handler which may complete the exchange after it returns, from a future callback.
+ *
+ */
+public interface AsyncHttpHandler extends HttpHandler {
+
+    /** Handle the exchange, replying to and closing it before the returned future completes. The returned future
+     *  should never complete exceptionally.
+     *
+     * @param exchange
+     * @return
+     */
+    CompletableFuture<Boolean> handleAsync(HttpExchange exchange);
+
+    @Override
+    default void handle(HttpExchange exchange) {
+        handleAsync(exchange).join();
+    }
+
+    /** Adapt a synchronous handler, which replies to and closes the exchange before returning.
+     *
+     * @param handler
+     * @return
+     */
+    static AsyncHttpHandler fromSync(HttpHandler handler) {
+        return exchange -> {
+            try {
+                handler.handle(exchange);
+            } catch (Throwable t) {
+                Logging.LOG().severe("Error handling " + exchange.getRequestURI());
+                HttpUtil.replyError(exchange, t);
+                exchange.close();
+            }
+            return CompletableFuture.completedFuture(true);
+        };
+    }
+}
@@ -0,0 +1,219 @@
+package peergos.server.net;
+
+import peergos.shared.io.ipfs.api.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/** A HttpPoster using the non blocking JDK http client.
+ *
+ *  Connections are pooled and, where the server supports it, multiplexed over HTTP/2, so many concurrent requests
+ *  share a small number of connections. All posters created with the default client share a single pool.
+ */
+public class AsyncJavaPoster implements HttpPoster {
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(15);
+    // Uploads can legitimately take a long time on a slow link, so by default they are only bounded by the connection
+    private static final Optional<Duration> DEFAULT_UPLOAD_TIMEOUT = Optional.empty();
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final AtomicLong threadCounter = new AtomicLong(0);
+    private static final HttpClient DEFAULT_CLIENT = buildClient(CONNECT_TIMEOUT);
+
+    private final URL base;
+    private final boolean useGet;
+    private final HttpClient client;
+    private final Optional<Duration> timeout, uploadTimeout;
+
+    public AsyncJavaPoster(URL base,
+                           boolean isPublicServer,
+                           HttpClient client,
+                           Optional<Duration> timeout,
+                           Optional<Duration> uploadTimeout) {
+        this.base = base;
+        this.useGet = isPublicServer;
+        this.client = client;
+        this.timeout = timeout;
+        this.uploadTimeout = uploadTimeout;
+    }
+
+    public AsyncJavaPoster(URL base, boolean isPublicServer) {
+        this(base, isPublicServer, DEFAULT_CLIENT, Optional.of(DEFAULT_TIMEOUT), DEFAULT_UPLOAD_TIMEOUT);
+    }
+
+    public static HttpClient buildClient(Duration connectTimeout) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(connectTimeout)
+                .executor(Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "Http client " + threadCounter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }))
+                .build();
+    }
+
+    /**
+     *
+     * @param timeout
+     * @return a poster sharing this one's connections, with a different timeout for requests other than uploads
+     */
+    public AsyncJavaPoster withTimeout(Optional<Duration> timeout) {
+        return new AsyncJavaPoster(base, useGet, client, timeout, uploadTimeout);
+    }
+
+    /**
+     *
+     * @param uploadTimeout
+     * @return a poster sharing this one's connections, with a different timeout for multipart uploads
+     */
+    public AsyncJavaPoster withUploadTimeout(Optional<Duration> uploadTimeout) {
+        return new AsyncJavaPoster(base, useGet, client, timeout, uploadTimeout);
+    }
+
+    private URI buildURI(String method) {
+        try {
+            return new URL(base, method).toURI();
+        } catch (MalformedURLException | URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private HttpRequest.Builder request(String url, Map<String, String> headers, Optional<Duration> timeout) {
+        HttpRequest.Builder req = HttpRequest.newBuilder(buildURI(url));
+        timeout.ifPresent(req::timeout);
+        for (Map.Entry<String, String> e : headers.entrySet())
+            req.header(e.getKey(), e.getValue());
+        return req;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+        return post(url, payload, true);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+        return post(url, payload, unzip, timeout);
+    }
+
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip, Optional<Duration> timeout) {
+        HttpRequest req = request(url, Collections.emptyMap(), timeout)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload))
+                .build();
+        return send(req, unzip);
+    }
+
+    /** The request body is streamed from the given files without being concatenated first.
+     */
+    @Override
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+        return postMultipart(url, files, uploadTimeout);
+    }
+
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files, Optional<Duration> timeout) {
+        String boundary = Multipart.createBoundary();
+        List<byte[]> body = new ArrayList<>();
+        for (byte[] file : files) {
+            body.add(("--" + boundary + "\r\n" +
+                    "Content-Disposition: file; name=\"file\";\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Content-Transfer-Encoding: binary\r\n\r\n").getBytes());
+            body.add(file);
+            body.add("\r\n".getBytes());
+        }
+        body.add(("--" + boundary + "--\r\n").getBytes());
+        HttpRequest req = request(url, Collections.emptyMap(), timeout)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(body))
+                .build();
+        return send(req, false);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> put(String url, byte[] body, Map<String, String> headers) {
+        HttpRequest req = request(url, headers, timeout)
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        return send(req, false);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url) {
+        return get(url, Collections.emptyMap());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url, Map<String, String> headers) {
+        if (useGet)
+            return send(request(url, headers, timeout).GET().build(), true);
+        // This changes to a POST with an empty body
+        // The reason for this is browsers allow any website to do a get request to localhost
+        // but they block POST requests. So this prevents random websites from calling APIs on localhost
+        return postUnzip(url, new byte[0]);
+    }
+
+    private CompletableFuture<byte[]> send(HttpRequest req, boolean unzip) {
+        return client.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(resp -> {
+                    checkStatus(resp, req);
+                    if (unzip && isGzipped(resp)) {
+                        try {
+                            return Serialize.readFully(new GZIPInputStream(new ByteArrayInputStream(resp.body())));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return resp.body();
+                })
+                .exceptionally(t -> {
+                    Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+                    if (cause instanceof HttpTimeoutException)
+                        throw new RuntimeException("Timeout retrieving: " + req.uri(), cause);
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new RuntimeException(cause);
+                });
+    }
+
+    private static boolean isGzipped(HttpResponse<?> resp) {
+        return resp.headers().firstValue("Content-Encoding").map("gzip"::equals).orElse(false);
+    }
+
+    private static void checkStatus(HttpResponse<?> resp, HttpRequest req) {
+        if (resp.statusCode() < 400)
+            return;
+        // Peergos servers put the error message in the Trailer header
+        Optional<String> trailer = resp.headers().firstValue("Trailer")
+                .map(t -> URLDecoder.decode(t, StandardCharsets.UTF_8));
+        if (trailer.isPresent()) {
+            // Only an explicit refusal is final, other server errors may succeed if retried
+            if (HttpRejectedException.isRejection(trailer.get()))
+                throw new HttpRejectedException(trailer.get());
+            throw new ServerError(trailer.get());
+        }
+        throw new UncheckedIOException(new IOException("HTTP " + resp.statusCode() + " from " + req.uri()));
+    }
+
+    private static class ServerError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ServerError(String message) {
+            super(message);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return base.toString();
+    }
+}
@@ -18,13 +18,16 @@ import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
-public class DHTHandler implements HttpHandler {
+public class DHTHandler implements AsyncHttpHandler {
 	private static final Logger LOG = Logging.LOG();
 
     private static final boolean LOGGING = true;
+    // the number of blocks read at once for a multi block get
+    private static final int GET_MANY_PARALLELISM = 8;
     private final ContentAddressedStorage dht;
     private final Hasher hasher;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
@@ -50,132 +53,173 @@ public class DHTHandler implements HttpHandler {
         this(dht, hasher, keyFilter, "/api/v0/", isPublicServer);
     }
 
+    private static final Set<String> ENDPOINTS = new HashSet<>(Arrays.asList(BLOCKSTORE_PROPERTIES, AUTH_WRITES,
+            AUTH_READS, TRANSACTION_START, TRANSACTION_CLOSE, BLOCK_PUT, BLOCK_GET, BLOCK_GET_MANY, BLOCK_STAT, REFS, ID));
+
+    /**
+     *
+     * @param exchange
+     * @return the api call this exchange is for, used to apply per endpoint concurrency limits
+     */
+    public String endpointName(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        String call = path.startsWith(apiPrefix) ? path.substring(apiPrefix.length()) : path;
+        return ENDPOINTS.contains(call) ? "dht/" + call : "dht/unknown";
+    }
+
     @Override
-    public void handle(HttpExchange httpExchange) {
+    public CompletableFuture<Boolean> handleAsync(HttpExchange httpExchange) {
         long t1 = System.currentTimeMillis();
         String path = httpExchange.getRequestURI().getPath();
+        CompletableFuture<Boolean> result;
         try {
-            if (! HttpUtil.allowedQuery(httpExchange, isPublicServer)) {
-                httpExchange.sendResponseHeaders(405, 0);
-                return;
+            result = handleCall(httpExchange, path);
+        } catch (Exception e) {
+            result = Futures.errored(e);
+        }
+        return result.handle((b, t) -> {
+            if (t != null) {
+                LOG.severe("Error handling " + httpExchange.getRequestURI());
+                LOG.log(Level.WARNING, t.getMessage(), t);
+                HttpUtil.replyError(httpExchange, t);
             }
+            httpExchange.close();
+            long t2 = System.currentTimeMillis();
+            if (LOGGING)
+                LOG.info("DHT Handler handled " + path + " query in: " + (t2 - t1) + " mS");
+            return true;
+        });
+    }
+
+    private CompletableFuture<Boolean> handleCall(HttpExchange httpExchange, String path) throws IOException {
+        if (! HttpUtil.allowedQuery(httpExchange, isPublicServer)) {
+            httpExchange.sendResponseHeaders(405, 0);
+            return Futures.of(true);
+        }
 
-            if (! path.startsWith(apiPrefix))
-                throw new IllegalStateException("Unsupported api version, required: " + apiPrefix);
-            path = path.substring(apiPrefix.length());
-            // N.B. URI.getQuery() decodes the query string
-            Map<String, List<String>> params = HttpUtil.parseQuery(httpExchange.getRequestURI().getQuery());
-            List<String> args = params.get("arg");
-            Function<String, String> last = key -> params.get(key).get(params.get(key).size() - 1);
+        if (! path.startsWith(apiPrefix))
+            throw new IllegalStateException("Unsupported api version, required: " + apiPrefix);
+        path = path.substring(apiPrefix.length());
+        // N.B. URI.getQuery() decodes the query string
+        Map<String, List<String>> params = HttpUtil.parseQuery(httpExchange.getRequestURI().getQuery());
+        List<String> args = params.get("arg");
+        Function<String, String> last = key -> params.get(key).get(params.get(key).size() - 1);
 
-            switch (path) {
-                case BLOCKSTORE_PROPERTIES: {
-                    dht.blockStoreProperties().thenAccept(p -> {
-                        replyBytes(httpExchange, p.serialize(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case AUTH_WRITES: {
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    TransactionId tid = new TransactionId(last.apply("transaction"));
-                    PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
-                    byte[] reqBody = Serialize.readFully(httpExchange.getRequestBody());
-                    WriteAuthRequest req = WriteAuthRequest.fromCbor(CborObject.fromByteArray(reqBody));
-                    List<byte[]> signatures = req.signatures;
-                    List<Integer> blockSizes = req.sizes.stream()
-                            .map(x -> x.intValue())
-                            .collect(Collectors.toList());
-                    boolean isRaw = Boolean.parseBoolean(last.apply("raw"));
-                    dht.authWrites(ownerHash, writerHash, signatures, blockSizes, isRaw, tid).thenAccept(res -> {
-                        replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case AUTH_READS: {
-                    List<Multihash> blockHashes = Arrays.stream(last.apply("hashes").split(","))
-                            .map(Cid::decode)
-                            .collect(Collectors.toList());
-                    dht.authReads(blockHashes).thenAccept(res -> {
-                        replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case TRANSACTION_START: {
-                    AggregatedMetrics.DHT_TRANSACTION_START.inc();
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    dht.startTransaction(ownerHash).thenAccept(tid -> {
-                        replyJson(httpExchange, tid.toString(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case TRANSACTION_CLOSE: {
-                    AggregatedMetrics.DHT_TRANSACTION_CLOSE.inc();
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    TransactionId tid = new TransactionId(args.get(0));
-                    dht.closeTransaction(ownerHash, tid).thenAccept(b -> {
-                        replyJson(httpExchange, JSONParser.toString(b ? 1 : 0), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case BLOCK_PUT: {
-                    AggregatedMetrics.DHT_BLOCK_PUT.inc();
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    TransactionId tid = new TransactionId(last.apply("transaction"));
-                    PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
-                    List<byte[]> signatures = Arrays.stream(last.apply("signatures").split(","))
-                            .map(ArrayOps::hexToBytes)
-                            .collect(Collectors.toList());
-                    String boundary = httpExchange.getRequestHeaders().get("Content-Type")
-                            .stream()
-                            .filter(s -> s.contains("boundary="))
-                            .map(s -> s.substring(s.indexOf("=") + 1))
-                            .findAny()
-                            .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
-                    boolean isRaw = last.apply("format").equals("raw");
+        switch (path) {
+            case BLOCKSTORE_PROPERTIES: {
+                return dht.blockStoreProperties().thenApply(p -> {
+                    replyBytes(httpExchange, p.serialize(), Optional.empty());
+                    return true;
+                });
+            }
+            case AUTH_WRITES: {
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                TransactionId tid = new TransactionId(last.apply("transaction"));
+                PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
+                byte[] reqBody = Serialize.readFully(httpExchange.getRequestBody());
+                WriteAuthRequest req = WriteAuthRequest.fromCbor(CborObject.fromByteArray(reqBody));
+                List<byte[]> signatures = req.signatures;
+                List<Integer> blockSizes = req.sizes.stream()
+                        .map(x -> x.intValue())
+                        .collect(Collectors.toList());
+                boolean isRaw = Boolean.parseBoolean(last.apply("raw"));
+                return dht.authWrites(ownerHash, writerHash, signatures, blockSizes, isRaw, tid).thenApply(res -> {
+                    replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
+                    return true;
+                });
+            }
+            case AUTH_READS: {
+                List<Multihash> blockHashes = Arrays.stream(last.apply("hashes").split(","))
+                        .map(Cid::decode)
+                        .collect(Collectors.toList());
+                return dht.authReads(blockHashes).thenApply(res -> {
+                    replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
+                    return true;
+                });
+            }
+            case TRANSACTION_START: {
+                AggregatedMetrics.DHT_TRANSACTION_START.inc();
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                return dht.startTransaction(ownerHash).thenApply(tid -> {
+                    replyJson(httpExchange, tid.toString(), Optional.empty());
+                    return true;
+                });
+            }
+            case TRANSACTION_CLOSE: {
+                AggregatedMetrics.DHT_TRANSACTION_CLOSE.inc();
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                TransactionId tid = new TransactionId(args.get(0));
+                return dht.closeTransaction(ownerHash, tid).thenApply(b -> {
+                    replyJson(httpExchange, JSONParser.toString(b ? 1 : 0), Optional.empty());
+                    return true;
+                });
+            }
+            case BLOCK_PUT: {
+                AggregatedMetrics.DHT_BLOCK_PUT.inc();
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                TransactionId tid = new TransactionId(last.apply("transaction"));
+                PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
+                List<byte[]> signatures = Arrays.stream(last.apply("signatures").split(","))
+                        .map(ArrayOps::hexToBytes)
+                        .collect(Collectors.toList());
+                String boundary = httpExchange.getRequestHeaders().get("Content-Type")
+                        .stream()
+                        .filter(s -> s.contains("boundary="))
+                        .map(s -> s.substring(s.indexOf("=") + 1))
+                        .findAny()
+                        .get();
+                // When writing multiple blocks the writer's key must already be stored, so look it up while the
+                // body is still arriving. Each block is hashed as soon as it has been received.
+                Optional<CompletableFuture<PublicSigningKey>> earlyKeyLookup = signatures.size() > 1 ?
+                        Optional.of(dht.getSigningKey(writerHash).thenApply(Optional::get)) :
+                        Optional.empty();
+                List<byte[]> data = new ArrayList<>();
+                List<CompletableFuture<byte[]>> blockHashes = new ArrayList<>();
+                MultipartReceiver.parseParts(httpExchange.getRequestBody(), boundary, part -> {
+                    byte[] block = new byte[part.remaining()];
+                    part.get(block);
+                    data.add(block);
+                    blockHashes.add(hasher.sha256(block));
+                });
+                boolean isRaw = last.apply("format").equals("raw");
 
-                    // check writer is allowed to write to this server, and check their free space
-                    if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
-                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+                // check writer is allowed to write to this server, and check their free space
+                if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
+                    throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
 
-                    // Get the actual key, unless this is the initial write of the signing key during sign up
-                    // In the initial put of a signing key during sign up the key signs itself (we still check the hash
-                    // against the core node)
-                    Supplier<PublicSigningKey> fromDht = () -> {
-                        try {
-                            return dht.getSigningKey(writerHash).get().get();
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
+                // Get the actual key, unless this is the initial write of the signing key during sign up
+                // In the initial put of a signing key during sign up the key signs itself (we still check the hash
+                // against the core node)
+                Supplier<CompletableFuture<PublicSigningKey>> fromDht = () -> dht.getSigningKey(writerHash)
+                        .thenApply(Optional::get);
+                Supplier<CompletableFuture<PublicSigningKey>> inBandOrDht = () -> {
+                    try {
+                        PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
+                        PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
+                        if (calculatedHash.equals(writerHash)) {
+                            candidateKey.unsignMessage(signatures.get(0));
+                            return Futures.of(candidateKey);
                         }
-                    };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
-                        try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
-                            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
-                            if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(signatures.get(0));
-                                return candidateKey;
-                            }
-                        } catch (Throwable e) {
-                            // If signature is not valid then the signing key has already been written, retrieve it
-                            // This happens for the boxing key during sign up for example
-                        }
-                        return fromDht.get();
-                    };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
-
+                    } catch (Throwable e) {
+                        // If signature is not valid then the signing key has already been written, retrieve it
+                        // This happens for the boxing key during sign up for example
+                    }
+                    return fromDht.get();
+                };
+                return (data.size() > 1 ? earlyKeyLookup.orElseGet(fromDht) : inBandOrDht.get()).thenCompose(writer -> {
                     // verify signatures
                     for (int i = 0; i < data.size(); i++) {
                         byte[] signature = signatures.get(i);
-                        byte[] hash = hasher.sha256(data.get(i)).join();
+                        byte[] hash = blockHashes.get(i).join();
                         byte[] unsigned = writer.unsignMessage(signature);
                         if (! Arrays.equals(unsigned, hash))
                             throw new IllegalStateException("Invalid signature for block!");
                     }
 
-                    List<Multihash> hashes = (isRaw ?
+                    return isRaw ?
                             dht.putRaw(ownerHash, writerHash, signatures, data, tid, x -> {}) :
-                            dht.put(ownerHash, writerHash, signatures, data, tid)).get();
+                            dht.put(ownerHash, writerHash, signatures, data, tid);
+                }).thenApply(hashes -> {
                     List<Object> json = hashes.stream()
                             .map(h -> wrapHash(h))
                             .collect(Collectors.toList());
@@ -184,65 +228,112 @@ public class DHTHandler implements HttpHandler {
                             .map(m -> JSONParser.toString(m))
                             .reduce("", (a, b) -> a + b);
                     replyJson(httpExchange, jsonStream, Optional.empty());
-                    break;
-                }
-                case BLOCK_GET:{
-                    AggregatedMetrics.DHT_BLOCK_GET.inc();
-                    Multihash hash = Cid.decode(args.get(0));
-                    (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
-                            dht.getRaw(hash) :
-                            dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
-                            .thenAccept(opt -> replyBytes(httpExchange,
-                                    opt.orElse(new byte[0]), opt.map(x -> hash)))
-                            .exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case BLOCK_STAT: {
-                    AggregatedMetrics.DHT_BLOCK_STAT.inc();
-                    Multihash block = Cid.decode(args.get(0));
-                    dht.getSize(block).thenAccept(sizeOpt -> {
-                        Map<String, Object> res = new HashMap<>();
-                        res.put("Size", sizeOpt.orElse(0));
-                        String json = JSONParser.toString(res);
-                        replyJson(httpExchange, json, Optional.of(block));
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case REFS: {
-                    AggregatedMetrics.DHT_BLOCK_REFS.inc();
-                    Multihash block = Cid.decode(args.get(0));
-                    dht.getLinks(block).thenAccept(links -> {
-                        List<Object> json = links.stream().map(h -> wrapHash("Ref", h)).collect(Collectors.toList());
-                        // make stream of JSON objects
-                        String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
-                        replyJson(httpExchange, jsonStream, Optional.of(block));
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case ID: {
-                    AggregatedMetrics.DHT_ID.inc();
-                    dht.id().thenAccept(id -> {
-                        Object json = wrapHash("ID", id);
-                        replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                default: {
-                    httpExchange.sendResponseHeaders(404, 0);
-                }
+                    return true;
+                });
+            }
+            case BLOCK_GET:{
+                AggregatedMetrics.DHT_BLOCK_GET.inc();
+                Multihash hash = Cid.decode(args.get(0));
+                return getBlock(hash)
+                        .thenApply(opt -> {
+                            replyBytes(httpExchange, opt.orElse(new byte[0]), opt.map(x -> hash));
+                            return true;
+                        });
+            }
+            case BLOCK_GET_MANY: {
+                AggregatedMetrics.DHT_BLOCK_GET_MANY.inc();
+                if (args.size() > MAX_BLOCKS_PER_GET)
+                    throw new IllegalStateException("Too many blocks requested: " + args.size());
+                List<Multihash> hashes = args.stream()
+                        .map(Cid::decode)
+                        .collect(Collectors.toList());
+                // only reply once all the reads have succeeded, so a failure gets an error status
+                return getBlocks(hashes, 0, MAX_BYTES_PER_GET, new ArrayList<>()).thenApply(results -> {
+                    try {
+                        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                        DataOutputStream dout = new DataOutputStream(bout);
+                        for (Optional<byte[]> block : results) {
+                            if (block.isPresent()) {
+                                dout.writeInt(block.get().length);
+                                dout.write(block.get());
+                            } else
+                                dout.writeInt(-1);
+                        }
+                        replyBytes(httpExchange, bout.toByteArray(), Optional.empty());
+                        return true;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+            case BLOCK_STAT: {
+                AggregatedMetrics.DHT_BLOCK_STAT.inc();
+                Multihash block = Cid.decode(args.get(0));
+                return dht.getSize(block).thenApply(sizeOpt -> {
+                    Map<String, Object> res = new HashMap<>();
+                    res.put("Size", sizeOpt.orElse(0));
+                    String json = JSONParser.toString(res);
+                    replyJson(httpExchange, json, Optional.of(block));
+                    return true;
+                });
+            }
+            case REFS: {
+                AggregatedMetrics.DHT_BLOCK_REFS.inc();
+                Multihash block = Cid.decode(args.get(0));
+                return dht.getLinks(block).thenApply(links -> {
+                    List<Object> json = links.stream().map(h -> wrapHash("Ref", h)).collect(Collectors.toList());
+                    // make stream of JSON objects
+                    String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
+                    replyJson(httpExchange, jsonStream, Optional.of(block));
+                    return true;
+                });
+            }
+            case ID: {
+                AggregatedMetrics.DHT_ID.inc();
+                return dht.id().thenApply(id -> {
+                    Object json = wrapHash("ID", id);
+                    replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
+                    return true;
+                });
+            }
+            default: {
+                httpExchange.sendResponseHeaders(404, 0);
+                return Futures.of(true);
             }
-        } catch (Exception e) {
-            LOG.severe("Error handling " +httpExchange.getRequestURI());
-            LOG.log(Level.WARNING, e.getMessage(), e);
-            HttpUtil.replyError(httpExchange, e);
-        } finally {
-            httpExchange.close();
-            long t2 = System.currentTimeMillis();
-            if (LOGGING)
-                LOG.info("DHT Handler handled " + path + " query in: " + (t2 - t1) + " mS");
         }
     }
 
+    /** Read the blocks in order, a few at a time, until their total size reaches maxBytes. This bounds the size of a
+     *  response, and the client requests any blocks left out again. At least one block is always returned.
+     */
+    private CompletableFuture<List<Optional<byte[]>>> getBlocks(List<Multihash> hashes,
+                                                             int from,
+                                                             long maxBytes,
+                                                             List<Optional<byte[]>> acc) {
+        if (from >= hashes.size() || maxBytes <= 0)
+            return Futures.of(acc);
+        List<Multihash> group = hashes.subList(from, Math.min(hashes.size(), from + GET_MANY_PARALLELISM));
+        return Futures.combineAllInOrder(group.stream()
+                .map(this::getBlock)
+                .collect(Collectors.toList()))
+                .thenCompose(blocks -> {
+                    long remaining = maxBytes;
+                    for (Optional<byte[]> block : blocks) {
+                        if (remaining <= 0)
+                            return Futures.of(acc);
+                        acc.add(block);
+                        remaining -= block.map(b -> b.length).orElse(0);
+                    }
+                    return getBlocks(hashes, from + group.size(), remaining, acc);
+                });
+    }
+
+    private CompletableFuture<Optional<byte[]>> getBlock(Multihash hash) {
+        return hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
+                dht.getRaw(hash) :
+                dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray));
+    }
+
     private static Map<String, Object> wrapHash(Multihash h) {
         return wrapHash("Hash", h);
     }
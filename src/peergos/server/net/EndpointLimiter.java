@@ -0,0 +1,156 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import io.prometheus.client.*;
+import peergos.server.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** Runs http handlers on a shared worker pool, with a limit on the number of concurrent requests to each endpoint and
+ *  a bounded queue of waiting requests per endpoint. Requests beyond the queue limit are rejected with a 503.
+ *
+ *  This stops a slow endpoint (e.g. block puts to a slow block store) from occupying every server thread and starving
+ *  the others, and lets async handlers release their thread while waiting on I/O.
+ */
+public class EndpointLimiter {
+    private static final Logger LOG = Logging.LOG();
+
+    private static final Gauge inFlight = Gauge.build()
+            .labelNames("endpoint")
+            .name("http_endpoint_in_flight")
+            .help("Number of requests currently being handled per endpoint")
+            .register();
+    private static final Gauge queueDepth = Gauge.build()
+            .labelNames("endpoint")
+            .name("http_endpoint_queue_depth")
+            .help("Number of requests waiting for a free slot per endpoint")
+            .register();
+    private static final Counter rejected = Counter.build()
+            .labelNames("endpoint")
+            .name("http_endpoint_rejected")
+            .help("Number of requests rejected because an endpoint's queue was full")
+            .register();
+
+    private final int maxConcurrency, maxQueue;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+
+    public EndpointLimiter(int maxConcurrency, int maxQueue) {
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueue = maxQueue;
+        AtomicInteger threadCounter = new AtomicInteger(0);
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Handler worker " + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     *
+     * @param handler
+     * @param endpointName maps an exchange to the endpoint it is limited under, this should have a small range
+     * @return
+     */
+    public HttpHandler wrap(AsyncHttpHandler handler, Function<HttpExchange, String> endpointName) {
+        return exchange -> {
+            String name = endpointName.apply(exchange);
+            Endpoint endpoint = endpoints.computeIfAbsent(name, Endpoint::new);
+            endpoint.submit(new Request(exchange, handler));
+        };
+    }
+
+    public HttpHandler wrap(HttpHandler handler) {
+        return wrap(AsyncHttpHandler.fromSync(handler), ex -> ex.getHttpContext().getPath());
+    }
+
+    private static class Request {
+        public final HttpExchange exchange;
+        public final AsyncHttpHandler handler;
+
+        public Request(HttpExchange exchange, AsyncHttpHandler handler) {
+            this.exchange = exchange;
+            this.handler = handler;
+        }
+    }
+
+    private class Endpoint {
+        private final String name;
+        private final Semaphore permits = new Semaphore(maxConcurrency);
+        private final Queue<Request> waiting = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger waitingCount = new AtomicInteger(0);
+
+        public Endpoint(String name) {
+            this.name = name;
+        }
+
+        public void submit(Request req) {
+            if (permits.tryAcquire()) {
+                run(req);
+                return;
+            }
+            if (waitingCount.incrementAndGet() > maxQueue) {
+                waitingCount.decrementAndGet();
+                rejected.labels(name).inc();
+                reject(req.exchange);
+                return;
+            }
+            waiting.add(req);
+            queueDepth.labels(name).inc();
+            drain();
+        }
+
+        private void drain() {
+            while (! waiting.isEmpty() && permits.tryAcquire()) {
+                Request next = waiting.poll();
+                if (next == null) {
+                    permits.release();
+                    return;
+                }
+                waitingCount.decrementAndGet();
+                queueDepth.labels(name).dec();
+                run(next);
+            }
+        }
+
+        private void run(Request req) {
+            inFlight.labels(name).inc();
+            try {
+                workers.execute(() -> {
+                    CompletableFuture<Boolean> done;
+                    try {
+                        done = req.handler.handleAsync(req.exchange);
+                    } catch (Throwable t) {
+                        LOG.log(Level.WARNING, t.getMessage(), t);
+                        req.exchange.close();
+                        done = CompletableFuture.completedFuture(false);
+                    }
+                    done.whenComplete((r, t) -> release());
+                });
+            } catch (RejectedExecutionException e) {
+                release();
+                reject(req.exchange);
+            }
+        }
+
+        private void release() {
+            inFlight.labels(name).dec();
+            permits.release();
+            drain();
+        }
+    }
+
+    private static void reject(HttpExchange exchange) {
+        try {
+            exchange.sendResponseHeaders(503, -1);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -1,84 +1,201 @@
 package peergos.server.net;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
+import java.util.function.*;
 
+/** A buffered multipart/form-data parser.
+ *
+ *  The body is read in large chunks into a single buffer and delimiters are located with a Boyer-Moore-Horspool
+ *  search, so each part is handed to the caller as a slice of that buffer as soon as its closing boundary arrives,
+ *  without any per byte copying.
+ */
 public class MultipartReceiver {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_SIZE = 1024;
+    private static final byte[] NEW_LINE = "\r\n".getBytes();
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final byte[] END_MARKER = "--".getBytes();
 
-    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
+    public static List<byte[]> extractFiles(InputStream in, String boundary) {
+        List<byte[]> files = new ArrayList<>();
+        parseParts(in, boundary, part -> {
+            byte[] file = new byte[part.remaining()];
+            part.get(file);
+            files.add(file);
+        });
+        return files;
+    }
+
+    /** Call onPart with the body of each part in order, as soon as it has been fully received.
+     *
+     * @param in
+     * @param boundary
+     * @param onPart receives a read only view of each part, which is only valid until it returns
+     */
+    public static void parseParts(InputStream in, String boundary, Consumer<ByteBuffer> onPart) {
         try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
-            if (!first.substring(2).equals(boundary))
-                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
+            new Parser(in, ("\r\n--" + boundary).getBytes()).parse(onPart);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
+    private static class Parser {
+        private final InputStream in;
+        private final Pattern delimiter;
+        private final Pattern headersEnd = new Pattern(DOUBLE_NEW_LINE);
+        private final Pattern lineEnd = new Pattern(NEW_LINE);
+        private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+        private int start = 0, end = 0;
+        private boolean eof = false;
+
+        Parser(InputStream in, byte[] delimiter) {
+            this.in = in;
+            this.delimiter = new Pattern(delimiter);
+        }
+
+        void parse(Consumer<ByteBuffer> onPart) throws IOException {
+            // the first boundary line has no preceding new line
+            int firstLineEnd = find(lineEnd, MAX_LINE_SIZE);
+            int lineLength = firstLineEnd < 0 ? end - start : firstLineEnd - start;
+            String first = new String(buf, start, lineLength);
+            String expected = new String(delimiter.bytes, NEW_LINE.length, delimiter.bytes.length - NEW_LINE.length);
+            if (! first.equals(expected))
+                throw new IllegalStateException("Incorrect boundary! " + expected.substring(2) + " != " +
+                        (first.length() < 2 ? first : first.substring(2)));
+            if (firstLineEnd < 0)
+                return;
+            start = firstLineEnd + NEW_LINE.length;
+            if (! skipPast(headersEnd))
+                return;
 
             while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
-                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
+                int partEnd = find(delimiter, Integer.MAX_VALUE);
+                int partLength = (partEnd < 0 ? end : partEnd) - start;
+                onPart.accept(ByteBuffer.wrap(buf, start, partLength).slice().asReadOnlyBuffer());
+                if (partEnd < 0)
+                    return;
+                start = partEnd + delimiter.bytes.length;
+                if (ensureAvailable(END_MARKER.length) && startsWith(END_MARKER))
+                    return;
+                if (! skipPast(headersEnd))
+                    return;
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
-    }
 
-    /**
-     *
-     * @param pattern the pattern of bytes to search until
-     * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
-     */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
+        private boolean startsWith(byte[] prefix) {
+            for (int i = 0; i < prefix.length; i++)
+                if (buf[start + i] != prefix[i])
+                    return false;
+            return true;
+        }
+
+        /**
+         *
+         * @param pattern
+         * @return true if the pattern was found and consumed, or false if the stream ended first
+         */
+        private boolean skipPast(Pattern pattern) throws IOException {
+            int index = find(pattern, Integer.MAX_VALUE);
+            if (index < 0) {
+                start = end;
+                return false;
+            }
+            start = index + pattern.bytes.length;
+            return true;
+        }
+
+        /**
+         *
+         * @param pattern
+         * @param maxDistance
+         * @return the absolute position in buf of the next occurrence of pattern at or after start, or -1 if the
+         * stream ends, or maxDistance bytes are searched, before it is found
+         */
+        private int find(Pattern pattern, int maxDistance) throws IOException {
+            int searchFrom = start;
+            while (true) {
+                int index = pattern.indexIn(buf, searchFrom, end);
+                if (index >= 0)
+                    return index;
+                // a match may still start in the last (pattern length - 1) bytes
+                searchFrom = Math.max(start, end - pattern.bytes.length + 1);
+                if (end - start >= maxDistance)
+                    return -1;
+                int offset = start;
+                if (! readMore())
+                    return -1;
+                searchFrom -= offset - start;
+            }
+        }
+
+        private boolean ensureAvailable(int bytes) throws IOException {
+            while (end - start < bytes)
+                if (! readMore())
+                    return false;
+            return true;
+        }
+
+        /** Read more data into the buffer, compacting or growing it if necessary. This may move start.
+         *
+         * @return false if the stream has ended
+         */
+        private boolean readMore() throws IOException {
+            if (eof)
+                return false;
+            if (end == buf.length) {
+                int length = end - start;
+                if (length > buf.length / 2) {
+                    byte[] bigger = new byte[buf.length * 2];
+                    System.arraycopy(buf, start, bigger, 0, length);
+                    buf = bigger;
                 } else
-                    prior.write(r);
+                    System.arraycopy(buf, start, buf, 0, length);
+                start = 0;
+                end = length;
             }
+            int read = in.read(buf, end, buf.length - end);
+            if (read < 0) {
+                eof = true;
+                return false;
+            }
+            end += read;
+            return true;
         }
-        return prior.toByteArray();
     }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
-
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
+    /** A byte pattern with its Boyer-Moore-Horspool bad character shift table.
+     */
+    private static class Pattern {
+        final byte[] bytes;
+        private final int[] shifts = new int[256];
+
+        Pattern(byte[] bytes) {
+            this.bytes = bytes;
+            Arrays.fill(shifts, bytes.length);
+            for (int i = 0; i < bytes.length - 1; i++)
+                shifts[bytes[i] & 0xff] = bytes.length - 1 - i;
+        }
+
+        /**
+         *
+         * @return the index of the first occurrence of this pattern in data[from, to) or -1
+         */
+        int indexIn(byte[] data, int from, int to) {
+            int last = bytes.length - 1;
+            int i = from;
+            while (i + last < to) {
+                int j = last;
+                while (data[i + j] == bytes[j]) {
+                    if (j == 0)
+                        return i;
+                    j--;
+                }
+                i += shifts[data[i + last] & 0xff];
+            }
+            return -1;
         }
-        return new String(bout.toByteArray());
     }
 }
@@ -0,0 +1,112 @@
+package peergos.server.space;
+
+import peergos.server.sql.*;
+import peergos.server.util.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** A persistent map from a block to the total size of the blocks reachable from it, including itself.
+ *
+ *  Blocks are immutable, so entries never change, but they are removed when GC deletes their block. Access is
+ *  synchronized because with sqlite every thread shares a single connection.
+ */
+public class JdbcSubtreeSizes {
+	private static final Logger LOG = Logging.LOG();
+
+    private static final String SELECT_SIZE = "SELECT size FROM subtreesizes WHERE cid = ?;";
+    // keeps the number of parameters in a statement well under sqlite's limit
+    private static final int MAX_ROWS_PER_STATEMENT = 400;
+
+    private final Supplier<Connection> conn;
+    private final SqlSupplier commands;
+
+    public JdbcSubtreeSizes(Supplier<Connection> conn, SqlSupplier commands) {
+        this.conn = conn;
+        this.commands = commands;
+        init(commands);
+    }
+
+    private Connection getConnection() {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(true);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void init(SqlSupplier commands) {
+        try (Connection conn = getConnection()) {
+            commands.createTable(commands.createSubtreeSizesTableCommand(), conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized Optional<Long> get(Multihash block) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_SIZE)) {
+            select.setBytes(1, block.toBytes());
+            ResultSet res = select.executeQuery();
+            if (res.next())
+                return Optional.of(res.getLong(1));
+            return Optional.empty();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    public void put(Multihash block, long subtreeSize) {
+        putAll(Collections.singletonMap(block, subtreeSize));
+    }
+
+    /** Insert many subtree sizes, with one statement per group of up to MAX_ROWS_PER_STATEMENT rows.
+     *
+     * @param subtreeSizes
+     */
+    public synchronized void putAll(Map<Multihash, Long> subtreeSizes) {
+        List<Map.Entry<Multihash, Long>> rows = new ArrayList<>(subtreeSizes.entrySet());
+        for (int start = 0; start < rows.size(); start += MAX_ROWS_PER_STATEMENT) {
+            List<Map.Entry<Multihash, Long>> group = rows.subList(start, Math.min(rows.size(), start + MAX_ROWS_PER_STATEMENT));
+            String values = String.join(", ", Collections.nCopies(group.size(), "(?, ?)"));
+            try (Connection conn = getConnection();
+                 PreparedStatement insert = conn.prepareStatement(
+                         commands.insertOrIgnoreCommand("INSERT ", "INTO subtreesizes (cid, size) VALUES " + values))) {
+                for (int i = 0; i < group.size(); i++) {
+                    insert.setBytes(2 * i + 1, group.get(i).getKey().toBytes());
+                    insert.setLong(2 * i + 2, group.get(i).getValue());
+                }
+                insert.executeUpdate();
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                throw new RuntimeException(sqe);
+            }
+        }
+    }
+
+    /** Remove the sizes of deleted blocks, with one statement per group of up to MAX_ROWS_PER_STATEMENT blocks.
+     *
+     * @param blocks
+     */
+    public synchronized void removeAll(List<Multihash> blocks) {
+        for (int start = 0; start < blocks.size(); start += MAX_ROWS_PER_STATEMENT) {
+            List<Multihash> group = blocks.subList(start, Math.min(blocks.size(), start + MAX_ROWS_PER_STATEMENT));
+            String params = String.join(", ", Collections.nCopies(group.size(), "?"));
+            try (Connection conn = getConnection();
+                 PreparedStatement delete = conn.prepareStatement("DELETE FROM subtreesizes WHERE cid IN (" + params + ");")) {
+                for (int i = 0; i < group.size(); i++)
+                    delete.setBytes(i + 1, group.get(i).toBytes());
+                delete.executeUpdate();
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                throw new RuntimeException(sqe);
+            }
+        }
+    }
+}
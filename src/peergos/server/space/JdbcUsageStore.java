@@ -11,6 +11,9 @@ import java.util.*;
 import java.util.function.*;
 import java.util.logging.*;
 
+/** Access is synchronized because with sqlite every thread shares a single connection, and usage events are processed
+ *  concurrently with the writes they account for.
+ */
 public class JdbcUsageStore implements UsageStore {
 	private static final Logger LOG = Logging.LOG();
 
@@ -53,12 +56,12 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public void initialized() {
+    public synchronized void initialized() {
         // TODO can we remove this method?
     }
 
     @Override
-    public void addUserIfAbsent(String username) {
+    public synchronized void addUserIfAbsent(String username) {
         try (Connection conn = getConnection(true, false);
              PreparedStatement userInsert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO users (name) VALUES(?)"));
              PreparedStatement select = conn.prepareStatement("SELECT id FROM users WHERE name = ?;");
@@ -82,7 +85,7 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public void confirmUsage(String username, PublicKeyHash writer, long usageDelta, boolean errored) {
+    public synchronized void confirmUsage(String username, PublicKeyHash writer, long usageDelta, boolean errored) {
         int userId = getUserId(username);
         try (Connection conn = getConnection(true, false);
              PreparedStatement insert = conn.prepareStatement(
@@ -110,7 +113,7 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public void addPendingUsage(String username, PublicKeyHash writer, int size) {
+    public synchronized void addPendingUsage(String username, PublicKeyHash writer, int size) {
         int writerId = getWriterId(writer);
         try (Connection conn = getConnection(true, false);
              PreparedStatement insert = conn.prepareStatement("UPDATE pendingusage SET pending_bytes = pending_bytes + ? " +
@@ -127,7 +130,7 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public UserUsage getUsage(String username) {
+    public synchronized UserUsage getUsage(String username) {
         int userId = getUserId(username);
         try (Connection conn = getConnection();
              PreparedStatement search = conn.prepareStatement("SELECT pu.writer_id, pu.pending_bytes, uu.total_bytes, uu.errored " +
@@ -184,7 +187,7 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public void addWriter(String owner, PublicKeyHash writer) {
+    public synchronized void addWriter(String owner, PublicKeyHash writer) {
         try (Connection conn = getConnection(true, false);
              PreparedStatement writerInsert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO writers (key_hash) VALUES(?)"));
              PreparedStatement userSelect = conn.prepareStatement("SELECT id FROM users WHERE name = ?;");
@@ -221,7 +224,7 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public Set<PublicKeyHash> getAllWriters() {
+    public synchronized Set<PublicKeyHash> getAllWriters() {
         try (Connection conn = getConnection();
              PreparedStatement insert = conn.prepareStatement("SELECT key_hash FROM writers;")) {
             Set<PublicKeyHash> res = new HashSet<>();
@@ -263,7 +266,7 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public WriterUsage getUsage(PublicKeyHash writer) {
+    public synchronized WriterUsage getUsage(PublicKeyHash writer) {
         String owner = getOwner(writer);
         int writerId = getWriterId(writer);
         Set<PublicKeyHash> owned = new HashSet<>();
@@ -295,7 +298,7 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public void updateWriterUsage(PublicKeyHash writer,
+    public synchronized void updateWriterUsage(PublicKeyHash writer,
                                   MaybeMultihash target,
                                   Set<PublicKeyHash> removedOwnedKeys,
                                   Set<PublicKeyHash> addedOwnedKeys,
@@ -25,27 +25,27 @@ public class RamUsageStore implements UsageStore {
     }
 
     @Override
-    public void addUserIfAbsent(String username) {
+    public synchronized void addUserIfAbsent(String username) {
         state.usage.putIfAbsent(username, new UserUsage(0));
     }
 
     @Override
-    public UserUsage getUsage(String owner) {
+    public synchronized UserUsage getUsage(String owner) {
         return state.usage.get(owner);
     }
 
     @Override
-    public void addWriter(String owner, PublicKeyHash writer) {
+    public synchronized void addWriter(String owner, PublicKeyHash writer) {
         state.currentView.computeIfAbsent(writer, k -> new WriterUsage(owner, MaybeMultihash.empty(), 0, Collections.emptySet()));
     }
 
     @Override
-    public Set<PublicKeyHash> getAllWriters() {
-        return state.currentView.keySet();
+    public synchronized Set<PublicKeyHash> getAllWriters() {
+        return new HashSet<>(state.currentView.keySet());
     }
 
     @Override
-    public void confirmUsage(String owner, PublicKeyHash writer, long usageDelta, boolean errored) {
+    public synchronized void confirmUsage(String owner, PublicKeyHash writer, long usageDelta, boolean errored) {
         UserUsage usage = state.usage.get(owner);
         usage.confirmUsage(writer, usageDelta);
         usage.clearPending(writer);
@@ -53,21 +53,21 @@ public class RamUsageStore implements UsageStore {
     }
 
     @Override
-    public WriterUsage getUsage(PublicKeyHash writer) {
+    public synchronized WriterUsage getUsage(PublicKeyHash writer) {
         return state.currentView.get(writer);
     }
 
     @Override
-    public void updateWriterUsage(PublicKeyHash writer,
-                                  MaybeMultihash target,
-                                  Set<PublicKeyHash> removedOwnedKeys,
-                                  Set<PublicKeyHash> addedOwnedKeys,
-                                  long retainedStorage) {
+    public synchronized void updateWriterUsage(PublicKeyHash writer,
+                                               MaybeMultihash target,
+                                               Set<PublicKeyHash> removedOwnedKeys,
+                                               Set<PublicKeyHash> addedOwnedKeys,
+                                               long retainedStorage) {
         state.currentView.get(writer).update(target, removedOwnedKeys, addedOwnedKeys, retainedStorage);
     }
 
     @Override
-    public void addPendingUsage(String username, PublicKeyHash writer, int size) {
+    public synchronized void addPendingUsage(String username, PublicKeyHash writer, int size) {
         state.usage.get(username).addPending(writer, size);
     }
 
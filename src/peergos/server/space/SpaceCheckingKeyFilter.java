@@ -1,6 +1,6 @@
 package peergos.server.space;
 
-import java.util.concurrent.atomic.*;
+import io.prometheus.client.*;
 import java.util.logging.*;
 
 import peergos.server.storage.admin.*;
@@ -20,6 +20,7 @@ import peergos.shared.util.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.Collectors;
 
 /** This class checks whether a given user is using more storage space than their quota
@@ -28,35 +29,45 @@ import java.util.stream.Collectors;
 public class SpaceCheckingKeyFilter implements SpaceUsage {
     private static final Logger LOG = Logging.LOG();
     private static final long USAGE_TOLERANCE = 1024 * 1024;
+    private static final Gauge writersToCheck = Gauge.build()
+            .name("usage_recalculation_writers")
+            .help("Number of writers to check in the current usage recalculation")
+            .register();
+    private static final Gauge writersChecked = Gauge.build()
+            .name("usage_recalculation_writers_checked")
+            .help("Number of writers checked so far in the current usage recalculation")
+            .register();
+    private static final Gauge writersUpdating = Gauge.build()
+            .name("usage_recalculation_writers_in_progress")
+            .help("Number of writers currently being checked in the usage recalculation")
+            .register();
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private final Hasher hasher;
     private final QuotaAdmin quotaAdmin;
     private final UsageStore usageStore;
-    private final AtomicBoolean isRunning = new AtomicBoolean(true);
-    private final BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+    private final BiPredicate<PublicKeyHash, PublicKeyHash> awaitPendingEvents;
 
+    /**
+     *
+     * @param awaitPendingEvents waits, with a timeout, until there are no core node or mutable pointer events for an
+     *                           owner and writer waiting to be accepted, and returns whether there were none left
+     */
     public SpaceCheckingKeyFilter(CoreNode core,
                                   MutablePointers mutable,
                                   ContentAddressedStorage dht,
                                   Hasher hasher,
                                   QuotaAdmin quotaAdmin,
-                                  UsageStore usageStore) {
+                                  UsageStore usageStore,
+                                  BiPredicate<PublicKeyHash, PublicKeyHash> awaitPendingEvents) {
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
         this.hasher = hasher;
         this.quotaAdmin = quotaAdmin;
         this.usageStore = usageStore;
-        new Thread(() -> {
-            while (isRunning.get()) {
-                try {
-                    MutableEvent event = mutableQueue.take();
-                    processMutablePointerEvent(event);
-                } catch (InterruptedException e) {}
-            }
-        }, "SpaceCheckingKeyFilter").start();
+        this.awaitPendingEvents = awaitPendingEvents;
         //add shutdown-hook to call close
         Runtime.getRuntime().addShutdownHook(new Thread(this::close, "SpaceChecker shutdown"));
     }
@@ -65,7 +76,6 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
      * Write current view of usages to this.statePath, completing any pending operations
      */
     private synchronized void close() {
-        isRunning.set(false);
         usageStore.close();
     }
 
@@ -101,63 +111,138 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         }
     }
 
+    /** Bring the stored usage of every local writer up to date with its current pointer target, using a pool of
+     *  worker threads.
+     *
+     *  Each writer's usage is stored along with the root it was calculated from, so writers whose root hasn't changed
+     *  are skipped and an interrupted recalculation resumes where it stopped. Writers of users with pending writes
+     *  are recalculated first.
+     *
+     * @param workers the number of writers to recalculate in parallel
+     */
     public static void update(UsageStore store,
                               QuotaAdmin quotas,
                               CoreNode core,
                               MutablePointers mutable,
                               ContentAddressedStorage dht,
-                              Hasher hasher) {
-        Logging.LOG().info("Checking for updated usage for users...");
-        List<String> localUsernames = quotas.getLocalUsernames();
-        for (String username : localUsernames) {
-            store.addUserIfAbsent(username);
-            Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).join();
-            if (identity.isPresent())
-                store.addWriter(username, identity.get());
-        }
+                              Hasher hasher,
+                              int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("Usage recalculation needs at least one worker!");
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "Usage recalculation");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Logging.LOG().info("Checking for updated usage for users...");
+            List<String> localUsernames = quotas.getLocalUsernames();
+            runAll(pool, localUsernames.stream()
+                    .map(username -> (Runnable) () -> {
+                        store.addUserIfAbsent(username);
+                        Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).join();
+                        if (identity.isPresent())
+                            store.addWriter(username, identity.get());
+                    }).collect(Collectors.toList()));
 
-        Logging.LOG().info("Checking for updated mutable pointers...");
-        long t1 = System.currentTimeMillis();
-        Set<PublicKeyHash> writers = store.getAllWriters();
-        for (PublicKeyHash writerKey : writers) {
-            WriterUsage writerUsage = store.getUsage(writerKey);
-            Logging.LOG().info("Checking for updates from user: " + writerUsage.owner + ", writer key: " + writerKey);
+            Logging.LOG().info("Checking for updated mutable pointers...");
+            long t1 = System.currentTimeMillis();
+            List<PublicKeyHash> writers = prioritiseUsersWithPendingWrites(store, store.getAllWriters());
+            writersToCheck.set(writers.size());
+            writersChecked.set(0);
+            writersUpdating.set(0);
+            // a writer can also be reached as a new owned key of another writer, so claim each before processing it
+            Set<PublicKeyHash> claimed = ConcurrentHashMap.newKeySet();
+            runAll(pool, writers.stream()
+                    .map(writerKey -> (Runnable) () -> {
+                        writersUpdating.inc();
+                        try {
+                            updateWriter(store, writerKey, claimed, mutable, dht, hasher);
+                        } finally {
+                            writersUpdating.dec();
+                            writersChecked.inc();
+                        }
+                    }).collect(Collectors.toList()));
+            long t2 = System.currentTimeMillis();
+            Logging.LOG().info(LocalDateTime.now() + " Finished updating space usage for all usernames in " + (t2 - t1)/1000 + " s");
+        } finally {
+            pool.shutdown();
+        }
+    }
 
+    private static void runAll(ExecutorService pool, List<Runnable> tasks) {
+        List<Future<?>> futures = tasks.stream()
+                .map(pool::submit)
+                .collect(Collectors.toList());
+        for (Future<?> f : futures) {
             try {
-                PublicKeyHash owner = writerKey; //NB: owner is a dummy value
-                MaybeMultihash rootHash = mutable.getPointerTarget(owner, writerKey, dht).join();
-                boolean isChanged = ! writerUsage.target().equals(rootHash);
-                if (isChanged) {
-                    Logging.LOG().info("Root hash changed from " + writerUsage.target() + " to " + rootHash);
-                    long updatedSize = dht.getRecursiveBlockSize(rootHash.get()).get();
-                    long deltaUsage = updatedSize - writerUsage.directRetainedStorage();
-                    store.confirmUsage(writerUsage.owner, writerKey, deltaUsage, false);
-                    Set<PublicKeyHash> directOwnedKeys = WriterData.getDirectOwnedKeys(owner, writerKey, mutable, dht, hasher).join();
-                    List<PublicKeyHash> newOwnedKeys = directOwnedKeys.stream()
-                            .filter(key -> !writerUsage.ownedKeys().contains(key))
-                            .collect(Collectors.toList());
-                    for (PublicKeyHash newOwnedKey : newOwnedKeys) {
-                        store.addWriter(writerUsage.owner, newOwnedKey);
+                f.get();
+            } catch (InterruptedException | ExecutionException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private static List<PublicKeyHash> prioritiseUsersWithPendingWrites(UsageStore store, Set<PublicKeyHash> writers) {
+        Map<String, Boolean> hasPending = new HashMap<>();
+        List<PublicKeyHash> pendingFirst = new ArrayList<>();
+        List<PublicKeyHash> rest = new ArrayList<>();
+        for (PublicKeyHash writer : writers) {
+            String owner = store.getUsage(writer).owner;
+            boolean pending = hasPending.computeIfAbsent(owner, o -> {
+                UserUsage usage = store.getUsage(o);
+                return usage.expectedUsage() != usage.totalUsage();
+            });
+            (pending ? pendingFirst : rest).add(writer);
+        }
+        pendingFirst.addAll(rest);
+        return pendingFirst;
+    }
+
+    private static void updateWriter(UsageStore store,
+                                     PublicKeyHash writerKey,
+                                     Set<PublicKeyHash> claimed,
+                                     MutablePointers mutable,
+                                     ContentAddressedStorage dht,
+                                     Hasher hasher) {
+        if (! claimed.add(writerKey))
+            return;
+        WriterUsage writerUsage = store.getUsage(writerKey);
+        Logging.LOG().info("Checking for updates from user: " + writerUsage.owner + ", writer key: " + writerKey);
+
+        try {
+            PublicKeyHash owner = writerKey; //NB: owner is a dummy value
+            MaybeMultihash rootHash = mutable.getPointerTarget(owner, writerKey, dht).join();
+            boolean isChanged = ! writerUsage.target().equals(rootHash);
+            if (isChanged) {
+                Logging.LOG().info("Root hash changed from " + writerUsage.target() + " to " + rootHash);
+                long updatedSize = dht.getRecursiveBlockSize(rootHash.get()).get();
+                long deltaUsage = updatedSize - writerUsage.directRetainedStorage();
+                store.confirmUsage(writerUsage.owner, writerKey, deltaUsage, false);
+                Set<PublicKeyHash> directOwnedKeys = WriterData.getDirectOwnedKeys(owner, writerKey, mutable, dht, hasher).join();
+                List<PublicKeyHash> newOwnedKeys = directOwnedKeys.stream()
+                        .filter(key -> !writerUsage.ownedKeys().contains(key))
+                        .collect(Collectors.toList());
+                for (PublicKeyHash newOwnedKey : newOwnedKeys) {
+                    store.addWriter(writerUsage.owner, newOwnedKey);
+                    if (claimed.add(newOwnedKey))
                         processMutablePointerEvent(store, owner, newOwnedKey, MaybeMultihash.empty(),
                                 mutable.getPointerTarget(owner, newOwnedKey, dht).get(), mutable, dht, hasher);
-                    }
-                    HashSet<PublicKeyHash> removedOwnedKeys = new HashSet<>(writerUsage.ownedKeys());
-                    removedOwnedKeys.removeAll(directOwnedKeys);
-                    store.updateWriterUsage(writerKey, rootHash, removedOwnedKeys, new HashSet<>(newOwnedKeys), updatedSize);
-                    Logging.LOG().info("Updated space used by " + writerKey + " to " + updatedSize);
                 }
-            } catch (Throwable t) {
-                Logging.LOG().log(Level.WARNING, "Failed calculating usage for " + writerUsage.owner, t);
+                HashSet<PublicKeyHash> removedOwnedKeys = new HashSet<>(writerUsage.ownedKeys());
+                removedOwnedKeys.removeAll(directOwnedKeys);
+                store.updateWriterUsage(writerKey, rootHash, removedOwnedKeys, new HashSet<>(newOwnedKeys), updatedSize);
+                Logging.LOG().info("Updated space used by " + writerKey + " to " + updatedSize);
             }
+        } catch (Throwable t) {
+            Logging.LOG().log(Level.WARNING, "Failed calculating usage for " + writerUsage.owner, t);
         }
-        long t2 = System.currentTimeMillis();
-        Logging.LOG().info(LocalDateTime.now() + " Finished updating space usage for all usernames in " + (t2 - t1)/1000 + " s");
     }
 
     public void accept(CorenodeEvent event) {
         usageStore.addUserIfAbsent(event.username);
         usageStore.addWriter(event.username, event.keyHash);
-        ForkJoinPool.commonPool().submit(() -> processCorenodeEvent(event.username, event.keyHash));
+        processCorenodeEvent(event.username, event.keyHash);
     }
 
     /** Update our view of the world because a user has changed their public key (or registered)
@@ -185,24 +270,12 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         }
     }
 
+    /** Update usage for a writer's new root, and start tracking any keys it now owns. This is called asynchronously
+     *  after the pointer update, and only for the latest update of a writer when there are several waiting.
+     *
+     * @param event
+     */
     public void accept(MutableEvent event) {
-        mutableQueue.add(event);
-        try {
-            HashCasPair hashCasPair = dht.getSigningKey(event.writer)
-                    .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
-                            .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            Set<PublicKeyHash> updatedOwned =
-                    WriterData.getDirectOwnedKeys(event.writer, hashCasPair.updated, dht, hasher).join();
-            WriterUsage current = usageStore.getUsage(event.writer);
-            for (PublicKeyHash owned : updatedOwned) {
-                usageStore.addWriter(current.owner, owned);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void processMutablePointerEvent(MutableEvent event) {
         try {
             HashCasPair hashCasPair = dht.getSigningKey(event.writer)
                     .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
@@ -282,7 +355,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
 
     @Override
     public CompletableFuture<Long> getUsage(PublicKeyHash owner) {
-        WriterUsage writerUsage = usageStore.getUsage(owner);
+        WriterUsage writerUsage = getWriterUsage(owner, owner);
         if (writerUsage == null)
             return Futures.errored(new IllegalStateException("Unknown identity key: " + owner));
         UserUsage usage = usageStore.getUsage(writerUsage.owner);
@@ -299,7 +372,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     @Override
     public CompletableFuture<Long> getQuota(PublicKeyHash owner, byte[] signedTime) {
         TimeLimited.isAllowedTime(signedTime, 120, dht, owner);
-        WriterUsage writerUsage = usageStore.getUsage(owner);
+        WriterUsage writerUsage = getWriterUsage(owner, owner);
         if (writerUsage == null)
             return Futures.errored(new IllegalStateException("Unknown identity key: " + owner));
         return quotaAdmin.getQuota(owner, signedTime);
@@ -310,8 +383,26 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         return quotaAdmin.requestQuota(owner, signedRequest);
     }
 
-    public boolean allowWrite(PublicKeyHash writer, int size) {
-        WriterUsage writerUsage = usageStore.getUsage(writer);
+    /** Writers are registered asynchronously, after the pointer update or key change which introduces them, so an
+     *  unknown writer may just not have been processed yet.
+     *
+     * @param owner the claimed owner of the writer, whose pending events may introduce it
+     * @param writer
+     * @return the usage of the writer, or null if it is still unknown after its owner's pending events have been processed
+     */
+    private WriterUsage getWriterUsage(PublicKeyHash owner, PublicKeyHash writer) {
+        try {
+            WriterUsage writerUsage = usageStore.getUsage(writer);
+            if (writerUsage != null)
+                return writerUsage;
+        } catch (IllegalStateException unknownWriter) {}
+        if (! awaitPendingEvents.test(owner, writer))
+            LOG.info("Timed out waiting for pending events of writer " + writer);
+        return usageStore.getUsage(writer);
+    }
+
+    public boolean allowWrite(PublicKeyHash owner, PublicKeyHash writer, int size) {
+        WriterUsage writerUsage = getWriterUsage(owner, writer);
         if (writerUsage == null)
             throw new IllegalStateException("Unknown writing key hash: " + writer);
 
@@ -322,7 +413,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         if ((! errored && expectedUsage + size > quota) || (errored && expectedUsage + size > quota + USAGE_TOLERANCE)) {
             long pending = usage.getPending(writer);
             usageStore.confirmUsage(writerUsage.owner, writer, 0, true);
-            throw new IllegalStateException("Storage quota reached! \nUsed "
+            throw new IllegalStateException(HttpRejectedException.QUOTA_REACHED + " \nUsed "
                     + usage.totalUsage() + " out of " + quota + " bytes. Rejecting write of size " + (size + pending) + ". \n" +
                     "Please delete some files or request more space.");
         }
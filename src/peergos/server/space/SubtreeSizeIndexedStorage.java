@@ -0,0 +1,101 @@
+package peergos.server.space;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Answers recursive size queries using a persistent index of the size of the subtree under each block.
+ *
+ *  A subtree's size never changes, so once a tree has been traversed, sizing a new version of it only reads the blocks
+ *  which are not in the index yet, i.e. the ones that changed. The change in size between two roots is still found by
+ *  diffing their links pairwise, so only changed children are visited. A changed pair that is already indexed is
+ *  answered from the index, and an added or removed child is sized using the index. Subtrees with blocks missing
+ *  locally are never indexed. The sizes found while sizing a tree are written to the index in groups.
+ */
+public class SubtreeSizeIndexedStorage extends DelegatingStorage {
+    private static final int FLUSH_SIZE = 1000;
+
+    private final ContentAddressedStorage target;
+    private final JdbcSubtreeSizes index;
+
+    public SubtreeSizeIndexedStorage(ContentAddressedStorage target, JdbcSubtreeSizes index) {
+        super(target);
+        this.target = target;
+        this.index = index;
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return new SubtreeSizeIndexedStorage(target.directToOrigin(), index);
+    }
+
+    @Override
+    public CompletableFuture<Long> getRecursiveBlockSize(Multihash block) {
+        Map<Multihash, Long> found = new ConcurrentHashMap<>();
+        return subtreeSize(block, found).thenApply(p -> {
+            flush(found);
+            return p.left;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> getChangeInContainedSize(Multihash original, Multihash updated) {
+        Optional<Long> before = index.get(original);
+        if (before.isPresent()) {
+            Optional<Long> after = index.get(updated);
+            if (after.isPresent())
+                return Futures.of(after.get() - before.get());
+        }
+        return super.getChangeInContainedSize(original, updated);
+    }
+
+    /** Write the sizes found so far to the index, after which they are looked up there.
+     */
+    private void flush(Map<Multihash, Long> found) {
+        Map<Multihash, Long> toWrite = new HashMap<>(found);
+        index.putAll(toWrite);
+        found.keySet().removeAll(toWrite.keySet());
+    }
+
+    /**
+     *
+     * @param block
+     * @param found collects the sizes of complete subtrees which are not in the index yet
+     * @return the size of the subtree, and whether every block in it was present
+     */
+    private CompletableFuture<Pair<Long, Boolean>> subtreeSize(Multihash block, Map<Multihash, Long> found) {
+        if (block instanceof Cid && ((Cid) block).codec == Cid.Codec.Raw) // raw blocks have no links
+            return getSize(block).thenApply(size -> new Pair<>((long) size.orElse(0), size.isPresent()));
+        Long sized = found.get(block);
+        if (sized != null)
+            return Futures.of(new Pair<>(sized, true));
+        Optional<Long> known = index.get(block);
+        if (known.isPresent())
+            return Futures.of(new Pair<>(known.get(), true));
+        return getLinks(block).thenCompose(links -> {
+            List<CompletableFuture<Pair<Long, Boolean>>> children = links.stream()
+                    .filter(m -> ! m.isIdentity())
+                    .map(child -> subtreeSize(child, found))
+                    .collect(Collectors.toList());
+            return getSize(block).thenCompose(size -> Futures.combineAllInOrder(children).thenApply(subtrees -> {
+                long total = size.orElse(0);
+                boolean complete = size.isPresent();
+                for (Pair<Long, Boolean> subtree : subtrees) {
+                    total += subtree.left;
+                    complete &= subtree.right;
+                }
+                if (complete) {
+                    found.put(block, total);
+                    if (found.size() >= FLUSH_SIZE)
+                        flush(found);
+                }
+                return new Pair<>(total, complete);
+            }));
+        });
+    }
+}
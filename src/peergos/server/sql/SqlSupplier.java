@@ -79,6 +79,13 @@ public interface SqlSupplier {
                 ");";
     }
 
+    default String createSubtreeSizesTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS subtreesizes (" +
+                "cid " + getByteArrayType() + " PRIMARY KEY NOT NULL," +
+                "size BIGINT NOT NULL" +
+                ");";
+    }
+
     default void createTable(String sqlTableCreate, Connection conn) throws SQLException {
         Statement createStmt = conn.createStatement();
         createStmt.executeUpdate(sqlTableCreate);
@@ -0,0 +1,227 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** A compact, append only index of block hashes (and their sizes if known) with a concurrent mark bit per block.
+ *
+ *  Keys are the serialized multihash/cid bytes, packed into large byte pages, and looked up through an open
+ *  addressing table of entry indices. This uses a small fraction of the memory of a collection of Multihash objects
+ *  and gives constant time lookups, which makes it suitable for marking reachability over tens of millions of blocks.
+ *
+ *  Adding entries must be done from a single thread, and must happen before any concurrent calls to indexOf or mark.
+ */
+public class BlockHashIndex {
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    private final List<byte[]> pages = new ArrayList<>();
+    private int pageOffset = PAGE_SIZE;
+
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    // -1 means unknown
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // slot values are entry index + 1, 0 means empty
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    private AtomicLongArray marks = new AtomicLongArray(INITIAL_CAPACITY / 64);
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param hash
+     * @return the index of this hash, adding it if not already present
+     */
+    public int add(Multihash hash) {
+        return add(hash, Optional.empty());
+    }
+
+    /**
+     *
+     * @param hash
+     * @param blockSize
+     * @return the index of this hash, adding it if not already present
+     */
+    public int add(Multihash hash, Optional<Long> blockSize) {
+        byte[] key = hash.toBytes();
+        int h = hash(key);
+        int slot = findSlot(key, h);
+        if (table[slot] != 0)
+            return table[slot] - 1;
+
+        if (size == offsets.length)
+            growEntries();
+        int index = size++;
+        offsets[index] = append(key);
+        hashes[index] = h;
+        sizes[index] = blockSize.map(Long::intValue).orElse(-1);
+        table[slot] = index + 1;
+        if (size > table.length * MAX_LOAD)
+            rehash(table.length * 2);
+        return index;
+    }
+
+    /**
+     *
+     * @param hash
+     * @return the index of this hash or -1 if it is not present
+     */
+    public int indexOf(Multihash hash) {
+        byte[] key = hash.toBytes();
+        int slot = findSlot(key, hash(key));
+        return table[slot] - 1;
+    }
+
+    public Multihash get(int index) {
+        return Cid.cast(getKey(index));
+    }
+
+    /**
+     *
+     * @param index
+     * @return the size of the block at this index, if it was known when it was added
+     */
+    public Optional<Integer> getSize(int index) {
+        int blockSize = sizes[index];
+        return blockSize < 0 ? Optional.empty() : Optional.of(blockSize);
+    }
+
+    /**
+     *
+     * @param index
+     * @return true if this call changed the mark on the entry
+     */
+    public boolean mark(int index) {
+        int word = index >>> 6;
+        long bit = 1L << (index & 63);
+        while (true) {
+            long current = marks.get(word);
+            if ((current & bit) != 0)
+                return false;
+            if (marks.compareAndSet(word, current, current | bit))
+                return true;
+        }
+    }
+
+    public boolean isMarked(int index) {
+        return (marks.get(index >>> 6) & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     *
+     * @param from
+     * @return the index of the next unmarked entry at or after from, or -1 if there are none
+     */
+    public int nextUnmarked(int from) {
+        for (int i = from; i < size; i++)
+            if (! isMarked(i))
+                return i;
+        return -1;
+    }
+
+    public long markedCount() {
+        long total = 0;
+        for (int i = 0; i < marks.length(); i++)
+            total += Long.bitCount(marks.get(i));
+        return total;
+    }
+
+    private int findSlot(byte[] key, int h) {
+        int mask = table.length - 1;
+        int slot = h & mask;
+        while (true) {
+            int entry = table[slot];
+            if (entry == 0)
+                return slot;
+            if (hashes[entry - 1] == h && keyEquals(entry - 1, key))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int index, byte[] key) {
+        long offset = offsets[index];
+        byte[] page = pages.get((int) (offset >>> PAGE_BITS));
+        int pos = (int) (offset & (PAGE_SIZE - 1));
+        int len = ((page[pos] & 0xff) << 8) | (page[pos + 1] & 0xff);
+        if (len != key.length)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (page[pos + 2 + i] != key[i])
+                return false;
+        return true;
+    }
+
+    private byte[] getKey(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " outside block index of size " + size);
+        long offset = offsets[index];
+        byte[] page = pages.get((int) (offset >>> PAGE_BITS));
+        int pos = (int) (offset & (PAGE_SIZE - 1));
+        int len = ((page[pos] & 0xff) << 8) | (page[pos + 1] & 0xff);
+        return Arrays.copyOfRange(page, pos + 2, pos + 2 + len);
+    }
+
+    private long append(byte[] key) {
+        if (key.length > 0xffff)
+            throw new IllegalStateException("Block hash too large to index: " + key.length + " bytes");
+        if (pageOffset + 2 + key.length > PAGE_SIZE) {
+            pages.add(new byte[PAGE_SIZE]);
+            pageOffset = 0;
+        }
+        byte[] page = pages.get(pages.size() - 1);
+        page[pageOffset] = (byte) (key.length >> 8);
+        page[pageOffset + 1] = (byte) key.length;
+        System.arraycopy(key, 0, page, pageOffset + 2, key.length);
+        long res = ((long) (pages.size() - 1) << PAGE_BITS) | pageOffset;
+        pageOffset += 2 + key.length;
+        return res;
+    }
+
+    private void growEntries() {
+        int newLength = offsets.length * 2;
+        offsets = Arrays.copyOf(offsets, newLength);
+        hashes = Arrays.copyOf(hashes, newLength);
+        sizes = Arrays.copyOf(sizes, newLength);
+        AtomicLongArray newMarks = new AtomicLongArray(newLength / 64);
+        for (int i = 0; i < marks.length(); i++)
+            newMarks.set(i, marks.get(i));
+        marks = newMarks;
+    }
+
+    private void rehash(int newCapacity) {
+        int[] newTable = new int[newCapacity];
+        int mask = newCapacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hashes[i] & mask;
+            while (newTable[slot] != 0)
+                slot = (slot + 1) & mask;
+            newTable[slot] = i + 1;
+        }
+        table = newTable;
+    }
+
+    private static int hash(byte[] key) {
+        // The trailing bytes of a multihash are the (uniformly distributed) digest
+        int h = 0;
+        int start = Math.max(0, key.length - 16);
+        for (int i = start; i < key.length; i++)
+            h = 31 * h + key[i];
+        h ^= key.length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -17,8 +17,28 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
 
     Stream<Multihash> getAllBlockHashes();
 
+    /** List all blocks, including their sizes and modification times if the underlying listing provides them without
+     *  extra requests.
+     *
+     * @return
+     */
+    default Stream<ListedBlock> getAllBlocks() {
+        return getAllBlockHashes().map(h -> new ListedBlock(h, Optional.empty(), Optional.empty()));
+    }
+
     void delete(Multihash hash);
 
+    /** Delete a batch of blocks. Implementations with a native bulk delete should override this.
+     *
+     * @param hashes
+     * @return the blocks which could not be deleted
+     */
+    default List<Multihash> bulkDelete(List<Multihash> hashes) {
+        for (Multihash hash : hashes)
+            delete(hash);
+        return Collections.emptyList();
+    }
+
     List<Multihash> getOpenTransactionBlocks();
 
     class HTTP extends ContentAddressedStorage.HTTP implements DeletableContentAddressedStorage {
@@ -1,33 +1,80 @@
 package peergos.server.storage;
 
+import io.prometheus.client.*;
 import peergos.server.corenode.*;
 import peergos.shared.*;
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
 public class GarbageCollector {
     private static final Logger LOG = Logger.getGlobal();
+    private static final int DELETE_BATCH_SIZE = 1000; // the maximum number of keys in an S3 bulk delete
+
+    private static final Gauge listedBlocks = Gauge.build()
+            .name("gc_listed_blocks")
+            .help("Number of blocks listed in the block store during the current or last GC")
+            .register();
+    private static final Gauge reachableBlocks = Gauge.build()
+            .name("gc_reachable_blocks")
+            .help("Number of listed blocks marked reachable during the current or last GC")
+            .register();
+    private static final Gauge phaseDuration = Gauge.build()
+            .labelNames("phase")
+            .name("gc_phase_seconds")
+            .help("Duration of each phase of the last GC")
+            .register();
+    private static final Counter deletedBlocksCounter = Counter.build()
+            .name("gc_deleted_blocks")
+            .help("Number of blocks deleted by GC")
+            .register();
+    private static final Counter deletedBytesCounter = Counter.build()
+            .name("gc_deleted_bytes")
+            .help("Number of bytes freed by GC")
+            .register();
 
     private final DeletableContentAddressedStorage storage;
     private final JdbcIpnsAndSocial pointers;
+    private final int markParallelism, deleteParallelism;
+    private final Consumer<List<Multihash>> onDeleted;
+
+    public GarbageCollector(DeletableContentAddressedStorage storage,
+                            JdbcIpnsAndSocial pointers,
+                            int markParallelism,
+                            int deleteParallelism) {
+        this(storage, pointers, markParallelism, deleteParallelism, deleted -> {});
+    }
 
-    public GarbageCollector(DeletableContentAddressedStorage storage, JdbcIpnsAndSocial pointers) {
+    /**
+     *
+     * @param onDeleted is called with each batch of blocks which have been deleted
+     */
+    public GarbageCollector(DeletableContentAddressedStorage storage,
+                            JdbcIpnsAndSocial pointers,
+                            int markParallelism,
+                            int deleteParallelism,
+                            Consumer<List<Multihash>> onDeleted) {
         this.storage = storage;
         this.pointers = pointers;
+        this.markParallelism = markParallelism;
+        this.deleteParallelism = deleteParallelism;
+        this.onDeleted = onDeleted;
     }
 
     public synchronized void collect(Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
-        collect(storage, pointers, snapshotSaver);
+        collect(storage, pointers, markParallelism, deleteParallelism, snapshotSaver, onDeleted);
     }
 
     public void start(long periodMillis, Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
@@ -48,29 +95,51 @@ public class GarbageCollector {
      *
      * @param storage
      * @param pointers
+     * @param markParallelism the maximum number of concurrent block reads when marking
+     * @param deleteParallelism the maximum number of concurrent bulk deletes
      * @param snapshotSaver
      * @return
      */
     public static void collect(DeletableContentAddressedStorage storage,
                                JdbcIpnsAndSocial pointers,
+                               int markParallelism,
+                               int deleteParallelism,
                                Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
-        System.out.println("Starting blockstore garbage collection on node " + storage.id().join() + "...");
-        // TODO: do this more efficiently with a bloom filter, and actual streaming and multithreading
+        collect(storage, pointers, markParallelism, deleteParallelism, snapshotSaver, deleted -> {});
+    }
+
+    /**
+     *
+     * @param onDeleted is called with each batch of blocks which have been deleted
+     */
+    public static void collect(DeletableContentAddressedStorage storage,
+                               JdbcIpnsAndSocial pointers,
+                               int markParallelism,
+                               int deleteParallelism,
+                               Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver,
+                               Consumer<List<Multihash>> onDeleted) {
+        LOG.info("Starting blockstore garbage collection on node " + storage.id().join() + "...");
         long t0 = System.nanoTime();
-        List<Multihash> present = storage.getAllBlockHashes().collect(Collectors.toList());
+        BlockHashIndex present = new BlockHashIndex();
+        listedBlocks.set(0);
+        reachableBlocks.set(0);
+        storage.getAllBlocks().forEach(b -> {
+            present.add(b.hash, b.size);
+            listedBlocks.inc();
+        });
         long t1 = System.nanoTime();
-        System.out.println("Listing block store took " + (t1-t0)/1_000_000_000 + "s");
+        logPhase("list", t1 - t0);
 
         List<Multihash> pending = storage.getOpenTransactionBlocks();
         long t2 = System.nanoTime();
-        System.out.println("Listing pending blocks took " + (t2-t1)/1_000_000_000 + "s");
+        logPhase("pending", t2 - t1);
 
         // This pointers call must happen AFTER the previous two for correctness
         Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
         long t3 = System.nanoTime();
-        System.out.println("Listing pointers took " + (t3-t2)/1_000_000_000 + "s");
+        logPhase("pointers", t3 - t2);
 
-        BitSet reachable = new BitSet(present.size());
+        List<Multihash> roots = new ArrayList<>();
         for (PublicKeyHash writerHash : allPointers.keySet()) {
             byte[] signedRawCas = allPointers.get(writerHash);
             PublicSigningKey writer = storage.getSigningKey(writerHash).join().get();
@@ -78,44 +147,180 @@ public class GarbageCollector {
             HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
             MaybeMultihash updated = cas.updated;
             if (updated.isPresent())
-                markReachable(storage, updated.get(), present, reachable);
+                roots.add(updated.get());
         }
         for (Multihash additional : pending) {
             int index = present.indexOf(additional);
-            if (index >= 0)
-                reachable.set(index);
+            if (index >= 0 && present.mark(index))
+                reachableBlocks.inc();
         }
+        markReachable(storage, roots, present, markParallelism);
         long t4 = System.nanoTime();
-        System.out.println("Marking reachable took " + (t4-t3)/1_000_000_000 + "s");
+        logPhase("mark", t4 - t3);
 
         // Save pointers snapshot
         snapshotSaver.apply(allPointers.entrySet().stream()).join();
 
-        long deletedBlocks = 0;
-        long deletedSize = 0;
-        for (int i = reachable.nextClearBit(0); i >= 0 && i < present.size(); i = reachable.nextClearBit(i + 1)) {
-            Multihash hash = present.get(i);
-            try {
-                int size = storage.getSize(hash).join().get();
-                deletedBlocks++;
-                deletedSize += size;
-                storage.delete(hash);
-            } catch (Exception e) {
-                LOG.info("GC Unable to read " + hash + " during delete phase, ignoring block and continuing.");
+        Pair<Long, Long> deleted = deleteUnreachable(storage, present, deleteParallelism, onDeleted);
+        long deletedBlocks = deleted.left;
+        long deletedSize = deleted.right;
+        long t5 = System.nanoTime();
+        logPhase("delete", t5 - t4);
+        LOG.info("GC complete. Freed " + deletedBlocks + " blocks totalling " + deletedSize + " bytes in " + (t5-t0)/1_000_000_000 + "s");
+    }
+
+    private static void logPhase(String phase, long durationNanos) {
+        phaseDuration.labels(phase).set(durationNanos / 1_000_000_000.0);
+        LOG.info("GC phase " + phase + " took " + durationNanos / 1_000_000_000 + "s");
+    }
+
+    /** Mark every listed block reachable from the roots, reading at most parallelism blocks concurrently.
+     *  Each subtree is only traversed once, even if it is reachable from multiple roots.
+     *
+     *  Any failure to read a block aborts the whole GC, because deleting anything after an incomplete mark phase would
+     *  lose reachable data.
+     */
+    private static void markReachable(ContentAddressedStorage storage,
+                                      List<Multihash> roots,
+                                      BlockHashIndex present,
+                                      int parallelism) {
+        if (roots.isEmpty())
+            return;
+        AtomicInteger threadCounter = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread t = new Thread(r, "GC mark " + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // Blocks not in the listing (e.g. written since we listed) still need traversing to reach listed descendants
+        Set<Multihash> visitedUnlisted = ConcurrentHashMap.newKeySet();
+        AtomicLong outstanding = new AtomicLong(0);
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        Consumer<Multihash> submit = new Consumer<>() {
+            @Override
+            public void accept(Multihash block) {
+                if (! markIfUnvisited(block, present, visitedUnlisted))
+                    return;
+                if (block instanceof Cid && ((Cid) block).codec == Cid.Codec.Raw)
+                    return; // raw blocks have no links
+                outstanding.incrementAndGet();
+                pool.execute(() -> {
+                    try {
+                        if (! done.isDone())
+                            for (Multihash link : storage.getLinks(block).join())
+                                accept(link);
+                    } catch (Throwable t) {
+                        done.completeExceptionally(t);
+                    } finally {
+                        if (outstanding.decrementAndGet() == 0)
+                            done.complete(true);
+                    }
+                });
             }
+        };
+        try {
+            outstanding.incrementAndGet();
+            roots.forEach(submit);
+            if (outstanding.decrementAndGet() == 0)
+                done.complete(true);
+            done.join();
+        } finally {
+            pool.shutdownNow();
         }
-        long t5 = System.nanoTime();
-        System.out.println("Deleting blocks took " + (t5-t4)/1_000_000_000 + "s");
-        System.out.println("GC complete. Freed " + deletedBlocks + " blocks totalling " + deletedSize + " bytes in " + (t5-t0)/1_000_000_000 + "s");
     }
 
-    private static void markReachable(ContentAddressedStorage storage, Multihash root, List<Multihash> present, BitSet reachable) {
-        int index = present.indexOf(root);
-        if (index >= 0)
-            reachable.set(index);
-        List<Multihash> links = storage.getLinks(root).join();
-        for (Multihash link : links) {
-            markReachable(storage, link, present, reachable);
+    /** Delete all unmarked blocks in batches of up to DELETE_BATCH_SIZE, with at most parallelism batches in flight.
+     *
+     * @return the number of blocks and bytes deleted
+     */
+    private static Pair<Long, Long> deleteUnreachable(DeletableContentAddressedStorage storage,
+                                                      BlockHashIndex present,
+                                                      int parallelism,
+                                                      Consumer<List<Multihash>> onDeleted) {
+        AtomicLong deletedBlocks = new AtomicLong(0);
+        AtomicLong deletedSize = new AtomicLong(0);
+        AtomicInteger threadCounter = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread t = new Thread(r, "GC delete " + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore inFlight = new Semaphore(Math.max(1, parallelism));
+        try {
+            List<Integer> batch = new ArrayList<>();
+            for (int i = present.nextUnmarked(0); i >= 0; i = present.nextUnmarked(i + 1)) {
+                batch.add(i);
+                if (batch.size() == DELETE_BATCH_SIZE) {
+                    submitDelete(storage, present, batch, pool, inFlight, deletedBlocks, deletedSize, onDeleted);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (! batch.isEmpty())
+                submitDelete(storage, present, batch, pool, inFlight, deletedBlocks, deletedSize, onDeleted);
+            // wait for all outstanding batches
+            inFlight.acquireUninterruptibly(Math.max(1, parallelism));
+        } finally {
+            pool.shutdown();
         }
+        return new Pair<>(deletedBlocks.get(), deletedSize.get());
+    }
+
+    private static void submitDelete(DeletableContentAddressedStorage storage,
+                                     BlockHashIndex present,
+                                     List<Integer> batch,
+                                     ExecutorService pool,
+                                     Semaphore inFlight,
+                                     AtomicLong deletedBlocks,
+                                     AtomicLong deletedSize,
+                                     Consumer<List<Multihash>> onDeleted) {
+        inFlight.acquireUninterruptibly();
+        pool.execute(() -> {
+            try {
+                List<Multihash> hashes = new ArrayList<>(batch.size());
+                Map<Multihash, Integer> sizes = new HashMap<>();
+                for (int index : batch) {
+                    Multihash hash = present.get(index);
+                    Optional<Integer> size = present.getSize(index);
+                    if (size.isEmpty()) {
+                        try {
+                            size = storage.getSize(hash).join();
+                        } catch (Exception e) {
+                            size = Optional.empty();
+                        }
+                        if (size.isEmpty()) {
+                            LOG.info("GC Unable to read " + hash + " during delete phase, ignoring block and continuing.");
+                            continue;
+                        }
+                    }
+                    hashes.add(hash);
+                    sizes.put(hash, size.get());
+                }
+                List<Multihash> failed = storage.bulkDelete(hashes);
+                if (! failed.isEmpty())
+                    LOG.warning("GC Unable to delete " + failed.size() + " of " + hashes.size() + " blocks in batch, continuing.");
+                for (Multihash h : failed)
+                    sizes.remove(h);
+                long batchSize = sizes.values().stream().mapToLong(x -> x).sum();
+                deletedBlocks.addAndGet(sizes.size());
+                deletedSize.addAndGet(batchSize);
+                deletedBlocksCounter.inc(sizes.size());
+                deletedBytesCounter.inc(batchSize);
+                onDeleted.accept(new ArrayList<>(sizes.keySet()));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "GC Unable to delete batch of " + batch.size() + " blocks, continuing.", e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private static boolean markIfUnvisited(Multihash block, BlockHashIndex present, Set<Multihash> visitedUnlisted) {
+        int index = present.indexOf(block);
+        if (index < 0)
+            return visitedUnlisted.add(block);
+        if (! present.mark(index))
+            return false;
+        reachableBlocks.inc();
+        return true;
     }
 }
@@ -0,0 +1,26 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.time.*;
+import java.util.*;
+
+/** A block hash as returned by a block store listing, along with any metadata the listing provided for free.
+ *
+ */
+public class ListedBlock {
+    public final Multihash hash;
+    public final Optional<Long> size;
+    public final Optional<LocalDateTime> lastModified;
+
+    public ListedBlock(Multihash hash, Optional<Long> size, Optional<LocalDateTime> lastModified) {
+        this.hash = hash;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return hash + size.map(s -> " (" + s + " bytes)").orElse("");
+    }
+}
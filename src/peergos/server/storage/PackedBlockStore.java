@@ -0,0 +1,932 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A local blockstore which appends blocks to large segment files, instead of using a file per block.
+ *
+ *  Each segment is a sequence of records: [key length][data length][key][data], where the key is the cid bytes, and a
+ *  data length of -1 marks a deletion. Blocks are located through an open addressing hash table in a memory mapped
+ *  file. The index is marked clean on close, and after an unclean shutdown it is rebuilt by scanning the segments,
+ *  which may resurrect a deleted block, if its deletion was compacted away or precedes a compacted copy of it. These
+ *  are unreachable and are removed again by the next GC.
+ *
+ *  Appends are not synced individually. Each put waits for an fsync covering its blocks, and concurrent puts share
+ *  a single fsync. Deleting blocks leaves dead records behind. Once most of a segment is dead, a background task
+ *  copies its live records to a new segment, then points the index at the copies and deletes the old segment file.
+ *  Only the final switch of the index entries holds the write lock.
+ *
+ *  A lock file stops two processes from using the same directory.
+ */
+public class PackedBlockStore implements DeletableContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".blocks";
+    private static final String INDEX_FILE = "index.map";
+    private static final String LOCK_FILE = "lock";
+    private static final int RECORD_HEADER = 8;
+    private static final int DELETED = -1;
+    public static final long DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024L;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    public static final int DEFAULT_INDEX_REGION_SIZE = 1 << 30;
+
+    private final Path root;
+    private final TransactionStore transactions;
+    private final long maxSegmentSize;
+    private final int indexRegionSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object syncLock = new Object();
+    private final Object compactionLock = new Object();
+    private final FileChannel lockFile;
+    private final Thread shutdownHook;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Packed blockstore compaction");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    private volatile boolean stopping = false;
+
+    // the following are guarded by lock
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    private final Map<Integer, Long> liveBytes = new HashMap<>();
+    private MappedIndex index;
+    private int activeSegment, nextSegment;
+    private long appended = 0;
+    private boolean closed = false;
+
+    // guarded by syncLock
+    private long synced = 0;
+
+    /**
+     *
+     * @param root
+     * @param transactions
+     * @param maxSegmentSize
+     * @param indexRegionSize the index is memory mapped in regions of this many bytes, a power of 2 of at most 1 GiB
+     */
+    public PackedBlockStore(Path root, TransactionStore transactions, long maxSegmentSize, int indexRegionSize) {
+        this.root = root;
+        this.transactions = transactions;
+        this.maxSegmentSize = maxSegmentSize;
+        this.indexRegionSize = indexRegionSize;
+        try {
+            Files.createDirectories(root);
+            lockFile = lock(root.resolve(LOCK_FILE));
+            List<Integer> existing;
+            try (Stream<Path> files = Files.list(root)) {
+                existing = files.map(p -> p.getFileName().toString())
+                        .filter(n -> n.startsWith(SEGMENT_PREFIX) && n.endsWith(SEGMENT_SUFFIX))
+                        .map(n -> Integer.parseInt(n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length())))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for (int segment : existing)
+                segments.put(segment, openSegment(segment));
+            Optional<MappedIndex> clean = MappedIndex.openIfClean(root.resolve(INDEX_FILE), indexRegionSize);
+            if (clean.isPresent()) {
+                index = clean.get();
+                index.forEachLive((slot, segment, offset, keyLength, size) ->
+                        liveBytes.merge(segment, recordSize(keyLength, size), Long::sum));
+            } else
+                rebuildIndex();
+            index.setClean(false);
+            if (segments.isEmpty())
+                segments.put(0, openSegment(0));
+            activeSegment = segments.lastKey();
+            nextSegment = activeSegment + 1;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        shutdownHook = new Thread(this::close, "Packed blockstore shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public PackedBlockStore(Path root, TransactionStore transactions, long maxSegmentSize) {
+        this(root, transactions, maxSegmentSize, DEFAULT_INDEX_REGION_SIZE);
+    }
+
+    public PackedBlockStore(Path root, TransactionStore transactions) {
+        this(root, transactions, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Take an exclusive lock on the directory, which is released when this process exits or the store is closed.
+     */
+    private static FileChannel lock(Path lockPath) throws IOException {
+        FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IllegalStateException("Packed blockstore is already in use: " + lockPath.getParent());
+        }
+        return channel;
+    }
+
+    private Path segmentPath(int segment) {
+        return root.resolve(SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static long recordSize(int keyLength, int dataLength) {
+        return RECORD_HEADER + keyLength + Math.max(dataLength, 0);
+    }
+
+    /** Recreate the index by replaying every segment in order, truncating any partially written record at the end.
+     */
+    private void rebuildIndex() throws IOException {
+        LOG.info("Rebuilding packed blockstore index in " + root);
+        Path indexPath = root.resolve(INDEX_FILE);
+        Files.deleteIfExists(indexPath);
+        index = MappedIndex.create(indexPath, MappedIndex.INITIAL_CAPACITY, indexRegionSize);
+        for (Map.Entry<Integer, FileChannel> e : segments.entrySet()) {
+            int segment = e.getKey();
+            FileChannel channel = e.getValue();
+            long size = channel.size();
+            long offset = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (offset + RECORD_HEADER <= size) {
+                header.clear();
+                readFully(channel, header, offset);
+                header.flip();
+                int keyLength = header.getInt();
+                int dataLength = header.getInt();
+                long end = offset + recordSize(keyLength, dataLength);
+                if (keyLength <= 0 || end > size)
+                    break;
+                byte[] key = new byte[keyLength];
+                readFully(channel, ByteBuffer.wrap(key), offset + RECORD_HEADER);
+                if (dataLength == DELETED)
+                    removeFromIndex(key);
+                else
+                    addToIndex(key, segment, offset, dataLength);
+                offset = end;
+            }
+            if (offset < size) {
+                LOG.warning("Truncating partial record at " + offset + " in " + segmentPath(segment));
+                channel.truncate(offset);
+                channel.force(true);
+            }
+        }
+        index.force();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+    }
+
+    private static long fingerprint(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private byte[] readKey(int segment, long offset, int keyLength) throws IOException {
+        byte[] key = new byte[keyLength];
+        readFully(segments.get(segment), ByteBuffer.wrap(key), offset + RECORD_HEADER);
+        return key;
+    }
+
+    /** Must hold the lock.
+     *
+     * @return the slot holding this key, or -1
+     */
+    private long findSlot(byte[] key) throws IOException {
+        long fp = fingerprint(key);
+        long capacity = index.capacity();
+        for (long slot = Long.remainderUnsigned(fp, capacity);; slot = (slot + 1) % capacity) {
+            long slotFp = index.fingerprint(slot);
+            if (slotFp == 0)
+                return -1;
+            if (slotFp == fp && index.segment(slot) != DELETED && index.keyLength(slot) == key.length &&
+                    Arrays.equals(key, readKey(index.segment(slot), index.offset(slot), key.length)))
+                return slot;
+        }
+    }
+
+    private void addToIndex(byte[] key, int segment, long offset, int size) throws IOException {
+        long existing = findSlot(key);
+        if (existing >= 0) {
+            liveBytes.merge(index.segment(existing), -recordSize(key.length, index.size(existing)), Long::sum);
+            index.set(existing, index.fingerprint(existing), segment, offset, key.length, size);
+        } else {
+            if (index.used() + 1 > index.capacity() * MappedIndex.MAX_LOAD)
+                index = index.resize(index.capacity() * 2);
+            index.insert(fingerprint(key), segment, offset, key.length, size);
+        }
+        liveBytes.merge(segment, recordSize(key.length, size), Long::sum);
+    }
+
+    private boolean removeFromIndex(byte[] key) throws IOException {
+        long slot = findSlot(key);
+        if (slot < 0)
+            return false;
+        liveBytes.merge(index.segment(slot), -recordSize(key.length, index.size(slot)), Long::sum);
+        index.markDeleted(slot);
+        return true;
+    }
+
+    /** Must hold the write lock.
+     *
+     * @return the position of the appended record in the active segment
+     */
+    private long append(byte[] key, byte[] data) throws IOException {
+        long recordSize = recordSize(key.length, data == null ? DELETED : data.length);
+        FileChannel active = segments.get(activeSegment);
+        long position = active.size();
+        if (position > 0 && position + recordSize > maxSegmentSize) {
+            active.force(false);
+            activeSegment = nextSegment++;
+            active = openSegment(activeSegment);
+            segments.put(activeSegment, active);
+            position = 0;
+        }
+        writeFully(active, record(key, data), position);
+        appended += recordSize;
+        return position;
+    }
+
+    private static ByteBuffer record(byte[] key, byte[] data) {
+        ByteBuffer record = ByteBuffer.allocate((int) recordSize(key.length, data == null ? DELETED : data.length));
+        record.putInt(key.length);
+        record.putInt(data == null ? DELETED : data.length);
+        record.put(key);
+        if (data != null)
+            record.put(data);
+        record.flip();
+        return record;
+    }
+
+    /** Wait until everything appended so far is on disk. Callers arriving while a sync is in progress are usually
+     *  covered by the next one, so concurrent writers share fsyncs.
+     */
+    private void sync() {
+        long target;
+        lock.readLock().lock();
+        try {
+            target = appended;
+        } finally {
+            lock.readLock().unlock();
+        }
+        synchronized (syncLock) {
+            if (synced >= target)
+                return;
+            long upTo;
+            FileChannel active;
+            lock.readLock().lock();
+            try {
+                if (closed)
+                    return;
+                upTo = appended;
+                active = segments.get(activeSegment);
+            } finally {
+                lock.readLock().unlock();
+            }
+            // earlier segments were synced when they stopped being active
+            try {
+                active.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            synced = upTo;
+        }
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("PackedStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> gc() {
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return transactions.getOpenTransactionBlocks();
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return put(owner, blocks, false, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid,
+                                                     ProgressConsumer<Long> progressConsumer) {
+        return put(owner, blocks, true, tid);
+    }
+
+    private CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                   List<byte[]> blocks,
+                                                   boolean isRaw,
+                                                   TransactionId tid) {
+        List<Multihash> res = new ArrayList<>();
+        for (byte[] block : blocks) {
+            Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                    Multihash.Type.sha2_256, RAMStorage.hash(block));
+            transactions.addBlock(cid, tid, owner);
+            put(cid.toBytes(), block);
+            res.add(cid);
+        }
+        sync();
+        return CompletableFuture.completedFuture(res);
+    }
+
+    private void put(byte[] key, byte[] block) {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (findSlot(key) >= 0)
+                return;
+            long offset = append(key, block);
+            addToIndex(key, activeSegment, offset, block.length);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("Blockstore is closed: " + root);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(existing, updated));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        byte[] key = hash.toBytes();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            long slot = findSlot(key);
+            if (slot < 0)
+                return Futures.of(Optional.empty());
+            byte[] data = new byte[index.size(slot)];
+            readFully(segments.get(index.segment(slot)), ByteBuffer.wrap(data), index.offset(slot) + RECORD_HEADER + key.length);
+            return Futures.of(Optional.of(data));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        if (h.isIdentity())
+            return Futures.of(Optional.of(h.getHash().length));
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            long slot = findSlot(h.toBytes());
+            return Futures.of(slot < 0 ? Optional.empty() : Optional.of(index.size(slot)));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(Multihash h) {
+        return getSize(h).join().isPresent();
+    }
+
+    @Override
+    public Stream<Multihash> getAllBlockHashes() {
+        return getAllBlocks().map(b -> b.hash);
+    }
+
+    @Override
+    public Stream<ListedBlock> getAllBlocks() {
+        List<ListedBlock> res = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            index.forEachLive((slot, segment, offset, keyLength, size) ->
+                    res.add(new ListedBlock(Cid.cast(readKey(segment, offset, keyLength)), Optional.of((long) size), Optional.empty())));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return res.stream();
+    }
+
+    @Override
+    public void delete(Multihash h) {
+        bulkDelete(Collections.singletonList(h));
+    }
+
+    @Override
+    public List<Multihash> bulkDelete(List<Multihash> hashes) {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (Multihash h : hashes) {
+                byte[] key = h.toBytes();
+                if (removeFromIndex(key))
+                    append(key, null);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        sync();
+        scheduleCompaction();
+        return Collections.emptyList();
+    }
+
+    private void scheduleCompaction() {
+        if (stopping || ! compactionScheduled.compareAndSet(false, true))
+            return;
+        try {
+            compactor.submit(() -> {
+                compactionScheduled.set(false);
+                try {
+                    compact();
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, "Error compacting packed blockstore " + root, t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing
+        }
+    }
+
+    /** Rewrite the live blocks of every inactive segment which is mostly dead, and delete the old segment files.
+     *
+     *  The live records are found by reading the segment and checking each against the index, and are copied to a
+     *  new segment without holding the lock. The index is only switched to the copies once they are on disk.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            if (stopping)
+                return;
+            List<Integer> candidates = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                ensureOpen();
+                for (Map.Entry<Integer, FileChannel> e : segments.entrySet()) {
+                    int segment = e.getKey();
+                    if (segment == activeSegment)
+                        continue;
+                    long total = e.getValue().size();
+                    long live = liveBytes.getOrDefault(segment, 0L);
+                    if (total == 0 || live < total * COMPACTION_THRESHOLD)
+                        candidates.add(segment);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            } finally {
+                lock.readLock().unlock();
+            }
+            try {
+                // the segment the copies are written to, which is only created if there is something to copy
+                Optional<Pair<Integer, FileChannel>> output = Optional.empty();
+                for (int segment : candidates) {
+                    if (stopping)
+                        return;
+                    output = compact(segment, output);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private Pair<Integer, FileChannel> newSegment() throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            int segment = nextSegment++;
+            FileChannel channel = openSegment(segment);
+            segments.put(segment, channel);
+            return new Pair<>(segment, channel);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static class Copy {
+        public final byte[] key;
+        public final long from, to;
+        public final int size;
+
+        public Copy(byte[] key, long from, long to, int size) {
+            this.key = key;
+            this.from = from;
+            this.to = to;
+            this.size = size;
+        }
+    }
+
+    /** Must hold the read lock.
+     *
+     * @return whether the index points at this record
+     */
+    private boolean isLive(byte[] key, int segment, long offset) throws IOException {
+        long slot = findSlot(key);
+        return slot >= 0 && index.segment(slot) == segment && index.offset(slot) == offset;
+    }
+
+    /**
+     *
+     * @param segment
+     * @param output the segment to copy live records to, if one has been started
+     * @return the segment the live records were copied to
+     */
+    private Optional<Pair<Integer, FileChannel>> compact(int segment,
+                                                         Optional<Pair<Integer, FileChannel>> output) throws IOException {
+        FileChannel source;
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            source = segments.get(segment);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (source == null)
+            return output;
+        if (output.isPresent() && output.get().right.size() >= maxSegmentSize)
+            output = Optional.empty();
+        // inactive segments are never appended to, so they can be read without the lock
+        List<Copy> copies = new ArrayList<>();
+        long size = source.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        while (offset + RECORD_HEADER <= size) {
+            if (stopping)
+                return output;
+            header.clear();
+            readFully(source, header, offset);
+            header.flip();
+            int keyLength = header.getInt();
+            int dataLength = header.getInt();
+            long recordSize = recordSize(keyLength, dataLength);
+            if (keyLength <= 0 || offset + recordSize > size)
+                throw new IllegalStateException("Invalid record at " + offset + " in " + segmentPath(segment));
+            if (dataLength != DELETED) {
+                byte[] key = new byte[keyLength];
+                readFully(source, ByteBuffer.wrap(key), offset + RECORD_HEADER);
+                boolean live;
+                lock.readLock().lock();
+                try {
+                    ensureOpen();
+                    live = isLive(key, segment, offset);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                if (live) {
+                    if (output.isEmpty())
+                        output = Optional.of(newSegment());
+                    FileChannel target = output.get().right;
+                    byte[] data = new byte[dataLength];
+                    readFully(source, ByteBuffer.wrap(data), offset + RECORD_HEADER + keyLength);
+                    long position = target.size();
+                    writeFully(target, record(key, data), position);
+                    copies.add(new Copy(key, offset, position, dataLength));
+                }
+            }
+            offset += recordSize;
+        }
+        // the copies must be durable before the originals are removed
+        if (! copies.isEmpty())
+            output.get().right.force(false);
+
+        int moved = 0;
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (Copy copy : copies) {
+                // skip blocks deleted since they were copied
+                long slot = findSlot(copy.key);
+                if (slot < 0 || index.segment(slot) != segment || index.offset(slot) != copy.from)
+                    continue;
+                int target = output.get().left;
+                index.set(slot, index.fingerprint(slot), target, copy.to, copy.key.length, copy.size);
+                liveBytes.merge(target, recordSize(copy.key.length, copy.size), Long::sum);
+                moved++;
+            }
+            source.close();
+            segments.remove(segment);
+            liveBytes.remove(segment);
+            Files.deleteIfExists(segmentPath(segment));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Compacted " + moved + " blocks out of " + segmentPath(segment));
+        return output;
+    }
+
+    /** Sync all data and mark the index as clean, so the next start doesn't need to rebuild it.
+     */
+    public void close() {
+        stopping = true;
+        // interrupting the compaction could close the channels it is using
+        compactor.shutdown();
+        // wait for any compaction to stop
+        synchronized (compactionLock) {
+            lock.writeLock().lock();
+            try {
+                if (closed)
+                    return;
+                closed = true;
+                for (FileChannel channel : segments.values()) {
+                    channel.force(true);
+                    channel.close();
+                }
+                index.force();
+                index.setClean(true);
+                lockFile.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Error closing packed blockstore " + root, e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PackedBlockStore " + root;
+    }
+
+    interface SlotConsumer {
+        void accept(long slot, int segment, long offset, int keyLength, int size) throws IOException;
+    }
+
+    /** An open addressing hash table of block locations in a memory mapped file.
+     *
+     *  Slots hold [fingerprint][offset][segment][key length][size][unused], with a zero fingerprint marking an empty
+     *  slot and a segment of -1 marking a deleted entry. Deleted entries are dropped when the table is resized.
+     *
+     *  A single mapping is limited to 2 GiB, so the file is mapped in regions. The header and the slots are the same
+     *  size, and the region size is a multiple of it, so no slot spans two regions.
+     */
+    static class MappedIndex {
+        static final long INITIAL_CAPACITY = 1024;
+        static final double MAX_LOAD = 0.7;
+        private static final int MAGIC = 0x7061636b;
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 32;
+        private static final int SLOT_SIZE = 32;
+        private static final int CLEAN = 8, CAPACITY = 16, USED = 24;
+
+        private final Path path;
+        private final int regionSize;
+        private final MappedByteBuffer[] regions;
+        private final long capacity;
+        private long used;
+
+        private MappedIndex(Path path, int regionSize, MappedByteBuffer[] regions) {
+            this.path = path;
+            this.regionSize = regionSize;
+            this.regions = regions;
+            this.capacity = regions[0].getLong(CAPACITY);
+            this.used = regions[0].getLong(USED);
+        }
+
+        private static MappedByteBuffer[] map(Path path, long size, int regionSize) throws IOException {
+            if (regionSize < HEADER_SIZE || Integer.bitCount(regionSize) != 1)
+                throw new IllegalArgumentException("Index region size must be a power of 2 and at least " + HEADER_SIZE);
+            int count = (int) ((size + regionSize - 1) / regionSize);
+            MappedByteBuffer[] regions = new MappedByteBuffer[count];
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                for (int i=0; i < count; i++) {
+                    long start = (long) i * regionSize;
+                    regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(regionSize, size - start));
+                }
+            }
+            return regions;
+        }
+
+        static MappedIndex create(Path path, long capacity, int regionSize) throws IOException {
+            MappedByteBuffer[] regions = map(path, HEADER_SIZE + capacity * SLOT_SIZE, regionSize);
+            MappedByteBuffer header = regions[0];
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(CLEAN, 0);
+            header.putLong(CAPACITY, capacity);
+            header.putLong(USED, 0);
+            return new MappedIndex(path, regionSize, regions);
+        }
+
+        static Optional<MappedIndex> openIfClean(Path path, int regionSize) throws IOException {
+            if (! Files.exists(path) || Files.size(path) < HEADER_SIZE)
+                return Optional.empty();
+            MappedByteBuffer[] regions = map(path, Files.size(path), regionSize);
+            MappedByteBuffer header = regions[0];
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(CLEAN) != 1 ||
+                    HEADER_SIZE + header.getLong(CAPACITY) * SLOT_SIZE != Files.size(path))
+                return Optional.empty();
+            return Optional.of(new MappedIndex(path, regionSize, regions));
+        }
+
+        long capacity() {
+            return capacity;
+        }
+
+        long used() {
+            return used;
+        }
+
+        void setClean(boolean clean) {
+            regions[0].putInt(CLEAN, clean ? 1 : 0);
+            regions[0].force();
+        }
+
+        void force() {
+            for (MappedByteBuffer region : regions)
+                region.force();
+        }
+
+        private static long pos(long slot) {
+            return HEADER_SIZE + slot * SLOT_SIZE;
+        }
+
+        private MappedByteBuffer region(long pos) {
+            return regions[(int) (pos / regionSize)];
+        }
+
+        private int local(long pos) {
+            return (int) (pos % regionSize);
+        }
+
+        private long getLong(long pos) {
+            return region(pos).getLong(local(pos));
+        }
+
+        private int getInt(long pos) {
+            return region(pos).getInt(local(pos));
+        }
+
+        private void putLong(long pos, long value) {
+            region(pos).putLong(local(pos), value);
+        }
+
+        private void putInt(long pos, int value) {
+            region(pos).putInt(local(pos), value);
+        }
+
+        long fingerprint(long slot) {
+            return getLong(pos(slot));
+        }
+
+        long offset(long slot) {
+            return getLong(pos(slot) + 8);
+        }
+
+        int segment(long slot) {
+            return getInt(pos(slot) + 16);
+        }
+
+        int keyLength(long slot) {
+            return getInt(pos(slot) + 20);
+        }
+
+        int size(long slot) {
+            return getInt(pos(slot) + 24);
+        }
+
+        void set(long slot, long fingerprint, int segment, long offset, int keyLength, int size) {
+            long p = pos(slot);
+            putLong(p + 8, offset);
+            putInt(p + 16, segment);
+            putInt(p + 20, keyLength);
+            putInt(p + 24, size);
+            putLong(p, fingerprint);
+        }
+
+        void markDeleted(long slot) {
+            putInt(pos(slot) + 16, DELETED);
+        }
+
+        void insert(long fingerprint, int segment, long offset, int keyLength, int size) {
+            long slot = Long.remainderUnsigned(fingerprint, capacity);
+            while (fingerprint(slot) != 0)
+                slot = (slot + 1) % capacity;
+            set(slot, fingerprint, segment, offset, keyLength, size);
+            used++;
+            regions[0].putLong(USED, used);
+        }
+
+        void forEachLive(SlotConsumer consumer) throws IOException {
+            for (long slot = 0; slot < capacity; slot++) {
+                if (fingerprint(slot) != 0 && segment(slot) != DELETED)
+                    consumer.accept(slot, segment(slot), offset(slot), keyLength(slot), size(slot));
+            }
+        }
+
+        /** Copy the live entries into a new table, which replaces this one on disk.
+         *
+         * @param newCapacity
+         * @return the new table
+         */
+        MappedIndex resize(long newCapacity) throws IOException {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.deleteIfExists(tmp);
+            MappedIndex resized = create(tmp, newCapacity, regionSize);
+            forEachLive((slot, segment, offset, keyLength, size) ->
+                    resized.insert(fingerprint(slot), segment, offset, keyLength, size));
+            resized.force();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new MappedIndex(path, regionSize, resized.regions);
+        }
+    }
+}
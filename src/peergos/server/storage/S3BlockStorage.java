@@ -46,6 +46,14 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
             .help("Number of block gets which fell back to p2p retrieval")
             .register();
 
+    private static final int LIST_PAGE_SIZE = 1_000;
+    private static final int LIST_RETRIES = 5;
+    private static final ExecutorService listingPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "S3 listing");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final Multihash id;
     private final String region, bucket, folder, regionEndpoint, host;
     private final String accessKeyId, secretKey;
@@ -195,8 +203,8 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         return transactions.getOpenTransactionBlocks();
     }
 
-    private void collectGarbage(JdbcIpnsAndSocial pointers) {
-        GarbageCollector.collect(this, pointers, this::savePointerSnapshot);
+    private void collectGarbage(JdbcIpnsAndSocial pointers, int markParallelism, int deleteParallelism) {
+        GarbageCollector.collect(this, pointers, markParallelism, deleteParallelism, this::savePointerSnapshot);
     }
 
     private CompletableFuture<Boolean> savePointerSnapshot(Stream<Map.Entry<PublicKeyHash, byte[]>> pointers) {
@@ -330,35 +338,61 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
     }
 
     public Stream<Multihash> getAllBlockHashes() {
-        // todo make this actually streaming
-        return getFiles(Long.MAX_VALUE).stream();
+        return getAllBlocks().map(b -> b.hash);
+    }
+
+    @Override
+    public Stream<ListedBlock> getAllBlocks() {
+        return getAllBlocks(Optional.empty());
+    }
+
+    /** Lazily list all blocks, fetching one page of keys ahead of the consumer.
+     *
+     * @param continuationToken where to resume a previously failed listing from
+     * @return
+     */
+    public Stream<ListedBlock> getAllBlocks(Optional<String> continuationToken) {
+        return listObjects(continuationToken)
+                .flatMap(obj -> {
+                    try {
+                        return Stream.of(new ListedBlock(keyToHash(obj.key), Optional.of(obj.size), Optional.of(obj.lastModified)));
+                    } catch (Exception e) {
+                        LOG.warning("Couldn't parse S3 key to Cid: " + obj.key);
+                        return Stream.empty();
+                    }
+                });
     }
 
     private List<Multihash> getFiles(long maxReturned) {
-        List<Multihash> results = new ArrayList<>();
-        applyToAll(obj -> {
-            try {
-                results.add(keyToHash(obj.key));
-            } catch (Exception e) {
-                LOG.warning("Couldn't parse S3 key to Cid: " + obj.key);
-            }
-        }, maxReturned);
-        return results;
+        return getAllBlockHashes()
+                .limit(maxReturned)
+                .collect(Collectors.toList());
     }
 
     private List<String> getFilenames(long maxReturned) {
-        List<String> results = new ArrayList<>();
-        applyToAll(obj -> results.add(obj.key), maxReturned);
-        return results;
+        return listObjects(Optional.empty())
+                .limit(maxReturned)
+                .map(obj -> obj.key)
+                .collect(Collectors.toList());
+    }
+
+    private Stream<S3Request.ObjectMetadata> listObjects(Optional<String> continuationToken) {
+        Iterator<S3Request.ObjectMetadata> pages = new ListingIterator(continuationToken);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .filter(obj -> {
+                    if (obj.key.endsWith("/")) {
+                        LOG.fine(" - " + obj.key + "  " + "(directory)");
+                        return false;
+                    }
+                    return true;
+                });
     }
 
-    private void applyToAll(Consumer<S3Request.ObjectMetadata> processor, long maxObjects) {
-        try {
-            Optional<String> continuationToken = Optional.empty();
-            S3Request.ListObjectsReply result;
-            long processedObjects = 0;
-            do {
-                result = S3Request.listObjects(folder, 1_000, continuationToken,
+    private S3Request.ListObjectsReply listPage(Optional<String> continuationToken) {
+        long sleepMillis = 100;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return S3Request.listObjects(folder, LIST_PAGE_SIZE, continuationToken,
                         ZonedDateTime.now(), host, region, accessKeyId, secretKey, url -> {
                             try {
                                 return HttpUtil.get(url);
@@ -366,23 +400,60 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                                 throw new RuntimeException(e);
                             }
                         });
+            } catch (Exception e) {
+                if (attempt >= LIST_RETRIES) {
+                    String msg = "Failed to list S3 objects, resume from continuation token: " + continuationToken.orElse("");
+                    LOG.log(Level.SEVERE, msg, e);
+                    throw new IllegalStateException(msg, e);
+                }
+                LOG.info("Retrying S3 list after error: " + e.getMessage());
+                try {Thread.sleep(sleepMillis);} catch (InterruptedException f) {}
+                sleepMillis *= 2;
+            }
+        }
+    }
 
-                for (S3Request.ObjectMetadata objectSummary : result.objects) {
-                    if (objectSummary.key.endsWith("/")) {
-                        LOG.fine(" - " + objectSummary.key + "  " + "(directory)");
-                        continue;
-                    }
-                    processor.accept(objectSummary);
-                    processedObjects++;
-                    if (processedObjects >= maxObjects)
-                        return;
+    /** Iterates over all objects in our folder, keeping a request for the next page in flight while the current page
+     *  is consumed.
+     */
+    private class ListingIterator implements Iterator<S3Request.ObjectMetadata> {
+        private Iterator<S3Request.ObjectMetadata> current = Collections.emptyIterator();
+        private Optional<CompletableFuture<S3Request.ListObjectsReply>> next;
+
+        public ListingIterator(Optional<String> continuationToken) {
+            this.next = Optional.of(prefetch(continuationToken));
+        }
+
+        private CompletableFuture<S3Request.ListObjectsReply> prefetch(Optional<String> continuationToken) {
+            return CompletableFuture.supplyAsync(() -> listPage(continuationToken), listingPool);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (! current.hasNext()) {
+                if (next.isEmpty())
+                    return false;
+                S3Request.ListObjectsReply page;
+                try {
+                    page = next.get().join();
+                } catch (CompletionException e) {
+                    next = Optional.empty();
+                    throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
                 }
-                LOG.log(Level.FINE, "Next Continuation Token : " + result.continuationToken);
-                continuationToken = result.continuationToken;
-            } while (result.isTruncated);
+                LOG.log(Level.FINE, "Next Continuation Token : " + page.continuationToken);
+                next = page.isTruncated && page.continuationToken.isPresent() ?
+                        Optional.of(prefetch(page.continuationToken)) :
+                        Optional.empty();
+                current = page.objects.iterator();
+            }
+            return true;
+        }
 
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
+        @Override
+        public S3Request.ObjectMetadata next() {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            return current.next();
         }
     }
 
@@ -396,12 +467,13 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         }
     }
 
-    public void bulkDelete(List<Multihash> hash) {
+    @Override
+    public List<Multihash> bulkDelete(List<Multihash> hashes) {
         try {
-            List<String> keys = hash.stream()
+            List<String> keys = hashes.stream()
                     .map(h -> folder + hashToKey(h))
                     .collect(Collectors.toList());
-            S3Request.bulkDelete(keys, ZonedDateTime.now(), host, region, accessKeyId, secretKey,
+            S3Request.BulkDeleteReply reply = S3Request.bulkDelete(keys, ZonedDateTime.now(), host, region, accessKeyId, secretKey,
                     b -> ArrayOps.bytesToHex(Hash.sha256(b)),
                     (url, body) -> {
                         try {
@@ -410,6 +482,14 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                             throw new RuntimeException(e);
                         }
                     });
+            Set<String> deleted = new HashSet<>(reply.deletedKeys);
+            List<Multihash> failed = new ArrayList<>();
+            for (int i=0; i < keys.size(); i++)
+                if (! deleted.contains(keys.get(i)))
+                    failed.add(hashes.get(i));
+            if (! failed.isEmpty())
+                LOG.warning("S3 bulk delete failed to delete " + failed.size() + " of " + keys.size() + " blocks");
+            return failed;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -428,7 +508,7 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         TransactionStore transactions = JdbcTransactionStore.build(transactionsDb, sqlCommands);
         S3BlockStorage s3 = new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")), BlockStoreProperties.empty(), transactions, new RAMStorage());
         JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
-        s3.collectGarbage(rawPointers);
+        s3.collectGarbage(rawPointers, a.getInt("gc.parallelism", 10), a.getInt("gc.delete.parallelism", 4));
     }
 
     public static void test(String[] args) throws Exception {
@@ -0,0 +1,392 @@
+package peergos.server.storage;
+
+import io.prometheus.client.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A server side read cache in front of a remote block store, like S3.
+ *
+ *  Small blocks (mostly cbor champ nodes, WriterData roots and cryptree metadata) are kept in a bounded in-heap tier.
+ *  Larger blocks (mostly raw file fragments) are kept in a size bounded on-disk tier of content addressed files.
+ *  Blocks are only admitted to the disk tier on their second miss within a recent window, so a single pass over a
+ *  large file doesn't flush the cache. Both tiers evict the least recently used block first.
+ *
+ *  Blocks are immutable, so the only invalidation needed is when a block is deleted by GC.
+ */
+public class TieredCachingStorage extends DelegatingStorage implements DeletableContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final Counter hits = Counter.build()
+            .labelNames("tier")
+            .name("block_cache_hits")
+            .help("Number of block reads served from the block cache")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("block_cache_misses")
+            .help("Number of block reads that missed the block cache")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .labelNames("tier")
+            .name("block_cache_evictions")
+            .help("Number of blocks evicted from the block cache")
+            .register();
+    private static final Counter bytesServed = Counter.build()
+            .labelNames("tier")
+            .name("block_cache_hit_bytes")
+            .help("Number of bytes served from the block cache")
+            .register();
+    private static final Gauge cachedBytes = Gauge.build()
+            .labelNames("tier")
+            .name("block_cache_bytes")
+            .help("Number of bytes currently held in the block cache")
+            .register();
+
+    private final DeletableContentAddressedStorage target;
+    private final HeapTier heap;
+    private final Optional<DiskTier> disk;
+    private final int maxHeapValueSize;
+    private final Set<Multihash> recentMisses;
+    private final ConcurrentHashMap<Multihash, CompletableFuture<Optional<byte[]>>> pending = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param target
+     * @param maxHeapBytes total size of blocks to keep in memory
+     * @param maxHeapValueSize blocks larger than this are only cached on disk
+     * @param diskDir the directory for the disk tier
+     * @param maxDiskBytes total size of blocks to keep on disk, 0 disables the disk tier
+     */
+    public TieredCachingStorage(DeletableContentAddressedStorage target,
+                                long maxHeapBytes,
+                                int maxHeapValueSize,
+                                Path diskDir,
+                                long maxDiskBytes) {
+        super(target);
+        this.target = target;
+        this.heap = new HeapTier(maxHeapBytes);
+        this.maxHeapValueSize = maxHeapValueSize;
+        this.disk = maxDiskBytes > 0 ? Optional.of(new DiskTier(diskDir, maxDiskBytes)) : Optional.empty();
+        this.recentMisses = Collections.newSetFromMap(new LRUCache<>(10_000));
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        if (hash.isIdentity())
+            return target.getRaw(hash);
+        Optional<byte[]> cached = getCached(hash);
+        if (cached.isPresent())
+            return Futures.of(cached);
+        misses.inc();
+
+        CompletableFuture<Optional<byte[]>> res = new CompletableFuture<>();
+        CompletableFuture<Optional<byte[]>> existing = pending.putIfAbsent(hash, res);
+        if (existing != null)
+            return existing;
+        try {
+            target.getRaw(hash).thenAccept(opt -> {
+                opt.ifPresent(block -> admit(hash, block));
+                pending.remove(hash);
+                res.complete(opt);
+            }).exceptionally(t -> {
+                pending.remove(hash);
+                res.completeExceptionally(t);
+                return null;
+            });
+        } catch (Throwable t) {
+            pending.remove(hash);
+            res.completeExceptionally(t);
+        }
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return get(root).thenApply(opt -> opt
+                .map(cbor -> cbor.links())
+                .orElse(Collections.emptyList())
+        );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash hash) {
+        Optional<Integer> size = heap.size(hash);
+        if (size.isEmpty() && disk.isPresent())
+            size = disk.get().size(hash);
+        if (size.isPresent())
+            return Futures.of(size);
+        return target.getSize(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return target.put(owner, writer, signedHashes, blocks, tid)
+                .thenApply(hashes -> {
+                    // newly written cbor blocks are usually read again soon, e.g. champ roots and WriterData
+                    for (int i=0; i < hashes.size(); i++)
+                        if (blocks.get(i).length <= maxHeapValueSize)
+                            heap.put(hashes.get(i), blocks.get(i));
+                    return hashes;
+                });
+    }
+
+    private Optional<byte[]> getCached(Multihash hash) {
+        Optional<byte[]> inHeap = heap.get(hash);
+        if (inHeap.isPresent()) {
+            hits.labels("heap").inc();
+            bytesServed.labels("heap").inc(inHeap.get().length);
+            return inHeap;
+        }
+        if (disk.isEmpty())
+            return Optional.empty();
+        Optional<byte[]> onDisk = disk.get().get(hash);
+        if (onDisk.isPresent()) {
+            hits.labels("disk").inc();
+            bytesServed.labels("disk").inc(onDisk.get().length);
+        }
+        return onDisk;
+    }
+
+    private void admit(Multihash hash, byte[] block) {
+        if (block.length <= maxHeapValueSize) {
+            heap.put(hash, block);
+            return;
+        }
+        if (disk.isEmpty())
+            return;
+        boolean seenRecently;
+        synchronized (recentMisses) {
+            seenRecently = ! recentMisses.add(hash);
+            if (seenRecently)
+                recentMisses.remove(hash);
+        }
+        if (seenRecently)
+            disk.get().put(hash, block);
+    }
+
+    private void evict(Multihash hash) {
+        heap.remove(hash);
+        disk.ifPresent(d -> d.remove(hash));
+    }
+
+    @Override
+    public Stream<Multihash> getAllBlockHashes() {
+        return target.getAllBlockHashes();
+    }
+
+    @Override
+    public Stream<ListedBlock> getAllBlocks() {
+        return target.getAllBlocks();
+    }
+
+    @Override
+    public void delete(Multihash hash) {
+        evict(hash);
+        target.delete(hash);
+    }
+
+    @Override
+    public List<Multihash> bulkDelete(List<Multihash> hashes) {
+        hashes.forEach(this::evict);
+        return target.bulkDelete(hashes);
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return target.getOpenTransactionBlocks();
+    }
+
+    private static class HeapTier {
+        private final long maxBytes;
+        private final LinkedHashMap<Multihash, byte[]> blocks = new LinkedHashMap<>(16, 0.75f, true);
+        private long totalBytes = 0;
+
+        public HeapTier(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public synchronized Optional<byte[]> get(Multihash hash) {
+            return Optional.ofNullable(blocks.get(hash));
+        }
+
+        public synchronized Optional<Integer> size(Multihash hash) {
+            byte[] block = blocks.get(hash);
+            return block == null ? Optional.empty() : Optional.of(block.length);
+        }
+
+        public synchronized void put(Multihash hash, byte[] block) {
+            if (block.length > maxBytes)
+                return;
+            byte[] existing = blocks.put(hash, block);
+            if (existing != null)
+                totalBytes -= existing.length;
+            totalBytes += block.length;
+            Iterator<Map.Entry<Multihash, byte[]>> lru = blocks.entrySet().iterator();
+            while (totalBytes > maxBytes && lru.hasNext()) {
+                totalBytes -= lru.next().getValue().length;
+                lru.remove();
+                evictions.labels("heap").inc();
+            }
+            cachedBytes.labels("heap").set(totalBytes);
+        }
+
+        public synchronized void remove(Multihash hash) {
+            byte[] existing = blocks.remove(hash);
+            if (existing != null) {
+                totalBytes -= existing.length;
+                cachedBytes.labels("heap").set(totalBytes);
+            }
+        }
+    }
+
+    private static class DiskTier {
+        private final Path root;
+        private final long maxBytes;
+        private final LinkedHashMap<Multihash, Integer> sizes = new LinkedHashMap<>(16, 0.75f, true);
+        private long totalBytes = 0;
+
+        public DiskTier(Path root, long maxBytes) {
+            this.root = root;
+            this.maxBytes = maxBytes;
+            File dir = root.toFile();
+            if (! dir.exists() && ! dir.mkdirs())
+                throw new IllegalStateException("Unable to create block cache directory " + root);
+            loadExisting();
+        }
+
+        /** Rebuild the index from the cache directory, treating the least recently modified files as least recently
+         *  used.
+         */
+        private void loadExisting() {
+            try (Stream<Path> files = Files.walk(root)) {
+                List<Path> blocks = new ArrayList<>();
+                files.filter(Files::isRegularFile).forEach(p -> {
+                    if (p.getFileName().toString().endsWith(TMP_SUFFIX))
+                        p.toFile().delete();
+                    else
+                        blocks.add(p);
+                });
+                blocks.sort(Comparator.comparingLong(p -> p.toFile().lastModified()));
+                for (Path p : blocks) {
+                    try {
+                        Multihash hash = DirectS3BlockStore.keyToHash(p.getFileName().toString());
+                        int size = (int) p.toFile().length();
+                        sizes.put(hash, size);
+                        totalBytes += size;
+                    } catch (Exception e) {
+                        LOG.warning("Ignoring unknown file in block cache: " + p);
+                    }
+                }
+                evictIfNeeded();
+                LOG.info("Loaded " + sizes.size() + " blocks totalling " + totalBytes + " bytes from block cache");
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
+        private Path getFilePath(Multihash hash) {
+            String key = DirectS3BlockStore.hashToKey(hash);
+            return root.resolve(key.substring(key.length() - 3, key.length() - 1)).resolve(key);
+        }
+
+        public synchronized Optional<Integer> size(Multihash hash) {
+            return Optional.ofNullable(sizes.get(hash));
+        }
+
+        public Optional<byte[]> get(Multihash hash) {
+            synchronized (this) {
+                // this get also marks the block as most recently used
+                if (sizes.get(hash) == null)
+                    return Optional.empty();
+            }
+            try {
+                byte[] block = Files.readAllBytes(getFilePath(hash));
+                if (hash.type == Multihash.Type.sha2_256 && ! Arrays.equals(Hash.sha256(block), hash.getHash())) {
+                    LOG.warning("Removing corrupt block from block cache: " + hash);
+                    remove(hash);
+                    return Optional.empty();
+                }
+                return Optional.of(block);
+            } catch (IOException e) {
+                remove(hash);
+                return Optional.empty();
+            }
+        }
+
+        public void put(Multihash hash, byte[] block) {
+            if (block.length > maxBytes)
+                return;
+            synchronized (this) {
+                if (sizes.containsKey(hash))
+                    return;
+            }
+            Path target = getFilePath(hash);
+            Path tmp = target.resolveSibling(target.getFileName() + TMP_SUFFIX);
+            try {
+                Files.createDirectories(target.getParent());
+                Files.write(tmp, block);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to write block to block cache: " + e.getMessage(), e);
+                tmp.toFile().delete();
+                return;
+            }
+            synchronized (this) {
+                if (sizes.put(hash, block.length) == null)
+                    totalBytes += block.length;
+                evictIfNeeded();
+            }
+        }
+
+        public synchronized void remove(Multihash hash) {
+            Integer size = sizes.remove(hash);
+            if (size != null) {
+                totalBytes -= size;
+                getFilePath(hash).toFile().delete();
+                cachedBytes.labels("disk").set(totalBytes);
+            }
+        }
+
+        private synchronized void evictIfNeeded() {
+            Iterator<Map.Entry<Multihash, Integer>> lru = sizes.entrySet().iterator();
+            while (totalBytes > maxBytes && lru.hasNext()) {
+                Map.Entry<Multihash, Integer> eldest = lru.next();
+                totalBytes -= eldest.getValue();
+                lru.remove();
+                getFilePath(eldest.getKey()).toFile().delete();
+                evictions.labels("disk").inc();
+            }
+            cachedBytes.labels("disk").set(totalBytes);
+        }
+    }
+}
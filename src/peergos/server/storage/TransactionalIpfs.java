@@ -71,11 +71,21 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
         return target.getAllBlockHashes();
     }
 
+    @Override
+    public Stream<ListedBlock> getAllBlocks() {
+        return target.getAllBlocks();
+    }
+
     @Override
     public void delete(Multihash hash) {
         target.delete(hash);
     }
 
+    @Override
+    public List<Multihash> bulkDelete(List<Multihash> hashes) {
+        return target.bulkDelete(hashes);
+    }
+
     @Override
     public List<Multihash> getOpenTransactionBlocks() {
         return transactions.getOpenTransactionBlocks();
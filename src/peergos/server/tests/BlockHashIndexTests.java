@@ -0,0 +1,64 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+public class BlockHashIndexTests {
+
+    private static Cid randomCid(Random r, Cid.Codec codec) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new Cid(1, codec, Multihash.Type.sha2_256, hash);
+    }
+
+    @Test
+    public void addAndLookup() {
+        Random r = new Random(42);
+        BlockHashIndex index = new BlockHashIndex();
+        List<Cid> cids = IntStream.range(0, 100_000)
+                .mapToObj(i -> randomCid(r, i % 2 == 0 ? Cid.Codec.Raw : Cid.Codec.DagCbor))
+                .collect(Collectors.toList());
+        for (int i=0; i < cids.size(); i++)
+            Assert.assertEquals(i, index.add(cids.get(i)));
+        Assert.assertEquals(cids.size(), index.size());
+
+        // duplicates are not re-added
+        Assert.assertEquals(7, index.add(cids.get(7)));
+        Assert.assertEquals(cids.size(), index.size());
+
+        for (int i=0; i < cids.size(); i++) {
+            Assert.assertEquals(i, index.indexOf(cids.get(i)));
+            Assert.assertEquals(cids.get(i), index.get(i));
+        }
+        Assert.assertEquals(-1, index.indexOf(randomCid(r, Cid.Codec.Raw)));
+
+        // same digest with a different codec is a different block
+        Cid raw = cids.get(0);
+        Cid cbor = new Cid(1, Cid.Codec.DagCbor, raw.type, raw.getHash());
+        Assert.assertEquals(-1, index.indexOf(cbor));
+    }
+
+    @Test
+    public void marking() {
+        Random r = new Random(7);
+        BlockHashIndex index = new BlockHashIndex();
+        for (int i=0; i < 1000; i++)
+            index.add(randomCid(r, Cid.Codec.DagCbor));
+        for (int i=0; i < 1000; i += 3)
+            Assert.assertTrue(index.mark(i));
+        Assert.assertFalse(index.mark(3));
+        Assert.assertEquals(334, index.markedCount());
+
+        int unmarked = 0;
+        for (int i = index.nextUnmarked(0); i >= 0; i = index.nextUnmarked(i + 1)) {
+            Assert.assertTrue(i % 3 != 0);
+            unmarked++;
+        }
+        Assert.assertEquals(666, unmarked);
+    }
+}
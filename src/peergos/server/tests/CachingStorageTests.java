@@ -0,0 +1,155 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class CachingStorageTests {
+
+    /** Completes getMany calls only when told to, so we can observe coalescing.
+     */
+    private static class ControlledStorage extends RAMStorage {
+        private final List<Runnable> waiting = new ArrayList<>();
+        private final List<Integer> batchSizes = new ArrayList<>();
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+            CompletableFuture<List<Optional<byte[]>>> res = new CompletableFuture<>();
+            batchSizes.add(hashes.size());
+            waiting.add(() -> super.getMany(hashes).thenAccept(res::complete));
+            return res;
+        }
+
+        void completeAll() {
+            while (! waiting.isEmpty())
+                waiting.remove(0).run();
+        }
+    }
+
+    @Test
+    public void coalescesMisses() {
+        ControlledStorage target = new ControlledStorage();
+        PublicKeyHash owner = PublicKeyHash.NULL;
+        TransactionId tid = target.startTransaction(owner).join();
+        List<byte[]> blocks = IntStream.range(0, 20)
+                .mapToObj(i -> new CborObject.CborString("block " + i).toByteArray())
+                .collect(Collectors.toList());
+        List<Multihash> hashes = target.put(owner, owner, blocks.stream().map(b -> new byte[0]).collect(Collectors.toList()),
+                blocks, tid).join();
+
+        CachingStorage cache = new CachingStorage(target, 100_000, 100_000, 10_000, 1);
+        List<CompletableFuture<Optional<CborObject>>> results = hashes.stream()
+                .map(cache::get)
+                .collect(Collectors.toList());
+        // the first miss is sent straight away, the rest wait for it and are then sent together
+        Assert.assertEquals(Arrays.asList(1), target.batchSizes);
+        target.completeAll();
+        Assert.assertEquals(Arrays.asList(1, 19), target.batchSizes);
+        target.completeAll();
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), results.get(i).join().get().toByteArray());
+
+        // now everything is cached
+        hashes.forEach(h -> cache.get(h).join());
+        Assert.assertEquals(2, target.batchSizes.size());
+    }
+
+    @Test
+    public void parseMultiBlockResponse() {
+        byte[] raw = {0, 0, 0, 2, 7, 8, -1, -1, -1, -1, 0, 0, 0, 0};
+        List<Optional<byte[]>> blocks = ContentAddressedStorage.HTTP.parseBlocks(raw, 3);
+        Assert.assertArrayEquals(new byte[] {7, 8}, blocks.get(0).get());
+        Assert.assertTrue(blocks.get(1).isEmpty());
+        Assert.assertArrayEquals(new byte[0], blocks.get(2).get());
+
+        // a response capped by the server only covers the first blocks
+        List<Optional<byte[]>> prefix = ContentAddressedStorage.HTTP.parseBlocks(Arrays.copyOfRange(raw, 0, 6), 3);
+        Assert.assertEquals(1, prefix.size());
+        try {
+            ContentAddressedStorage.HTTP.parseBlocks(Arrays.copyOfRange(raw, 0, 5), 3);
+            Assert.fail("Parsed a truncated block");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void rawBlocksAreNotBatched() {
+        ControlledStorage target = new ControlledStorage();
+        PublicKeyHash owner = PublicKeyHash.NULL;
+        TransactionId tid = target.startTransaction(owner).join();
+        List<byte[]> blocks = IntStream.range(0, 5)
+                .mapToObj(i -> new byte[] {(byte) i})
+                .collect(Collectors.toList());
+        List<Multihash> hashes = target.putRaw(owner, owner, blocks.stream().map(b -> new byte[0]).collect(Collectors.toList()),
+                blocks, tid, x -> {}).join();
+
+        CachingStorage cache = new CachingStorage(target, 100_000, 100_000, 10_000, 1);
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), cache.getRaw(hashes.get(i)).join().get());
+        Assert.assertTrue(target.batchSizes.isEmpty());
+    }
+
+    @Test
+    public void refetchBlocksLeftOutOfCappedResponse() {
+        RAMStorage storage = new RAMStorage();
+        PublicKeyHash owner = PublicKeyHash.NULL;
+        TransactionId tid = storage.startTransaction(owner).join();
+        List<byte[]> blocks = IntStream.range(0, 5)
+                .mapToObj(i -> new CborObject.CborString("block " + i).toByteArray())
+                .collect(Collectors.toList());
+        List<Multihash> hashes = storage.put(owner, owner, blocks.stream().map(b -> new byte[0]).collect(Collectors.toList()),
+                blocks, tid).join();
+
+        // a server which only returns the first requested block of each multi block get
+        List<String> requests = new ArrayList<>();
+        HttpPoster poster = new HttpPoster() {
+            @Override
+            public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+                requests.add(url);
+                String firstArg = url.substring(url.indexOf("arg=") + 4).split("&")[0];
+                byte[] block = storage.get(Cid.decode(firstArg)).join().get().toByteArray();
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                bout.write(block.length >> 24);
+                bout.write(block.length >> 16);
+                bout.write(block.length >> 8);
+                bout.write(block.length);
+                bout.writeBytes(block);
+                return Futures.of(bout.toByteArray());
+            }
+
+            @Override
+            public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+                throw new IllegalStateException("Unexpected call");
+            }
+
+            @Override
+            public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+                throw new IllegalStateException("Unexpected call");
+            }
+
+            @Override
+            public CompletableFuture<byte[]> put(String url, byte[] payload, Map<String, String> headers) {
+                throw new IllegalStateException("Unexpected call");
+            }
+
+            @Override
+            public CompletableFuture<byte[]> get(String url, Map<String, String> headers) {
+                throw new IllegalStateException("Unexpected call");
+            }
+        };
+        List<Optional<byte[]>> fetched = new ContentAddressedStorage.HTTP(poster, true).getMany(hashes).join();
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), fetched.get(i).get());
+        Assert.assertEquals(blocks.size(), requests.size());
+    }
+}
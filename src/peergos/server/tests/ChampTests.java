@@ -21,6 +21,7 @@ import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -348,6 +349,187 @@ public class ChampTests {
         }
     }
 
+    @Test
+    public void parallelTraversal() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(7);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        Function<Cborable, CborObject.CborMerkleLink> fromCbor = c -> (CborObject.CborMerkleLink)c;
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> tree = randomTree(user, r, 0, 32, 2000, 3, 2,
+                hasher, randomHash, storage);
+
+        // a diff against the empty tree finds every mapping
+        Set<ByteArrayWrapper> fromDiff = Collections.synchronizedSet(new HashSet<>());
+        Champ.applyToDiff(MaybeMultihash.empty(), MaybeMultihash.of(tree.right), 0, hasher,
+                Collections.emptyList(), Collections.emptyList(), t -> fromDiff.add(t.left), 3,
+                new ChampLoader<>(storage, fromCbor, 2, true, false)).join();
+        Assert.assertEquals(2000, fromDiff.size());
+
+        // a node missing from storage is diffed as an empty subtree
+        Set<ByteArrayWrapper> fromMissing = Collections.synchronizedSet(new HashSet<>());
+        Champ.applyToDiff(MaybeMultihash.of(randomHash.get()), MaybeMultihash.of(tree.right), 0, hasher,
+                Collections.emptyList(), Collections.emptyList(), t -> fromMissing.add(t.left), 3,
+                new ChampLoader<>(storage, fromCbor, 2, true, false)).join();
+        Assert.assertEquals(fromDiff, fromMissing);
+
+        // an in order fold with prefetching, batching and a small in flight limit visits the same mappings
+        for (boolean batched : Arrays.asList(true, false)) {
+            List<ByteArrayWrapper> folded = tree.left.applyToAllMappings(new ArrayList<ByteArrayWrapper>(), (acc, p) -> {
+                acc.add(p.left);
+                return Futures.of(acc);
+            }, new ChampLoader<>(storage, fromCbor, 3, batched, true)).join();
+            Assert.assertEquals(fromDiff, new HashSet<>(folded));
+            Assert.assertEquals(folded.size(), new HashSet<>(folded).size());
+
+            List<ByteArrayWrapper> sequential = tree.left.applyToAllMappings(new ArrayList<ByteArrayWrapper>(), (acc, p) -> {
+                acc.add(p.left);
+                return Futures.of(acc);
+            }, new ChampLoader<>(storage, fromCbor, 1, false, false)).join();
+            Assert.assertEquals(sequential, folded);
+
+            // a bounded prefetch never holds more than its limit of unvisited nodes
+            ChampLoader<CborObject.CborMerkleLink> bounded = new ChampLoader<>(storage, fromCbor, 3, batched, true, 5);
+            AtomicInteger maxPrefetched = new AtomicInteger(0);
+            List<ByteArrayWrapper> boundedFold = tree.left.applyToAllMappings(new ArrayList<ByteArrayWrapper>(), (acc, p) -> {
+                maxPrefetched.accumulateAndGet(bounded.prefetchedCount(), Math::max);
+                acc.add(p.left);
+                return Futures.of(acc);
+            }, bounded).join();
+            Assert.assertEquals(sequential, boundedFold);
+            Assert.assertTrue(maxPrefetched.get() <= 5);
+        }
+    }
+
+    @Test
+    public void batchUpdate() throws Exception {
+        int bitWidth = 3, maxCollisions = 2;
+        Function<Cborable, CborObject.CborMerkleLink> fromCbor = c -> (CborObject.CborMerkleLink)c;
+        RAMStorage batchStorage = new RAMStorage();
+        RAMStorage sequentialStorage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(batchStorage, crypto);
+        createUser(sequentialStorage, crypto);
+        List<Pair<Champ<CborObject.CborMerkleLink>, Multihash>> trees = new ArrayList<>();
+        for (RAMStorage storage : Arrays.asList(batchStorage, sequentialStorage)) {
+            Random r = new Random(11);
+            Supplier<Multihash> randomHash = () -> {
+                byte[] hash = new byte[32];
+                r.nextBytes(hash);
+                return new Multihash(Multihash.Type.sha2_256, hash);
+            };
+            trees.add(randomTree(user, r, 0, 32, 1000, bitWidth, maxCollisions, hasher, randomHash, storage));
+        }
+        Assert.assertEquals(trees.get(0).right, trees.get(1).right);
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> tree = trees.get(0);
+        List<Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>>> existing = tree.left.applyToAllMappings(
+                new ArrayList<Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>>>(), (acc, p) -> {
+                    acc.add(p);
+                    return Futures.of(acc);
+                }, new ChampLoader<>(batchStorage, fromCbor, 1, false, false)).join();
+
+        // new mappings, modified mappings and removals, in random order
+        Random r = new Random(12);
+        List<Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> mutations = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            mutations.add(new Triple<>(new ByteArrayWrapper(randomKey(new byte[0], 32, r)), Optional.empty(),
+                    Optional.of(new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, value)))));
+        }
+        for (int i = 0; i < 200; i++) {
+            Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> mapping = existing.get(i);
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            mutations.add(new Triple<>(mapping.left, mapping.right, i % 2 == 0 ? Optional.empty() :
+                    Optional.of(new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, value)))));
+        }
+        Collections.shuffle(mutations, r);
+
+        int batchBlocksBefore = batchStorage.size();
+        int sequentialBlocksBefore = sequentialStorage.size();
+        TransactionId tid = batchStorage.startTransaction(user.publicKeyHash).join();
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> batched = tree.left.applyBatch(user.publicKeyHash, user,
+                mutations, bitWidth, maxCollisions, hasher, tid, batchStorage, writeHasher, tree.right).join();
+        int batchWrites = batchStorage.size() - batchBlocksBefore;
+
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> current = trees.get(1);
+        TransactionId tid2 = sequentialStorage.startTransaction(user.publicKeyHash).join();
+        for (Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>> m : mutations) {
+            byte[] keyHash = hasher.apply(m.left).join();
+            current = m.right.isPresent() ?
+                    current.left.put(user.publicKeyHash, user, m.left, keyHash, 0, m.middle, m.right, bitWidth,
+                            maxCollisions, hasher, tid2, sequentialStorage, writeHasher, current.right).join() :
+                    current.left.remove(user.publicKeyHash, user, m.left, keyHash, 0, m.middle, bitWidth,
+                            maxCollisions, tid2, sequentialStorage, writeHasher, current.right).join();
+        }
+        int sequentialWrites = sequentialStorage.size() - sequentialBlocksBefore;
+
+        Assert.assertEquals(current.right, batched.right);
+        Assert.assertEquals(current.left.size(0, sequentialStorage).join(), batched.left.size(0, batchStorage).join());
+        Assert.assertEquals(1200, (long) batched.left.size(0, batchStorage).join());
+        // only the final version of each modified node is written
+        Assert.assertTrue(batchWrites + " < " + sequentialWrites, batchWrites * 2 < sequentialWrites);
+    }
+
+    @Test
+    public void decodedNodeCache() throws Exception {
+        AtomicLong gets = new AtomicLong(0);
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+                gets.incrementAndGet();
+                return super.get(hash);
+            }
+        };
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(13);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        int bitWidth = 3;
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> tree = randomTree(user, r, 0, 32, 500, bitWidth, 2,
+                hasher, randomHash, storage);
+        List<ByteArrayWrapper> keys = tree.left.applyToAllMappings(new ArrayList<ByteArrayWrapper>(), (acc, p) -> {
+            acc.add(p.left);
+            return Futures.of(acc);
+        }, new ChampLoader<>(storage, c -> (CborObject.CborMerkleLink)c, 1, false, false)).join();
+
+        for (ByteArrayWrapper key : keys)
+            Assert.assertTrue(tree.left.get(key, hasher.apply(key).join(), 0, bitWidth, storage).join().isPresent());
+        // every node is now decoded and cached, so further lookups don't touch storage
+        long getsBefore = gets.get();
+        long hitsBefore = ChampCache.shared().hitCount();
+        for (ByteArrayWrapper key : keys)
+            Assert.assertTrue(tree.left.get(key, hasher.apply(key).join(), 0, bitWidth, storage).join().isPresent());
+        Assert.assertEquals(getsBefore, gets.get());
+        Assert.assertTrue(ChampCache.shared().hitCount() > hitsBefore);
+
+        ChampCache cache = new ChampCache(1024 * 1024);
+        Function<Cborable, CborObject.CborMerkleLink> fromCbor = c -> (CborObject.CborMerkleLink)c;
+        Champ<CborObject.CborMerkleLink> root = cache.get(tree.right, fromCbor, storage).join().get();
+        Assert.assertSame(root, cache.get(tree.right, fromCbor, storage).join().get());
+        Assert.assertEquals(0.5, cache.hitRate(), 0.0);
+        Assert.assertTrue(cache.estimatedBytes() > 0 && cache.estimatedBytes() <= cache.maxBytes());
+
+        // nodes only present in an uncommitted buffer are not cached
+        ChampCache uncommitted = new ChampCache(1024 * 1024);
+        BufferedStorage buffer = new BufferedStorage(new RAMStorage());
+        byte[] rootBlock = root.serialize();
+        byte[] signature = user.secret.signMessage(writeHasher.sha256(rootBlock).join());
+        Multihash bufferedRoot = buffer.put(user.publicKeyHash, user.publicKeyHash, Collections.singletonList(signature),
+                Collections.singletonList(rootBlock), null).join().get(0);
+        Assert.assertTrue(uncommitted.get(bufferedRoot, fromCbor, buffer).join().isPresent());
+        Assert.assertTrue(uncommitted.get(bufferedRoot, fromCbor, buffer).join().isPresent());
+        Assert.assertEquals(0, uncommitted.hitCount());
+        Assert.assertEquals(0, uncommitted.estimatedBytes());
+    }
+
     private static byte[] randomKey(byte[] startingWith, int extraBytes, Random r) {
         byte[] suffix = new byte[extraBytes];
         r.nextBytes(suffix);
@@ -0,0 +1,88 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class CoalescingEventBusTests {
+
+    @Test
+    public void latestEventPerKey() throws Exception {
+        CoalescingEventBus<Integer, Integer> bus = new CoalescingEventBus<>("test", 100, 4);
+        CountDownLatch blocked = new CountDownLatch(1);
+        Map<Integer, List<Integer>> received = new ConcurrentHashMap<>();
+        bus.addListener(e -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException ex) {}
+            received.computeIfAbsent(e / 1000, k -> Collections.synchronizedList(new ArrayList<>())).add(e);
+        });
+        for (int i=0; i < 100; i++)
+            for (int key=0; key < 10; key++)
+                bus.publish(key, key * 1000 + i);
+        blocked.countDown();
+        bus.awaitProcessed();
+        bus.close();
+
+        Assert.assertEquals(10, received.size());
+        for (Map.Entry<Integer, List<Integer>> e : received.entrySet()) {
+            List<Integer> events = e.getValue();
+            // the latest event for every key is always delivered, and events for a key are delivered in order
+            Assert.assertEquals(e.getKey() * 1000 + 99, (int) events.get(events.size() - 1));
+            Assert.assertTrue(events.size() <= 2);
+        }
+    }
+
+    @Test
+    public void boundedWithoutDropping() throws Exception {
+        CoalescingEventBus<Integer, Integer> bus = new CoalescingEventBus<>("test", 5, 2);
+        AtomicInteger concurrent = new AtomicInteger(0);
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        Set<Integer> received = ConcurrentHashMap.newKeySet();
+        bus.addListener(e -> {
+            if (concurrent.incrementAndGet() > 2)
+                overlapped.set(true);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {}
+            received.add(e);
+            concurrent.decrementAndGet();
+        });
+        for (int i=0; i < 200; i++) {
+            bus.publish(i, i);
+            Assert.assertTrue(bus.queued() <= 5);
+        }
+        bus.awaitProcessed();
+        bus.close();
+        Assert.assertEquals(200, received.size());
+        Assert.assertFalse(overlapped.get());
+    }
+
+    @Test
+    public void awaitMatchingKeysWithTimeout() throws Exception {
+        CoalescingEventBus<Integer, Integer> bus = new CoalescingEventBus<>("test", 10, 2);
+        CountDownLatch blocked = new CountDownLatch(1);
+        bus.addListener(e -> {
+            if (e == 1) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException ex) {}
+            }
+        });
+        bus.publish(1, 1);
+        bus.publish(2, 2);
+        // other keys don't wait for the stuck event
+        Assert.assertTrue(bus.awaitProcessed(k -> k == 2, 5_000));
+        Assert.assertTrue(bus.awaitProcessed(k -> k == 3, 0));
+        // a matching key only waits until the timeout
+        long start = System.currentTimeMillis();
+        Assert.assertFalse(bus.awaitProcessed(k -> k == 1, 200));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5_000);
+        blocked.countDown();
+        Assert.assertTrue(bus.awaitProcessed(k -> k == 1, 5_000));
+        bus.close();
+    }
+}
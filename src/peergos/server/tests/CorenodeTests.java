@@ -1,11 +1,28 @@
 package peergos.server.tests;
 
 import org.junit.*;
-import peergos.server.corenode.UsernameValidator;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
 
+import java.nio.file.*;
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class CorenodeTests {
+    private static final Crypto crypto = Main.initCrypto();
 
     @Test
     public void isValidUsernameTest() {
@@ -46,4 +63,78 @@ public class CorenodeTests {
         areValid.forEach(username -> Assert.assertTrue(username + " is valid", UsernameValidator.isValidUsername(username)));
         areNotValid.forEach(username -> Assert.assertFalse(username +" is not valid", UsernameValidator.isValidUsername(username)));
     }
+
+    @Test
+    public void restartFromSnapshot() throws Exception {
+        AtomicLong reads = new AtomicLong(0);
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+                reads.incrementAndGet();
+                return super.get(hash);
+            }
+        };
+        MutablePointers mutable = UserRepository.build(storage,
+                new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash pki = ChampTests.createUser(storage, crypto);
+        MaybeMultihash root = IpfsTransaction.call(pki.publicKeyHash,
+                tid -> WriterData.createEmpty(pki.publicKeyHash, pki, storage, crypto.hasher, tid).join()
+                        .commit(pki.publicKeyHash, pki, MaybeMultihash.empty(), mutable, storage, crypto.hasher, tid)
+                        .thenApply(version -> version.get(pki).hash), storage).join();
+        Path statePath = Files.createTempDirectory("peergos-pki").resolve("pki-state.cbor");
+
+        IpfsCoreNode core = new IpfsCoreNode(pki, 1_000_000, root, storage, crypto.hasher, mutable, pki.publicKeyHash, statePath);
+        Map<String, PublicKeyHash> users = new HashMap<>();
+        for (int i=0; i < 20; i++) {
+            String username = "user" + i;
+            SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+            List<UserPublicKeyLink> chain = UserPublicKeyLink.createInitial(user, username,
+                    LocalDate.now().plusMonths(2), Collections.emptyList());
+            register(core, username, chain);
+            users.put(username, user.publicKeyHash);
+        }
+        core.close();
+
+        // register one more user after the snapshot, which the restarted node should pick up from the diff
+        MaybeMultihash snapshotRoot = mutable.getPointerTarget(pki.publicKeyHash, pki.publicKeyHash, storage).join();
+        SigningPrivateKeyAndPublicHash late = ChampTests.createUser(storage, crypto);
+        IpfsCoreNode other = new IpfsCoreNode(pki, 1_000_000, snapshotRoot, storage, crypto.hasher, mutable, pki.publicKeyHash,
+                statePath.resolveSibling("other.cbor"));
+        register(other, "late", UserPublicKeyLink.createInitial(late, "late", LocalDate.now().plusMonths(2),
+                Collections.emptyList()));
+        users.put("late", late.publicKeyHash);
+        MaybeMultihash currentRoot = mutable.getPointerTarget(pki.publicKeyHash, pki.publicKeyHash, storage).join();
+
+        long readsBefore = reads.get();
+        IpfsCoreNode restarted = new IpfsCoreNode(pki, 1_000_000, currentRoot, storage, crypto.hasher, mutable, pki.publicKeyHash, statePath);
+        // only the changed champ nodes and the new user's chain are read, not every user's chain
+        Assert.assertTrue(reads.get() - readsBefore < users.size());
+        for (Map.Entry<String, PublicKeyHash> e : users.entrySet())
+            Assert.assertEquals(e.getKey(), restarted.getUsername(e.getValue()).join());
+        Assert.assertEquals(users.size(), restarted.getUsernames("").join().size());
+        Assert.assertEquals(11, restarted.getUsernames("user1").join().size());
+    }
+
+    @Test
+    public void usernamePrefixes() {
+        UsernameIndex index = new UsernameIndex();
+        index.addAll(Arrays.asList("bob", "alice", "al", "alfred", "bobby", "carol"));
+        index.add("alice");
+
+        Assert.assertEquals(Arrays.asList("al", "alfred", "alice"), index.getByPrefix("al"));
+        Assert.assertEquals(Arrays.asList("al", "alfred"), index.getByPrefix("al", 2));
+        Assert.assertEquals(Arrays.asList("bob", "bobby"), index.getByPrefix("bob"));
+        Assert.assertEquals(Collections.emptyList(), index.getByPrefix("d"));
+        Assert.assertEquals(6, index.getByPrefix("").size());
+    }
+
+    private static void register(CoreNode core, String username, List<UserPublicKeyLink> chain) {
+        byte[] data = new CborObject.CborList(chain).serialize();
+        ProofOfWork work = crypto.hasher.generateProofOfWork(ProofOfWork.MIN_DIFFICULTY, data).join();
+        Optional<RequiredDifficulty> required = core.updateChain(username, chain, work).join();
+        if (required.isPresent()) {
+            work = crypto.hasher.generateProofOfWork(required.get().requiredDifficulty, data).join();
+            Assert.assertTrue(core.updateChain(username, chain, work).join().isEmpty());
+        }
+    }
 }
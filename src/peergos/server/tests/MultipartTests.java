@@ -74,6 +74,37 @@ public class MultipartTests {
         }
     }
 
+    @Test
+    public void partialBoundariesAndShortReads() throws IOException {
+        String boundary = "abcabcab";
+        // parts containing prefixes of the delimiter, and parts that are empty
+        List<byte[]> input = Arrays.asList(
+                "\r\n--abcabca".getBytes(),
+                new byte[0],
+                "--abcabcab\r\n--abcabcaX".getBytes(),
+                randomArray(200_000));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] part : input) {
+            body.write(("--" + boundary + "\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes());
+            body.write(part);
+            body.write("\r\n".getBytes());
+        }
+        body.write(("--" + boundary + "--\r\n").getBytes());
+        byte[] raw = body.toByteArray();
+
+        // deliver the body a few bytes at a time
+        InputStream slow = new FilterInputStream(new ByteArrayInputStream(raw)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        List<byte[]> result = MultipartReceiver.extractFiles(slow, boundary);
+        Assert.assertEquals(input.size(), result.size());
+        for (int i = 0; i < input.size(); i++)
+            Assert.assertArrayEquals(input.get(i), result.get(i));
+    }
+
     private void test(List<byte[]> input) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         for (byte[] in : input)
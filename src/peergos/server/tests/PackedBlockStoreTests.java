@@ -0,0 +1,192 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class PackedBlockStoreTests {
+    private static final PublicKeyHash owner = PublicKeyHash.NULL;
+
+    private static TransactionStore transactions() {
+        return JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+    }
+
+    private static List<byte[]> randomBlocks(Random r, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> {
+                    byte[] block = new byte[1 + r.nextInt(4096)];
+                    r.nextBytes(block);
+                    return block;
+                }).collect(Collectors.toList());
+    }
+
+    private static List<Multihash> put(PackedBlockStore store, List<byte[]> blocks) {
+        TransactionId tid = store.startTransaction(owner).join();
+        List<Multihash> hashes = store.putRaw(owner, owner, blocks.stream().map(b -> new byte[0]).collect(Collectors.toList()),
+                blocks, tid, x -> {}).join();
+        store.closeTransaction(owner, tid).join();
+        return hashes;
+    }
+
+    private static void checkContents(PackedBlockStore store, List<Multihash> hashes, List<byte[]> blocks) {
+        for (int i=0; i < hashes.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), store.getRaw(hashes.get(i)).join().get());
+        Assert.assertEquals(new HashSet<>(hashes), store.getAllBlockHashes().collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void restart() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packed");
+        Random r = new Random(7);
+        List<byte[]> blocks = randomBlocks(r, 3000);
+        PackedBlockStore store = new PackedBlockStore(dir, transactions(), 1024 * 1024);
+        List<Multihash> hashes = put(store, blocks);
+        // a duplicate put doesn't add anything
+        Assert.assertEquals(hashes.subList(0, 10), put(store, blocks.subList(0, 10)));
+        checkContents(store, hashes, blocks);
+        Assert.assertEquals(blocks.get(5).length, (int) store.getSize(hashes.get(5)).join().get());
+        store.close();
+
+        // from the clean index
+        PackedBlockStore reopened = new PackedBlockStore(dir, transactions(), 1024 * 1024);
+        checkContents(reopened, hashes, blocks);
+
+        // without a clean index, so it is rebuilt from the segments
+        List<byte[]> more = randomBlocks(r, 100);
+        List<Multihash> moreHashes = put(reopened, more);
+        reopened.delete(hashes.get(0));
+        reopened.close();
+        Files.delete(dir.resolve("index.map"));
+        PackedBlockStore rebuilt = new PackedBlockStore(dir, transactions(), 1024 * 1024);
+        Assert.assertFalse(rebuilt.contains(hashes.get(0)));
+        List<Multihash> allHashes = Stream.concat(hashes.stream().skip(1), moreHashes.stream()).collect(Collectors.toList());
+        List<byte[]> allBlocks = Stream.concat(blocks.stream().skip(1), more.stream()).collect(Collectors.toList());
+        checkContents(rebuilt, allHashes, allBlocks);
+        rebuilt.close();
+    }
+
+    @Test
+    public void truncatedRecord() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packed");
+        Random r = new Random(3);
+        List<byte[]> blocks = randomBlocks(r, 200);
+        PackedBlockStore store = new PackedBlockStore(dir, transactions(), 1024 * 1024);
+        List<Multihash> hashes = put(store, blocks);
+        store.close();
+
+        // a crash part way through an append leaves a partial record at the end of the last segment
+        Path last = lastSegment(dir);
+        long validSize = Files.size(last);
+        byte[] partial = {0, 0, 0, 36, 0, 0, 16, 0, 1, 2, 3};
+        Files.write(last, partial, StandardOpenOption.APPEND);
+        Files.delete(dir.resolve("index.map"));
+
+        PackedBlockStore recovered = new PackedBlockStore(dir, transactions(), 1024 * 1024);
+        Assert.assertEquals(validSize, Files.size(last));
+        checkContents(recovered, hashes, blocks);
+        List<byte[]> more = randomBlocks(r, 10);
+        List<Multihash> moreHashes = put(recovered, more);
+        recovered.close();
+
+        PackedBlockStore reopened = new PackedBlockStore(dir, transactions(), 1024 * 1024);
+        checkContents(reopened, Stream.concat(hashes.stream(), moreHashes.stream()).collect(Collectors.toList()),
+                Stream.concat(blocks.stream(), more.stream()).collect(Collectors.toList()));
+        reopened.close();
+    }
+
+    @Test
+    public void indexMappedInRegions() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packed");
+        Random r = new Random(5);
+        List<byte[]> blocks = randomBlocks(r, 3000);
+        // the index grows to many regions of 4 KiB
+        PackedBlockStore store = new PackedBlockStore(dir, transactions(), 1024 * 1024, 4096);
+        List<Multihash> hashes = put(store, blocks);
+        checkContents(store, hashes, blocks);
+        store.close();
+        Assert.assertTrue(Files.size(dir.resolve("index.map")) > 16 * 4096);
+
+        // the region size only affects how the index is mapped
+        PackedBlockStore reopened = new PackedBlockStore(dir, transactions(), 1024 * 1024, 64 * 1024);
+        checkContents(reopened, hashes, blocks);
+        reopened.close();
+    }
+
+    @Test
+    public void exclusiveDirectory() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packed");
+        PackedBlockStore store = new PackedBlockStore(dir, transactions(), 1024 * 1024);
+        try {
+            new PackedBlockStore(dir, transactions(), 1024 * 1024);
+            Assert.fail("Opened a packed blockstore twice");
+        } catch (IllegalStateException expected) {}
+        store.close();
+        new PackedBlockStore(dir, transactions(), 1024 * 1024).close();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packed");
+        Random r = new Random(11);
+        List<byte[]> blocks = randomBlocks(r, 2000);
+        PackedBlockStore store = new PackedBlockStore(dir, transactions(), 512 * 1024);
+        List<Multihash> hashes = put(store, blocks);
+        long sizeBefore = directorySize(dir);
+
+        List<Multihash> kept = new ArrayList<>();
+        List<byte[]> keptBlocks = new ArrayList<>();
+        List<Multihash> deleted = new ArrayList<>();
+        for (int i=0; i < hashes.size(); i++) {
+            if (i % 4 == 0) {
+                kept.add(hashes.get(i));
+                keptBlocks.add(blocks.get(i));
+            } else
+                deleted.add(hashes.get(i));
+        }
+        store.bulkDelete(deleted);
+        // reads carry on while the segments are compacted
+        CompletableFuture<Boolean> reads = CompletableFuture.supplyAsync(() -> {
+            for (int i=0; i < 5; i++)
+                for (int j=0; j < kept.size(); j++)
+                    Assert.assertArrayEquals(keptBlocks.get(j), store.getRaw(kept.get(j)).join().get());
+            return true;
+        });
+        store.compact();
+        Assert.assertTrue(reads.join());
+        long sizeAfter = directorySize(dir);
+        Assert.assertTrue("Compaction reclaimed space", sizeAfter < sizeBefore / 2);
+        checkContents(store, kept, keptBlocks);
+        for (Multihash h : deleted)
+            Assert.assertFalse(store.contains(h));
+        store.close();
+
+        PackedBlockStore reopened = new PackedBlockStore(dir, transactions(), 512 * 1024);
+        checkContents(reopened, kept, keptBlocks);
+        reopened.close();
+    }
+
+    private static Path lastSegment(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".blocks"))
+                    .max(Comparator.comparingInt(p -> Integer.parseInt(p.getFileName().toString().replaceAll("\\D", ""))))
+                    .get();
+        }
+    }
+
+    private static long directorySize(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".blocks"))
+                    .mapToLong(p -> p.toFile().length())
+                    .sum();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.runners.*;
 import peergos.server.*;
 import peergos.server.util.Args;
 import peergos.shared.*;
+import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
 
@@ -64,7 +65,16 @@ public class QuotaTests {
             newHome.uploadOrReplaceFile("file-2", new AsyncReader.ArrayBacked(data), data.length, network,
                     crypto, x -> {}, crypto.random.randomBytes(32)).get();
             Assert.fail("Quota wasn't enforced");
-        } catch (Exception e) {}
+        } catch (Exception e) {
+            Assert.assertTrue("Over quota write is reported as a rejection", isRejection(e));
+        }
+    }
+
+    private static boolean isRejection(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause())
+            if (cause instanceof HttpRejectedException)
+                return true;
+        return false;
     }
 
     @Test
@@ -0,0 +1,43 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+public class ReedSolomonTests {
+    private static final Random random = new Random(42);
+
+    @Test
+    public void identicalToReferenceEncoder() {
+        for (int original : ErasureFragmenter.ALLOWED_ORIGINAL) {
+            for (int failures : ErasureFragmenter.ALLOWED_FAILURES) {
+                if (original + 2 * failures > 255)
+                    continue;
+                for (int size : Arrays.asList(0, 1, 159, 160, 161, 4096, 1000_003)) {
+                    byte[] input = new byte[size];
+                    random.nextBytes(input);
+                    byte[][] expected = Erasure.split(input, original, failures);
+                    byte[][] actual = ReedSolomon.get(original, failures).encode(input);
+                    Assert.assertEquals(expected.length, actual.length);
+                    for (int i=0; i < expected.length; i++)
+                        Assert.assertArrayEquals("fragment " + i + " of " + original + "+" + failures + " for " + size,
+                                expected[i], actual[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() {
+        int original = ErasureFragmenter.ERASURE_ORIGINAL;
+        int failures = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+        for (int size : Arrays.asList(1, 160, 161, Chunk.MAX_SIZE - 17, Chunk.MAX_SIZE)) {
+            byte[] input = new byte[size];
+            random.nextBytes(input);
+            byte[][] encoded = ReedSolomon.get(original, failures).encode(input);
+            Assert.assertArrayEquals(input, Erasure.recombine(encoded, input.length, original, failures));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.crypto.*;
+import peergos.server.crypto.symmetric.*;
+import peergos.shared.crypto.*;
+
+import java.util.*;
+
+public class Salsa20Poly1305Tests {
+    private final Salsa20Poly1305Java symmetric = new Salsa20Poly1305Java();
+    private final Random random = new Random(1337);
+
+    @Test
+    public void identicalToTweetNacl() {
+        List<Integer> sizes = new ArrayList<>();
+        for (int i=0; i < 200; i++)
+            sizes.add(i);
+        sizes.addAll(Arrays.asList(1023, 1024, 1025, 4096 + 31, 1024 * 1024 + 3));
+        for (int size : sizes) {
+            byte[] key = new byte[TweetNaCl.SECRETBOX_KEY_BYTES];
+            byte[] nonce = new byte[TweetNaCl.SECRETBOX_NONCE_BYTES];
+            byte[] message = new byte[size];
+            random.nextBytes(key);
+            random.nextBytes(nonce);
+            random.nextBytes(message);
+
+            byte[] cipher = symmetric.secretbox(message, nonce, key);
+            Assert.assertArrayEquals("size " + size, TweetNaCl.secretbox(message, nonce, key), cipher);
+            Assert.assertArrayEquals("size " + size, message, symmetric.secretbox_open(cipher, nonce, key));
+            Assert.assertArrayEquals("size " + size, message, TweetNaCl.secretbox_open(cipher, nonce, key));
+        }
+    }
+
+    @Test
+    public void rejectTampering() {
+        byte[] key = new byte[TweetNaCl.SECRETBOX_KEY_BYTES];
+        byte[] nonce = new byte[TweetNaCl.SECRETBOX_NONCE_BYTES];
+        byte[] message = new byte[100];
+        random.nextBytes(key);
+        random.nextBytes(message);
+        byte[] cipher = symmetric.secretbox(message, nonce, key);
+        for (int i=0; i < cipher.length; i++) {
+            byte[] tampered = cipher.clone();
+            tampered[i] ^= 1;
+            try {
+                symmetric.secretbox_open(tampered, nonce, key);
+                Assert.fail("Accepted modified byte " + i);
+            } catch (InvalidCipherTextException expected) {}
+        }
+        try {
+            symmetric.secretbox_open(Arrays.copyOf(cipher, 15), nonce, key);
+            Assert.fail("Accepted truncated cipher text");
+        } catch (InvalidCipherTextException expected) {}
+    }
+
+    @Test
+    public void inPlace() {
+        byte[] key = new byte[TweetNaCl.SECRETBOX_KEY_BYTES];
+        byte[] nonce = new byte[TweetNaCl.SECRETBOX_NONCE_BYTES];
+        byte[] message = new byte[1000];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+        random.nextBytes(message);
+
+        byte[] buf = new byte[7 + Salsa20Poly1305Java.OVERHEAD_BYTES + message.length];
+        System.arraycopy(message, 0, buf, 7 + Salsa20Poly1305Java.OVERHEAD_BYTES, message.length);
+        Salsa20Poly1305Java.seal(buf, 7 + Salsa20Poly1305Java.OVERHEAD_BYTES, message.length, buf, 7, nonce, key);
+        Assert.assertArrayEquals(TweetNaCl.secretbox(message, nonce, key), Arrays.copyOfRange(buf, 7, buf.length));
+
+        Assert.assertTrue(Salsa20Poly1305Java.open(buf, 7, buf.length - 7, buf, 7 + Salsa20Poly1305Java.OVERHEAD_BYTES, nonce, key));
+        Assert.assertArrayEquals(message, Arrays.copyOfRange(buf, 7 + Salsa20Poly1305Java.OVERHEAD_BYTES, buf.length));
+    }
+}
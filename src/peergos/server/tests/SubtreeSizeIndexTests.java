@@ -0,0 +1,130 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.space.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class SubtreeSizeIndexTests {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Hasher writeHasher = crypto.hasher;
+    private static final Function<ByteArrayWrapper, CompletableFuture<byte[]>> keyHasher = IpfsCoreNode::keyHash;
+
+    @Test
+    public void incrementalSizes() {
+        AtomicLong linkReads = new AtomicLong(0);
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+                linkReads.incrementAndGet();
+                return super.getLinks(root);
+            }
+        };
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).join();
+        Random r = new Random(42);
+
+        Champ<CborObject.CborMerkleLink> champ = Champ.empty(c -> (CborObject.CborMerkleLink)c);
+        Multihash root = storage.put(user.publicKeyHash, user, champ.serialize(), writeHasher, tid).join();
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> tree = new Pair<>(champ, root);
+        for (int i = 0; i < 500; i++)
+            tree = putRandom(tree, user, tid, storage, r);
+
+        ContentAddressedStorage indexed = new SubtreeSizeIndexedStorage(storage,
+                new JdbcSubtreeSizes(Main.buildEphemeralSqlite(), new SqliteCommands()));
+        long fullSize = storage.getRecursiveBlockSize(tree.right).join();
+        Assert.assertEquals(fullSize, (long) indexed.getRecursiveBlockSize(tree.right).join());
+
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> updated = tree;
+        for (int i = 0; i < 3; i++)
+            updated = putRandom(updated, user, tid, storage, r);
+        long expectedChange = storage.getChangeInContainedSize(tree.right, updated.right).join();
+
+        long readsBefore = linkReads.get();
+        Assert.assertEquals(expectedChange, (long) indexed.getChangeInContainedSize(tree.right, updated.right).join());
+        // only the changed champ nodes are read, not the whole tree
+        Assert.assertTrue(linkReads.get() - readsBefore < 30);
+        Assert.assertEquals(storage.getRecursiveBlockSize(updated.right).join(),
+                indexed.getRecursiveBlockSize(updated.right).join());
+
+        // with a cold index only the changed paths are read, not both whole trees
+        ContentAddressedStorage cold = new SubtreeSizeIndexedStorage(storage,
+                new JdbcSubtreeSizes(Main.buildEphemeralSqlite(), new SqliteCommands()));
+        long coldReadsBefore = linkReads.get();
+        Assert.assertEquals(expectedChange, (long) cold.getChangeInContainedSize(tree.right, updated.right).join());
+        Assert.assertTrue(linkReads.get() - coldReadsBefore < 30);
+    }
+
+    @Test
+    public void removeDeletedBlocks() {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).join();
+        Random r = new Random(7);
+
+        Champ<CborObject.CborMerkleLink> champ = Champ.empty(c -> (CborObject.CborMerkleLink)c);
+        Multihash root = storage.put(user.publicKeyHash, user, champ.serialize(), writeHasher, tid).join();
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> tree = new Pair<>(champ, root);
+        for (int i = 0; i < 100; i++)
+            tree = putRandom(tree, user, tid, storage, r);
+
+        JdbcSubtreeSizes index = new JdbcSubtreeSizes(Main.buildEphemeralSqlite(), new SqliteCommands());
+        ContentAddressedStorage indexed = new SubtreeSizeIndexedStorage(storage, index);
+        long size = indexed.getRecursiveBlockSize(tree.right).join();
+        Assert.assertEquals(Optional.of(size), index.get(tree.right));
+
+        List<Multihash> links = storage.getLinks(tree.right).join();
+        index.removeAll(Arrays.asList(tree.right, links.get(0)));
+        Assert.assertTrue(index.get(tree.right).isEmpty());
+        Assert.assertTrue(index.get(links.get(0)).isEmpty());
+        // the removed entries are added again the next time they are needed
+        Assert.assertEquals(size, (long) indexed.getRecursiveBlockSize(tree.right).join());
+        Assert.assertEquals(Optional.of(size), index.get(tree.right));
+
+        // large groups are split across several statements
+        Map<Multihash, Long> many = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            many.put(new Multihash(Multihash.Type.sha2_256, hash), (long) i);
+        }
+        index.putAll(many);
+        for (Map.Entry<Multihash, Long> e : many.entrySet())
+            Assert.assertEquals(Optional.of(e.getValue()), index.get(e.getKey()));
+        index.removeAll(new ArrayList<>(many.keySet()));
+        for (Multihash hash : many.keySet())
+            Assert.assertTrue(index.get(hash).isEmpty());
+    }
+
+    private static Pair<Champ<CborObject.CborMerkleLink>, Multihash> putRandom(Pair<Champ<CborObject.CborMerkleLink>, Multihash> tree,
+                                                                            SigningPrivateKeyAndPublicHash user,
+                                                                            TransactionId tid,
+                                                                            RAMStorage storage,
+                                                                            Random r) {
+        byte[] key = new byte[32];
+        r.nextBytes(key);
+        byte[] data = new byte[r.nextInt(1000)];
+        r.nextBytes(data);
+        Multihash value = storage.putRaw(user.publicKeyHash, user.publicKeyHash, Collections.singletonList(new byte[0]),
+                Collections.singletonList(data), tid, x -> {}).join().get(0);
+        ByteArrayWrapper k = new ByteArrayWrapper(key);
+        return tree.left.put(user.publicKeyHash, user, k, keyHasher.apply(k).join(), 0, Optional.empty(),
+                Optional.of(new CborObject.CborMerkleLink(value)), ChampWrapper.BIT_WIDTH,
+                ChampWrapper.MAX_HASH_COLLISIONS_PER_LEVEL, keyHasher, tid, storage, writeHasher, tree.right).join();
+    }
+}
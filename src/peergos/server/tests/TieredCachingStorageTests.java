@@ -0,0 +1,78 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+public class TieredCachingStorageTests {
+
+    @Test
+    public void cachesAndEvicts() throws Exception {
+        RAMStorage target = new RAMStorage();
+        Path cacheDir = Files.createTempDirectory("peergos-block-cache");
+        TieredCachingStorage cache = new TieredCachingStorage(target, 10_000, 1_000, cacheDir, 100_000);
+        PublicKeyHash owner = PublicKeyHash.NULL;
+        TransactionId tid = target.startTransaction(owner).join();
+
+        byte[] small = new CborObject.CborString("a small cbor block").toByteArray();
+        Multihash smallHash = target.put(owner, owner, Collections.singletonList(new byte[0]),
+                Collections.singletonList(small), tid).join().get(0);
+        byte[] large = new byte[20_000];
+        new Random(1).nextBytes(large);
+        Multihash largeHash = target.putRaw(owner, owner, Collections.singletonList(new byte[0]),
+                Collections.singletonList(large), tid, x -> {}).join().get(0);
+
+        Assert.assertArrayEquals(small, cache.getRaw(smallHash).join().get());
+        // large blocks are only admitted to disk on their second miss
+        Assert.assertArrayEquals(large, cache.getRaw(largeHash).join().get());
+        Assert.assertArrayEquals(large, cache.getRaw(largeHash).join().get());
+
+        // remove from the underlying store, the cache should still serve both
+        target.delete(smallHash);
+        target.delete(largeHash);
+        Assert.assertArrayEquals(small, cache.getRaw(smallHash).join().get());
+        Assert.assertArrayEquals(large, cache.getRaw(largeHash).join().get());
+        Assert.assertEquals(large.length, (int) cache.getSize(largeHash).join().get());
+
+        // a fresh cache over the same directory reloads the disk tier
+        TieredCachingStorage reloaded = new TieredCachingStorage(target, 10_000, 1_000, cacheDir, 100_000);
+        Assert.assertArrayEquals(large, reloaded.getRaw(largeHash).join().get());
+
+        // deleting through the cache evicts
+        cache.delete(smallHash);
+        cache.delete(largeHash);
+        Assert.assertTrue(cache.getRaw(smallHash).join().isEmpty());
+        Assert.assertTrue(cache.getRaw(largeHash).join().isEmpty());
+    }
+
+    @Test
+    public void respectsDiskBound() throws Exception {
+        RAMStorage target = new RAMStorage();
+        Path cacheDir = Files.createTempDirectory("peergos-block-cache");
+        TieredCachingStorage cache = new TieredCachingStorage(target, 10_000, 1_000, cacheDir, 50_000);
+        PublicKeyHash owner = PublicKeyHash.NULL;
+        TransactionId tid = target.startTransaction(owner).join();
+        Random r = new Random(2);
+        List<Multihash> hashes = new ArrayList<>();
+        for (int i=0; i < 10; i++) {
+            byte[] block = new byte[20_000];
+            r.nextBytes(block);
+            Multihash hash = target.putRaw(owner, owner, Collections.singletonList(new byte[0]),
+                    Collections.singletonList(block), tid, x -> {}).join().get(0);
+            cache.getRaw(hash).join();
+            cache.getRaw(hash).join();
+            hashes.add(hash);
+        }
+        long totalOnDisk = Files.walk(cacheDir)
+                .filter(Files::isRegularFile)
+                .mapToLong(p -> p.toFile().length())
+                .sum();
+        Assert.assertTrue(totalOnDisk <= 50_000);
+    }
+}
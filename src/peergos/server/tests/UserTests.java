@@ -19,6 +19,7 @@ import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.*;
 import peergos.server.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.storage.controller.*;
@@ -887,6 +888,222 @@ public abstract class UserTests {
         Assert.assertTrue("Correct used space", totalSpaceUsed > 10*1024*1024);
     }
 
+    @Test
+    public void writeIntoLaterChunks() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "largefile.bin";
+        int MB = 1024 * 1024;
+        byte[] data = new byte[12 * MB];
+        random.nextBytes(data);
+        FileWrapper userRoot2 = userRoot.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(data), data.length,
+                context.network, context.crypto, l -> {}, context.crypto.random.randomBytes(32)).join();
+
+        // overwrite part of the third chunk, which is located directly rather than via the second
+        byte[] dataInsert = "some data in the third chunk".getBytes();
+        int start = 11 * MB;
+        FileWrapper userRoot3 = uploadFileSection(userRoot2, filename, new AsyncReader.ArrayBacked(dataInsert), start,
+                start + dataInsert.length, context.network, context.crypto, l -> {}).join();
+        System.arraycopy(dataInsert, 0, data, start, dataInsert.length);
+        checkFileContents(data, userRoot3.getDescendentByPath(filename, crypto.hasher, context.network).join().get(), context);
+
+        // extend the file into a fourth chunk which doesn't exist yet
+        byte[] extension = new byte[4 * MB];
+        random.nextBytes(extension);
+        FileWrapper userRoot4 = uploadFileSection(userRoot3, filename, new AsyncReader.ArrayBacked(extension), data.length,
+                data.length + extension.length, context.network, context.crypto, l -> {}).join();
+        byte[] extended = Arrays.copyOf(data, data.length + extension.length);
+        System.arraycopy(extension, 0, extended, data.length, extension.length);
+        checkFileContents(extended, userRoot4.getDescendentByPath(filename, crypto.hasher, context.network).join().get(), context);
+    }
+
+    @Test
+    public void groupUpload() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        int originalBlobSize = CryptreeNode.getMaxChildLinksPerBlob();
+        CryptreeNode.setMaxChildLinkPerBlob(4);
+        try {
+            context.getUserRoot().join().mkdir("dir", network, false, crypto).join();
+            Path dirPath = Paths.get(username, "dir");
+            context.getByPath(dirPath).join().get().uploadOrReplaceFile("existing", AsyncReader.build(new byte[10]),
+                    10, network, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+
+            Map<String, byte[]> contents = new HashMap<>();
+            List<FileUploadProperties> files = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                // include an empty file and one with two chunks
+                byte[] data = new byte[i == 9 ? Chunk.MAX_SIZE + 1000 : i * 100];
+                random.nextBytes(data);
+                contents.put("file" + i, data);
+                files.add(new FileUploadProperties("file" + i, AsyncReader.build(data), data.length, l -> {}));
+            }
+            context.uploadFiles(dirPath, files).join();
+
+            FileWrapper dir = context.getByPath(dirPath).join().get();
+            Set<String> names = dir.getChildren(crypto.hasher, network).join().stream()
+                    .map(FileWrapper::getName)
+                    .collect(Collectors.toSet());
+            Set<String> expected = new HashSet<>(contents.keySet());
+            expected.add("existing");
+            Assert.assertEquals(expected, names);
+            for (Map.Entry<String, byte[]> e : contents.entrySet())
+                checkFileContents(e.getValue(), context.getByPath(dirPath.resolve(e.getKey())).join().get(), context);
+
+            // existing files are not overwritten
+            try {
+                context.uploadFiles(dirPath, Arrays.asList(
+                        new FileUploadProperties("new", AsyncReader.build(new byte[1]), 1, l -> {}),
+                        new FileUploadProperties("file0", AsyncReader.build(new byte[1]), 1, l -> {}))).join();
+                Assert.fail("Overwrote an existing file");
+            } catch (CompletionException expectedFailure) {}
+            Assert.assertTrue(context.getByPath(dirPath.resolve("new")).join().isEmpty());
+        } finally {
+            CryptreeNode.setMaxChildLinkPerBlob(originalBlobSize);
+        }
+    }
+
+    @Test
+    public void windowedUpload() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper home = context.getUserRoot().join();
+        int nChunks = 5, window = 3;
+        byte[] data = new byte[(nChunks - 1) * Chunk.MAX_SIZE + 1000];
+        random.nextBytes(data);
+
+        // every chunk is committed, in order, even though the first commit is the slowest
+        List<ByteArrayWrapper> committed = Collections.synchronizedList(new ArrayList<>());
+        byte[] firstMapKey = crypto.random.randomBytes(32);
+        byte[] streamSecret = crypto.random.randomBytes(32);
+        uploadWithWindow(home, data, firstMapKey, streamSecret, window, committed, -1).join();
+        Assert.assertEquals(chunkMapKeys(firstMapKey, streamSecret, nChunks), committed);
+
+        // a failed commit in the middle of the window leaves only the preceding chunks committed
+        committed.clear();
+        byte[] otherMapKey = crypto.random.randomBytes(32);
+        try {
+            uploadWithWindow(home, data, otherMapKey, streamSecret, window, committed, 2).join();
+            Assert.fail("Upload should have failed");
+        } catch (CompletionException expected) {}
+        Assert.assertEquals(chunkMapKeys(otherMapKey, streamSecret, 2), committed);
+    }
+
+    private List<ByteArrayWrapper> chunkMapKeys(byte[] firstMapKey, byte[] streamSecret, int nChunks) {
+        return IntStream.range(0, nChunks)
+                .mapToObj(i -> new ByteArrayWrapper(FileProperties.calculateMapKey(streamSecret, firstMapKey,
+                        (long) i * Chunk.MAX_SIZE, crypto.hasher).join()))
+                .collect(Collectors.toList());
+    }
+
+    /** Upload a file which isn't linked from any directory, recording the map key of each committed chunk.
+     *
+     * @param failAt the index of the chunk commit to fail, or -1
+     */
+    private CompletableFuture<Snapshot> uploadWithWindow(FileWrapper parent,
+                                                         byte[] data,
+                                                         byte[] firstMapKey,
+                                                         byte[] streamSecret,
+                                                         int window,
+                                                         List<ByteArrayWrapper> committed,
+                                                         int failAt) {
+        AtomicInteger commits = new AtomicInteger(0);
+        MutableTree recording = new MutableTree() {
+            @Override
+            public CompletableFuture<WriterData> put(WriterData base, PublicKeyHash owner, SigningPrivateKeyAndPublicHash writer,
+                                                     byte[] mapKey, MaybeMultihash existing, Multihash value, TransactionId tid) {
+                int index = commits.getAndIncrement();
+                if (index == failAt)
+                    return Futures.errored(new IllegalStateException("Failing commit " + index));
+                if (index == 0) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {}
+                }
+                committed.add(new ByteArrayWrapper(mapKey));
+                return network.tree.put(base, owner, writer, mapKey, existing, value, tid);
+            }
+
+            @Override
+            public CompletableFuture<WriterData> putAll(WriterData base, PublicKeyHash owner, SigningPrivateKeyAndPublicHash writer,
+                                                        List<Triple<byte[], MaybeMultihash, Multihash>> mappings, TransactionId tid) {
+                return network.tree.putAll(base, owner, writer, mappings, tid);
+            }
+
+            @Override
+            public CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
+                return network.tree.get(base, owner, writer, mapKey);
+            }
+
+            @Override
+            public CompletableFuture<WriterData> remove(WriterData base, PublicKeyHash owner, SigningPrivateKeyAndPublicHash writer,
+                                                        byte[] mapKey, MaybeMultihash existing, TransactionId tid) {
+                return network.tree.remove(base, owner, writer, mapKey, existing, tid);
+            }
+        };
+        NetworkAccess recordingNetwork = network.withMutableTree(recording);
+        FileProperties props = new FileProperties("windowed", false, false, "application/octet-stream", data.length,
+                LocalDateTime.now(), false, Optional.empty(), Optional.of(streamSecret));
+        FileUploader uploader = new FileUploader("windowed", "application/octet-stream", AsyncReader.build(data), 0,
+                data.length, SymmetricKey.random(), SymmetricKey.random(), parent.getLocation(), SymmetricKey.random(),
+                x -> {}, props, firstMapKey);
+        SigningPrivateKeyAndPublicHash signer = parent.signingPair();
+        return network.synchronizer.applyComplexUpdate(parent.owner(), signer,
+                (current, committer) -> uploader.upload(current, committer, recordingNetwork, parent.owner(), signer,
+                        crypto.hasher, window));
+    }
+
+    @Test
+    public void multiBlobDirectory() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        int originalBlobSize = CryptreeNode.getMaxChildLinksPerBlob();
+        CryptreeNode.setMaxChildLinkPerBlob(4);
+        try {
+            context.getUserRoot().join().mkdir("dir", network, false, crypto).join();
+            Path dirPath = Paths.get(username, "dir");
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < 18; i++) {
+                String name = "file" + i;
+                names.add(name);
+                context.getByPath(dirPath).join().get().uploadOrReplaceFile(name, AsyncReader.build(new byte[i]),
+                        i, network, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+            }
+
+            // the second listing and lookups use the remembered blob locations
+            for (int i = 0; i < 2; i++) {
+                FileWrapper dir = context.getByPath(dirPath).join().get();
+                Set<String> listed = dir.getChildren(crypto.hasher, network).join().stream()
+                        .map(FileWrapper::getName)
+                        .collect(Collectors.toSet());
+                Assert.assertEquals(names, listed);
+                for (String name : names)
+                    Assert.assertTrue(dir.getChild(name, crypto.hasher, network).join().isPresent());
+                Assert.assertTrue(dir.getChild("missing", crypto.hasher, network).join().isEmpty());
+            }
+
+            // change the directory and check stale hints are not used
+            FileWrapper toRemove = context.getByPath(dirPath.resolve("file17")).join().get();
+            toRemove.remove(context.getByPath(dirPath).join().get(), dirPath.resolve("file17"), context).join();
+            names.remove("file17");
+            FileWrapper dir = context.getByPath(dirPath).join().get();
+            Assert.assertTrue(dir.getChild("file17", crypto.hasher, network).join().isEmpty());
+            Set<String> listed = dir.getChildren(crypto.hasher, network).join().stream()
+                    .map(FileWrapper::getName)
+                    .collect(Collectors.toSet());
+            Assert.assertEquals(names, listed);
+            Assert.assertTrue(dir.getChild("file16", crypto.hasher, network).join().isPresent());
+        } finally {
+            CryptreeNode.setMaxChildLinkPerBlob(originalBlobSize);
+        }
+    }
+
     @Test
     public void truncate() {
         String username = generateUsername();
@@ -963,6 +1180,36 @@ public abstract class UserTests {
         }
     }
 
+    @Test
+    public void sequentialReadWithReadAhead() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "largefile.bin";
+        int MB = 1024*1024;
+        byte[] data = new byte[27 * MB];
+        random.nextBytes(data);
+        uploadFileSection(userRoot, filename, new AsyncReader.ArrayBacked(data), 0, data.length, context.network,
+                context.crypto, l -> {}).join();
+
+        AsyncReader reader = context.getByPath(Paths.get(username, filename)).join()
+                .get().getInputStream(network, crypto, x -> { }).join();
+        byte[] buf = new byte[3 * MB];
+        // read most of the way through, jump back into chunks that were read ahead, then read to the end
+        for (int offset = 0; offset < 18 * MB; offset += buf.length) {
+            reader.readIntoArray(buf, 0, buf.length).join();
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, offset, offset + buf.length), buf);
+        }
+        reader = reader.seek(7 * MB).join();
+        for (int offset = 7 * MB; offset < data.length; offset += buf.length) {
+            int toRead = Math.min(buf.length, data.length - offset);
+            reader.readIntoArray(buf, 0, toRead).join();
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, offset, offset + toRead), Arrays.copyOfRange(buf, 0, toRead));
+        }
+    }
+
     @Test
     public void writeTiming() throws Exception {
         String username = generateUsername();
@@ -0,0 +1,43 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class WeightedLruCacheTests {
+
+    @Test
+    public void boundedByWeight() {
+        WeightedLruCache<Integer, byte[]> cache = new WeightedLruCache<>(16 * 1000, b -> b.length);
+        for (int i=0; i < 1000; i++)
+            cache.put(i, new byte[100]);
+        Assert.assertTrue(cache.weight() <= cache.maxWeight());
+        Assert.assertTrue(cache.evictionCount() > 0);
+
+        // the most recent entries are retained
+        Assert.assertTrue(cache.get(999).isPresent());
+        Assert.assertFalse(cache.get(0).isPresent());
+        Assert.assertEquals(1, cache.hitCount());
+        Assert.assertEquals(1, cache.missCount());
+
+        // values too large for a segment are not cached
+        cache.put(-1, new byte[2000]);
+        Assert.assertFalse(cache.containsKey(-1));
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        WeightedLruCache<Integer, byte[]> cache = new WeightedLruCache<>(160_000, b -> b.length);
+        ForkJoinPool pool = new ForkJoinPool(8);
+        pool.submit(() -> IntStream.range(0, 100_000).parallel().forEach(i -> {
+            int key = i % 5_000;
+            if (cache.get(key).isEmpty())
+                cache.put(key, new byte[key % 100]);
+        })).get();
+        Assert.assertTrue(cache.weight() <= cache.maxWeight());
+        Assert.assertEquals(100_000, cache.hitCount() + cache.missCount());
+    }
+}
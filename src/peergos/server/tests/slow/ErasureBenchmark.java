@@ -0,0 +1,45 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.util.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** Compares the table driven ReedSolomon encoder with the reference Erasure.split on full size chunks. The timings
+ *  are only logged, ReedSolomonTests checks the two produce identical fragments.
+ */
+public class ErasureBenchmark {
+    private static final Logger LOG = Logging.LOG();
+    private static final int ORIGINAL = ErasureFragmenter.ERASURE_ORIGINAL;
+    private static final int FAILURES = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+
+    private final byte[] chunk = new byte[Chunk.MAX_SIZE];
+
+    public ErasureBenchmark() {
+        new Random(1).nextBytes(chunk);
+    }
+
+    private double throughput(String name, Function<byte[], byte[][]> encoder, int warmup, int iterations) {
+        for (int i = 0; i < warmup; i++)
+            encoder.apply(chunk);
+        long t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            encoder.apply(chunk);
+        long t2 = System.nanoTime();
+        double mibPerSec = (double) iterations * chunk.length / 1024 / 1024 / ((t2 - t1) / 1e9);
+        LOG.info(String.format("%s: %.1f MiB/s", name, mibPerSec));
+        return mibPerSec;
+    }
+
+    @Test
+    public void encode() {
+        double reference = throughput("Erasure.split", c -> Erasure.split(c, ORIGINAL, FAILURES), 2, 5);
+        ReedSolomon rs = ReedSolomon.get(ORIGINAL, FAILURES);
+        double tables = throughput("ReedSolomon.encode", rs::encode, 10, 50);
+        LOG.info(String.format("Speedup: %.1fx", tables / reference));
+    }
+}
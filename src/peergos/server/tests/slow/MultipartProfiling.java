@@ -12,6 +12,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class MultipartProfiling {
 	private static final Logger LOG = Logging.LOG();
@@ -68,7 +69,7 @@ public class MultipartProfiling {
         for (int i = 0; i < requests; i++)
             profile(100 * 1024, 1);
         long t2 = System.currentTimeMillis();
-        System.out.printf("Did %d multipart requests, averaging %d mS each.\n", requests, (t2 - t1) / requests);
+        LOG.info(String.format("Did %d multipart requests, averaging %d mS each.", requests, (t2 - t1) / requests));
     }
 
     private void profile(int size, int count) throws IOException {
@@ -85,4 +86,87 @@ public class MultipartProfiling {
 
         Assert.assertTrue("Same length on other end", sameLength);
     }
+
+    /** Compare the throughput of the buffered parser against the original byte at a time parser, on in memory bodies
+     *  of the shape we receive in block puts.
+     */
+    @Test
+    public void parserThroughput() throws IOException {
+        for (int blockSize : new int[] {4 * 1024, 100 * 1024, 1024 * 1024}) {
+            int blocks = 10;
+            String boundary = "===" + System.currentTimeMillis() + "===";
+            byte[] body = multipartBody(boundary, IntStream.range(0, blocks)
+                    .mapToObj(i -> randomArray(blockSize))
+                    .collect(Collectors.toList()));
+
+            int iterations = Math.max(10, 200_000_000 / body.length);
+            // warm up
+            for (int i = 0; i < iterations; i++) {
+                legacyExtractFiles(new ByteArrayInputStream(body), boundary);
+                MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary);
+            }
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                Assert.assertEquals(blocks, legacyExtractFiles(new ByteArrayInputStream(body), boundary).size());
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                Assert.assertEquals(blocks, MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary).size());
+            long t2 = System.nanoTime();
+            double mb = (double) body.length * iterations / 1024 / 1024;
+            LOG.info(String.format("Block size %d: original parser %.1f MiB/s, buffered parser %.1f MiB/s", blockSize,
+                    mb * 1e9 / (t1 - t0), mb * 1e9 / (t2 - t1)));
+        }
+    }
+
+    private static byte[] multipartBody(String boundary, List<byte[]> parts) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bout.write(("--" + boundary + "\r\n" +
+                    "Content-Disposition: file; name=\"file\";\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Content-Transfer-Encoding: binary\r\n\r\n").getBytes());
+            bout.write(part);
+            bout.write("\r\n".getBytes());
+        }
+        bout.write(("--" + boundary + "--\r\n").getBytes());
+        return bout.toByteArray();
+    }
+
+    /** The original byte at a time parser, kept as a baseline
+     */
+    private static List<byte[]> legacyExtractFiles(InputStream rawIn, String boundary) throws IOException {
+        InputStream in = new BufferedInputStream(rawIn);
+        legacyReadUntil("\r\n".getBytes(), in);
+        legacyReadUntil("\r\n\r\n".getBytes(), in);
+        byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
+        List<byte[]> files = new ArrayList<>();
+        while (true) {
+            files.add(legacyReadUntil(boundaryBytes, in));
+            byte[] headers = legacyReadUntil("\r\n\r\n".getBytes(), in);
+            if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
+                return files;
+        }
+    }
+
+    private static byte[] legacyReadUntil(byte[] pattern, InputStream in) throws IOException {
+        ByteArrayOutputStream prior = new ByteArrayOutputStream();
+        int r;
+        int indexInPattern = 0;
+        while ((r = in.read()) != -1) {
+            if ((byte) r == pattern[indexInPattern]) {
+                indexInPattern++;
+                if (indexInPattern == pattern.length)
+                    return prior.toByteArray();
+            } else {
+                if (indexInPattern > 0)
+                    prior.write(pattern, 0, indexInPattern);
+                indexInPattern = 0;
+                if ((byte) r == pattern[0])
+                    indexInPattern = 1;
+                else
+                    prior.write(r);
+            }
+        }
+        return prior.toByteArray();
+    }
 }
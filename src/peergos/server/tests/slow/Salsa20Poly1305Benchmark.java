@@ -0,0 +1,68 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.crypto.*;
+import peergos.server.crypto.symmetric.*;
+import peergos.server.util.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.user.fs.*;
+
+import java.util.*;
+import java.util.logging.*;
+
+/** Compares secret box throughput on full size chunks of the pure Java implementation with the reference TweetNaCl
+ *  port and, where it can be loaded, the native TweetNaCl.
+ */
+public class Salsa20Poly1305Benchmark {
+    private static final Logger LOG = Logging.LOG();
+    private final byte[] chunk = new byte[Chunk.MAX_SIZE];
+    private final byte[] key = new byte[TweetNaCl.SECRETBOX_KEY_BYTES];
+    private final byte[] nonce = new byte[TweetNaCl.SECRETBOX_NONCE_BYTES];
+
+    public Salsa20Poly1305Benchmark() {
+        Random r = new Random(1);
+        r.nextBytes(chunk);
+        r.nextBytes(key);
+        r.nextBytes(nonce);
+    }
+
+    private double throughput(String name, Salsa20Poly1305 impl, int warmup, int iterations) {
+        byte[] cipher = impl.secretbox(chunk, nonce, key);
+        for (int i = 0; i < warmup; i++)
+            impl.secretbox_open(impl.secretbox(chunk, nonce, key), nonce, key);
+        long t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            impl.secretbox(chunk, nonce, key);
+        long t2 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            impl.secretbox_open(cipher, nonce, key);
+        long t3 = System.nanoTime();
+        double mib = (double) iterations * chunk.length / 1024 / 1024;
+        double box = mib / ((t2 - t1) / 1e9), open = mib / ((t3 - t2) / 1e9);
+        LOG.info(String.format("%s: secretbox %.1f MiB/s, secretbox_open %.1f MiB/s", name, box, open));
+        return box + open;
+    }
+
+    @Test
+    public void chunkEncryption() {
+        Salsa20Poly1305 reference = new Salsa20Poly1305() {
+            @Override
+            public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
+                return TweetNaCl.secretbox(data, nonce, key);
+            }
+
+            @Override
+            public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+                return TweetNaCl.secretbox_open(cipher, nonce, key);
+            }
+        };
+        double tweetNacl = throughput("TweetNaCl", reference, 2, 5);
+        try {
+            throughput("JniTweetNacl", new JniTweetNacl.Symmetric(JniTweetNacl.build()), 5, 20);
+        } catch (Throwable t) {
+            LOG.info("JniTweetNacl unavailable: " + t.getMessage());
+        }
+        double java = throughput("Salsa20Poly1305Java", new Salsa20Poly1305Java(), 20, 50);
+        LOG.info(String.format("Speedup over TweetNaCl: %.1fx", java / tweetNacl));
+    }
+}
@@ -96,6 +96,29 @@ public class SmallFileBenchmark {
         }
     }
 
+    @Test
+    public void smallFilesInOneCommit() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = ensureSignedUp(username, password, network, crypto);
+        byte[] data = new byte[1024];
+        random.nextBytes(data);
+        List<FileUploadProperties> files = IntStream.range(0, 100)
+                .mapToObj(i -> new FileUploadProperties(randomString(), AsyncReader.build(data), data.length, x -> {}))
+                .collect(Collectors.toList());
+
+        long t1 = System.currentTimeMillis();
+        context.uploadFiles(Paths.get(username), files).join();
+        long duration = System.currentTimeMillis() - t1;
+        System.err.printf("UPLOAD(%d files) duration: %d mS, av: %d mS\n", files.size(), duration, duration / files.size());
+
+        for (FileUploadProperties file : files) {
+            FileWrapper f = context.getByPath(Paths.get(username, file.filename)).join().get();
+            byte[] readData = Serialize.readFully(f.getInputStream(network, crypto, x -> {}).join(), data.length).join();
+            Assert.assertTrue(Arrays.equals(readData, data));
+        }
+    }
+
     private static String randomString() {
         return UUID.randomUUID().toString();
     }
@@ -0,0 +1,213 @@
+package peergos.server.util;
+
+import io.prometheus.client.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** Delivers events to listeners asynchronously, on a fixed set of worker threads.
+ *
+ *  At most one event per key is queued. Publishing an event for a key which already has one waiting replaces it in
+ *  place, so listeners only see the latest event for each key (e.g. the latest root of a writer). Events with the same
+ *  key are never processed concurrently. When the queue is full, publishers block until there is space, so no event
+ *  is ever dropped.
+ */
+public class CoalescingEventBus<K, E> {
+    private static final Logger LOG = Logging.LOG();
+
+    private static final Gauge queued = Gauge.build()
+            .labelNames("bus")
+            .name("event_bus_queued")
+            .help("Number of events waiting to be processed")
+            .register();
+    private static final Counter coalesced = Counter.build()
+            .labelNames("bus")
+            .name("event_bus_coalesced")
+            .help("Number of events replaced by a later event for the same key before being processed")
+            .register();
+    private static final Counter processed = Counter.build()
+            .labelNames("bus")
+            .name("event_bus_processed")
+            .help("Number of events delivered to listeners")
+            .register();
+    private static final Counter failed = Counter.build()
+            .labelNames("bus")
+            .name("event_bus_listener_failures")
+            .help("Number of exceptions thrown by listeners")
+            .register();
+    private static final Counter blockedMillis = Counter.build()
+            .labelNames("bus")
+            .name("event_bus_publisher_blocked_ms")
+            .help("Total time publishers spent waiting for space in the queue")
+            .register();
+
+    private static class Queued<E> {
+        public final E event;
+        public final long sequence;
+
+        public Queued(E event, long sequence) {
+            this.event = event;
+            this.sequence = sequence;
+        }
+    }
+
+    private final String name;
+    private final int maxQueued;
+    private final List<Consumer<? super E>> listeners = new CopyOnWriteArrayList<>();
+    private final Set<Thread> workers = new HashSet<>();
+    // the following are guarded by this
+    private final LinkedHashMap<K, Queued<E>> pending = new LinkedHashMap<>();
+    private final Map<K, Long> processing = new HashMap<>();
+    private long nextSequence = 0;
+    private boolean closed = false;
+
+    public CoalescingEventBus(String name, int maxQueued, int workers) {
+        if (maxQueued < 1 || workers < 1)
+            throw new IllegalArgumentException("Event bus needs a queue and at least one worker!");
+        this.name = name;
+        this.maxQueued = maxQueued;
+        for (int i=0; i < workers; i++) {
+            Thread worker = new Thread(this::run, name + " event worker " + i);
+            worker.setDaemon(true);
+            this.workers.add(worker);
+        }
+        for (Thread worker : this.workers)
+            worker.start();
+    }
+
+    public void addListener(Consumer<? super E> listener) {
+        listeners.add(listener);
+    }
+
+    /** Queue an event, replacing any event still waiting with the same key. This blocks while the queue is full.
+     *
+     * @param key
+     * @param event
+     */
+    public synchronized void publish(K key, E event) {
+        if (pending.size() >= maxQueued && ! pending.containsKey(key)) {
+            long start = System.currentTimeMillis();
+            while (pending.size() >= maxQueued && ! pending.containsKey(key) && ! closed)
+                waitUninterruptibly();
+            blockedMillis.labels(name).inc(System.currentTimeMillis() - start);
+        }
+        if (closed)
+            throw new IllegalStateException("Event bus " + name + " is closed!");
+        if (pending.put(key, new Queued<>(event, nextSequence++)) != null)
+            coalesced.labels(name).inc();
+        else
+            queued.labels(name).inc();
+        notifyAll();
+    }
+
+    /** Wait until every event published before this call has been processed, or replaced by a later event which has
+     *  been processed. This returns immediately when called from a listener.
+     */
+    public synchronized void awaitProcessed() {
+        if (workers.contains(Thread.currentThread()))
+            return;
+        long target = nextSequence;
+        while (! closed && oldestUnprocessed() < target)
+            waitUninterruptibly();
+    }
+
+    /** Wait until there is no event waiting or being processed with a key matching the given predicate, or until the
+     *  timeout expires. This returns immediately when called from a listener.
+     *
+     * @param matches
+     * @param timeoutMillis
+     * @return whether there were no matching events left when this returned
+     */
+    public synchronized boolean awaitProcessed(Predicate<K> matches, long timeoutMillis) {
+        if (workers.contains(Thread.currentThread()))
+            return ! hasUnprocessed(matches);
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (! closed && hasUnprocessed(matches)) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {}
+        }
+        return true;
+    }
+
+    private boolean hasUnprocessed(Predicate<K> matches) {
+        for (K key : pending.keySet())
+            if (matches.test(key))
+                return true;
+        for (K key : processing.keySet())
+            if (matches.test(key))
+                return true;
+        return false;
+    }
+
+    private long oldestUnprocessed() {
+        long oldest = Long.MAX_VALUE;
+        for (Queued<E> q : pending.values())
+            oldest = Math.min(oldest, q.sequence);
+        for (long sequence : processing.values())
+            oldest = Math.min(oldest, sequence);
+        return oldest;
+    }
+
+    public synchronized int queued() {
+        return pending.size();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private synchronized Optional<Map.Entry<K, Queued<E>>> take() {
+        while (! closed) {
+            Iterator<Map.Entry<K, Queued<E>>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<K, Queued<E>> next = it.next();
+                if (processing.containsKey(next.getKey()))
+                    continue;
+                it.remove();
+                queued.labels(name).dec();
+                processing.put(next.getKey(), next.getValue().sequence);
+                notifyAll();
+                return Optional.of(next);
+            }
+            waitUninterruptibly();
+        }
+        return Optional.empty();
+    }
+
+    private synchronized void done(K key) {
+        processing.remove(key);
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            Optional<Map.Entry<K, Queued<E>>> next = take();
+            if (next.isEmpty())
+                return;
+            E event = next.get().getValue().event;
+            for (Consumer<? super E> listener : listeners) {
+                try {
+                    listener.accept(event);
+                } catch (Throwable t) {
+                    failed.labels(name).inc();
+                    LOG.log(Level.WARNING, "Error processing event on " + name + " event bus", t);
+                }
+            }
+            processed.labels(name).inc();
+            done(next.get().getKey());
+        }
+    }
+
+    private void waitUninterruptibly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {}
+    }
+}
@@ -81,6 +81,17 @@ public class NetworkAccess {
                 spaceUsage, serverMessager, hasher, usernames, isJavascript);
     }
 
+    public NetworkAccess withStorage(ContentAddressedStorage storage) {
+        MutableTree tree = new MutableTreeImpl(mutable, storage, hasher, synchronizer);
+        return new NetworkAccess(coreNode, social, storage, mutable, tree, synchronizer, instanceAdmin,
+                spaceUsage, serverMessager, hasher, usernames, isJavascript);
+    }
+
+    public NetworkAccess withMutableTree(MutableTree tree) {
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, tree, synchronizer, instanceAdmin,
+                spaceUsage, serverMessager, hasher, usernames, isJavascript);
+    }
+
     public NetworkAccess withoutS3BlockStore() {
         ContentAddressedStorage directDht = dhtClient.directToOrigin();
         WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, directDht, hasher);
@@ -221,7 +232,7 @@ public class NetworkAccess {
                             localDht :
                             new ContentAddressedStorage.Proxying(localDht, proxingDht, nodeId, core);
                     HashVerifyingStorage verifyingStorage = new HashVerifyingStorage(new RetryStorage(storage, 3), hasher);
-                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 1_000, 50 * 1024);
+                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 10 * 1024 * 1024, 10 * 1024 * 1024, 50 * 1024, 8);
                     MutablePointersProxy httpMutable = new HttpMutablePointers(apiPoster, p2pPoster);
                     MutablePointers p2pMutable =
                             isPeergosServer ?
@@ -116,6 +116,23 @@ public class Champ<V extends Cborable> implements Cborable {
         return count;
     }
 
+    /**
+     *
+     * @return an estimate of the memory used by this node, in bytes
+     */
+    int estimatedSize() {
+        int size = 64;
+        for (HashPrefixPayload<V> payload : contents) {
+            if (payload.isShard()) {
+                size += 64;
+                continue;
+            }
+            for (KeyElement<V> mapping : payload.mappings)
+                size += 96 + mapping.key.data.length;
+        }
+        return size;
+    }
+
     private int nodeCount() {
         int count = 0;
         for (HashPrefixPayload<V> payload : contents)
@@ -152,8 +169,8 @@ public class Champ<V extends Cborable> implements Cborable {
         int bitpos = mask(hash, depth, bitWidth);
         int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
         Multihash childHash = contents[index].link.get();
-        return storage.get(childHash)
-                .thenApply(x -> new Pair<>(childHash, x.map(y -> Champ.fromCbor(y, fromCbor))));
+        return ChampCache.shared().get(childHash, fromCbor, storage)
+                .thenApply(x -> new Pair<>(childHash, x));
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
@@ -166,9 +183,8 @@ public class Champ<V extends Cborable> implements Cborable {
             HashPrefixPayload<V> pointer = contents[i];
             if (! pointer.isShard())
                 break; // we reach the key section
-            childCounts.add(storage.get(pointer.link.get())
-                    .thenApply(x -> new Pair<>(pointer.link.get(), x.map(y -> Champ.fromCbor(y, fromCbor))))
-                    .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
+            childCounts.add(ChampCache.shared().get(pointer.link.get(), fromCbor, storage)
+                    .thenCompose(child -> child.map(c -> c.size(depth + 1, storage))
                             .orElse(CompletableFuture.completedFuture(0L)))
             );
         }
@@ -586,24 +602,89 @@ public class Champ<V extends Cborable> implements Cborable {
         return new Champ<>(newDataMap, nodeMap, dst, fromCbor);
     }
 
+    /** Apply many mutations, each a key, its expected current value, and its new value (empty to remove it).
+     *
+     *  The mutations are applied in the order of their position in the champ, so consecutive mutations share most of
+     *  their path from the root, against a local buffer. Only the final version of each modified node is then written,
+     *  in a single put, rather than every intermediate node on every path.
+     *
+     * @return The new champ and its hash, which are the same as applying the mutations one at a time
+     */
+    public CompletableFuture<Pair<Champ<V>, Multihash>> applyBatch(PublicKeyHash owner,
+                                                                   SigningPrivateKeyAndPublicHash writer,
+                                                                   List<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> mutations,
+                                                                   int bitWidth,
+                                                                   int maxCollisions,
+                                                                   Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                                   TransactionId tid,
+                                                                   ContentAddressedStorage storage,
+                                                                   Hasher writeHasher,
+                                                                   Multihash ourHash) {
+        BufferedStorage buffer = new BufferedStorage(storage);
+        return Futures.combineAllInOrder(mutations.stream()
+                .map(m -> hasher.apply(m.left).thenApply(hash -> new Pair<>(m, hash)))
+                .collect(Collectors.toList()))
+                .thenCompose(hashed -> {
+                    List<Pair<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>, byte[]>> sorted = new ArrayList<>(hashed);
+                    sorted.sort((a, b) -> compareChampOrder(a.right, b.right, bitWidth));
+                    return Futures.reduceAll(sorted, new Pair<>(this, ourHash), (root, m) -> m.left.right.isPresent() ?
+                                    root.left.put(owner, writer, m.left.left, m.right, 0, m.left.middle, m.left.right,
+                                            bitWidth, maxCollisions, hasher, tid, buffer, writeHasher, root.right) :
+                                    root.left.remove(owner, writer, m.left.left, m.right, 0, m.left.middle,
+                                            bitWidth, maxCollisions, tid, buffer, writeHasher, root.right),
+                            (a, b) -> b);
+                }).thenCompose(root -> buffer.commit(Collections.singletonList(root.right), tid)
+                        .thenApply(x -> root));
+    }
+
+    /** Order key hashes by the path to them in a champ.
+     */
+    private static int compareChampOrder(byte[] a, byte[] b, int bitWidth) {
+        int levels = (Math.max(a.length, b.length) * 8 + bitWidth - 1) / bitWidth;
+        for (int depth = 0; depth < levels; depth++) {
+            int diff = Integer.compare(mask(a, depth, bitWidth), mask(b, depth, bitWidth));
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
     public <T> CompletableFuture<T> applyToAllMappings(T identity,
                                                        BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer,
                                                        ContentAddressedStorage storage) {
-        return Futures.reduceAll(Arrays.stream(contents).collect(Collectors.toList()), identity, (res, payload) ->
-                (! payload.isShard() ?
-                        Futures.reduceAll(
-                                Arrays.stream(payload.mappings).collect(Collectors.toList()),
-                                res,
-                                (x, mapping) -> consumer.apply(x, new Pair<>(mapping.key, mapping.valueHash)),
-                                (a, b) ->  a) :
-                        CompletableFuture.completedFuture(res)
-                ).thenCompose(newRes ->
-                        payload.isShard() && payload.link.isPresent() ?
-                                storage.get(payload.link.get())
-                                        .thenApply(rawOpt -> Champ.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link)), fromCbor))
-                                        .thenCompose(child -> child.applyToAllMappings(newRes, consumer, storage)) :
-                                CompletableFuture.completedFuture(newRes)
-                ), (a, b) -> a);
+        return applyToAllMappings(identity, consumer,
+                new ChampLoader<>(storage, fromCbor, ChampLoader.DEFAULT_MAX_IN_FLIGHT, true, true));
+    }
+
+    /** Fold over all the mappings in this champ, in order. The loader fetches subtrees ahead of the fold.
+     */
+    public <T> CompletableFuture<T> applyToAllMappings(T identity,
+                                                       BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer,
+                                                       ChampLoader<V> loader) {
+        // request all our children before folding over any of them
+        List<CompletableFuture<Champ<V>>> children = Arrays.stream(contents)
+                .map(payload -> payload.isShard() && payload.link.isPresent() ? loader.load(payload.link.get()) : null)
+                .collect(Collectors.toList());
+        return Futures.reduceAll(IntStream.range(0, contents.length).boxed().collect(Collectors.toList()), identity, (T res, Integer i) -> {
+            HashPrefixPayload<V> payload = contents[i];
+            if (! payload.isShard())
+                return Futures.reduceAll(
+                        Arrays.stream(payload.mappings).collect(Collectors.toList()),
+                        res,
+                        (x, mapping) -> consumer.apply(x, new Pair<>(mapping.key, mapping.valueHash)),
+                        (a, b) -> a);
+            CompletableFuture<Champ<V>> child = children.get(i);
+            return child == null ?
+                    CompletableFuture.completedFuture(res) :
+                    child.thenCompose(c -> c.applyToAllMappings(res, consumer, loader));
+        }, (a, b) -> a);
+    }
+
+    List<Multihash> getChildHashes() {
+        return Arrays.stream(contents)
+                .filter(p -> p.isShard() && p.link.isPresent())
+                .map(p -> p.link.get())
+                .collect(Collectors.toList());
     }
 
     private List<KeyElement<V>> getMappings() {
@@ -638,12 +719,10 @@ public class Champ<V extends Cborable> implements Cborable {
             int depth,
             int bitWidth,
             Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher) {
-        List<Pair<KeyElement<V>, Integer>> empty = Collections.emptyList();
-        return Futures.reduceAll(mappings, empty,
-                (acc, m) -> hasher.apply(m.key)
-                        .thenApply(hash -> new Pair<>(m, mask(hash, depth, bitWidth)))
-                        .thenApply(p -> Stream.concat(acc.stream(), Stream.of(p)).collect(Collectors.toList())),
-                (a, b) -> Stream.concat(a.stream(), b.stream()).collect(Collectors.toList()))
+        return Futures.combineAllInOrder(mappings.stream()
+                .map(m -> hasher.apply(m.key)
+                        .thenApply(hash -> new Pair<>(m, mask(hash, depth, bitWidth))))
+                .collect(Collectors.toList()))
                 .thenApply(hashed -> hashed.stream().collect(Collectors.groupingBy(p -> p.right)))
                 .thenApply(grouped -> grouped.entrySet().stream()
                         .map(e -> new Pair<>(e.getKey(), e.getValue().stream().map(p -> p.left).collect(Collectors.toList())))
@@ -662,15 +741,37 @@ public class Champ<V extends Cborable> implements Cborable {
             int bitWidth,
             ContentAddressedStorage storage,
             Function<Cborable, V> fromCbor) {
+        return applyToDiff(original, updated, depth, hasher, higherLeftMappings, higherRightMappings, consumer, bitWidth,
+                new ChampLoader<>(storage, fromCbor, ChampLoader.DEFAULT_MAX_IN_FLIGHT, true, false));
+    }
+
+    /** Call the consumer with every mapping that differs between the two trees. Identical subtrees are skipped, and
+     *  the two sides and all differing subtrees are fetched in parallel through the loader. A node which is missing
+     *  from storage is treated as an empty subtree.
+     */
+    public static <V extends Cborable> CompletableFuture<Boolean> applyToDiff(
+            MaybeMultihash original,
+            MaybeMultihash updated,
+            int depth,
+            Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+            List<KeyElement<V>> higherLeftMappings,
+            List<KeyElement<V>> higherRightMappings,
+            Consumer<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> consumer,
+            int bitWidth,
+            ChampLoader<V> loader) {
 
         if (updated.equals(original))
             return CompletableFuture.completedFuture(true);
-        return original.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)))
-                .thenCompose(left -> updated.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                        .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)))
-                        .thenCompose(right -> hashAndMaskKeys(higherLeftMappings, depth, bitWidth, hasher)
-                                .thenCompose(leftHigherMappingsByBit -> hashAndMaskKeys(higherRightMappings, depth, bitWidth, hasher)
+        CompletableFuture<Optional<Champ<V>>> leftFuture = loader.loadIfPresent(original);
+        CompletableFuture<Optional<Champ<V>>> rightFuture = loader.loadIfPresent(updated);
+        CompletableFuture<Map<Integer, List<KeyElement<V>>>> leftHigherFuture =
+                hashAndMaskKeys(higherLeftMappings, depth, bitWidth, hasher);
+        CompletableFuture<Map<Integer, List<KeyElement<V>>>> rightHigherFuture =
+                hashAndMaskKeys(higherRightMappings, depth, bitWidth, hasher);
+        return leftFuture
+                .thenCompose(left -> rightFuture
+                        .thenCompose(right -> leftHigherFuture
+                                .thenCompose(leftHigherMappingsByBit -> rightHigherFuture
                                         .thenCompose(rightHigherMappingsByBit -> {
 
                             int leftMax = left.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
@@ -708,7 +809,7 @@ public class Champ<V extends Cborable> implements Cborable {
                                     deeperLayers.add(applyToDiff(
                                             leftShard.orElse(MaybeMultihash.empty()),
                                             rightShard.orElse(MaybeMultihash.empty()), depth + 1, hasher,
-                                            leftMappings, rightMappings, consumer, bitWidth, storage, fromCbor));
+                                            leftMappings, rightMappings, consumer, bitWidth, loader));
                                 } else {
                                     Map<ByteArrayWrapper, Optional<V>> leftMap = leftMappings.stream()
                                             .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
@@ -0,0 +1,87 @@
+package peergos.shared.hamt;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A cache of decoded champ nodes, keyed by their hash, bounded by an estimate of their size in memory.
+ *
+ *  Nodes are immutable and content addressed, so entries never need invalidating. A node is only returned for the same
+ *  value decoder it was decoded with, so callers should use a single decoder instance per value type. Nodes read from
+ *  a BufferedStorage which haven't been committed yet are not cached, because the buffer may be discarded.
+ */
+public class ChampCache {
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    private static final ChampCache shared = new ChampCache(DEFAULT_MAX_BYTES);
+
+    private final WeightedLruCache<Pair<Multihash, Function<Cborable, ?>>, Champ<?>> nodes;
+
+    public ChampCache(long maxBytes) {
+        this.nodes = new WeightedLruCache<>(maxBytes, Champ::estimatedSize);
+    }
+
+    /**
+     *
+     * @return the cache shared by all champs
+     */
+    public static ChampCache shared() {
+        return shared;
+    }
+
+    /** Get a node from the cache, or fetch, decode and cache it.
+     *
+     * @param hash
+     * @param fromCbor
+     * @param storage
+     * @return the decoded node, if present in storage
+     */
+    @SuppressWarnings("unchecked")
+    public <V extends Cborable> CompletableFuture<Optional<Champ<V>>> get(Multihash hash,
+                                                                          Function<Cborable, V> fromCbor,
+                                                                          ContentAddressedStorage storage) {
+        Pair<Multihash, Function<Cborable, ?>> key = new Pair<>(hash, fromCbor);
+        Optional<Champ<?>> cached = nodes.get(key);
+        if (cached.isPresent())
+            return Futures.of(Optional.of((Champ<V>) cached.get()));
+        return storage.get(hash).thenApply(raw -> raw.map(cbor -> {
+            Champ<V> node = Champ.fromCbor(cbor, fromCbor);
+            if (! (storage instanceof BufferedStorage && ((BufferedStorage) storage).isBuffered(hash)))
+                nodes.put(key, node);
+            return node;
+        }));
+    }
+
+    public long hitCount() {
+        return nodes.hitCount();
+    }
+
+    public long missCount() {
+        return nodes.missCount();
+    }
+
+    public double hitRate() {
+        return nodes.hitRate();
+    }
+
+    public long estimatedBytes() {
+        return nodes.weight();
+    }
+
+    public long maxBytes() {
+        return nodes.maxWeight();
+    }
+
+    public void clear() {
+        nodes.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "ChampCache{" + nodes + "}";
+    }
+}
@@ -0,0 +1,156 @@
+package peergos.shared.hamt;
+
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Fetches and decodes champ nodes for a traversal, with a bound on the number of outstanding fetches.
+ *
+ *  Requests beyond the bound are queued, and when batching is enabled everything queued is sent together through
+ *  getMany as soon as there is capacity. With prefetching enabled, the children of every loaded node are requested
+ *  immediately, so a tree is fetched level by level ahead of a traversal that will visit all of it. Prefetched nodes
+ *  are held until they are visited, so at most maxPrefetched of them are outstanding at once, which bounds memory.
+ */
+public class ChampLoader<V extends Cborable> {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+    public static final int DEFAULT_MAX_PREFETCHED = 1024;
+    private static final int MAX_BATCH_SIZE = ContentAddressedStorage.HTTP.MAX_BLOCKS_PER_GET;
+
+    private final ContentAddressedStorage storage;
+    private final Function<Cborable, V> fromCbor;
+    private final int maxInFlight, maxPrefetched;
+    private final boolean batched, prefetch;
+    private final Map<Multihash, CompletableFuture<Optional<Champ<V>>>> prefetched = new ConcurrentHashMap<>();
+    private final List<Pair<Multihash, CompletableFuture<Optional<Champ<V>>>>> queued = new ArrayList<>();
+    private int inFlight = 0;
+
+    public ChampLoader(ContentAddressedStorage storage,
+                       Function<Cborable, V> fromCbor,
+                       int maxInFlight,
+                       boolean batched,
+                       boolean prefetch,
+                       int maxPrefetched) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("Need at least one fetch in flight!");
+        this.storage = storage;
+        this.fromCbor = fromCbor;
+        this.maxInFlight = maxInFlight;
+        this.batched = batched;
+        this.prefetch = prefetch;
+        this.maxPrefetched = maxPrefetched;
+    }
+
+    public ChampLoader(ContentAddressedStorage storage,
+                       Function<Cborable, V> fromCbor,
+                       int maxInFlight,
+                       boolean batched,
+                       boolean prefetch) {
+        this(storage, fromCbor, maxInFlight, batched, prefetch, DEFAULT_MAX_PREFETCHED);
+    }
+
+    public int prefetchedCount() {
+        return prefetched.size();
+    }
+
+    /**
+     *
+     * @param hash
+     * @return the decoded node, which must be present in storage
+     */
+    public CompletableFuture<Champ<V>> load(Multihash hash) {
+        return fetch(hash).thenApply(node -> node.orElseThrow(() -> new IllegalStateException("Hash not present! " + hash)));
+    }
+
+    /**
+     *
+     * @param hash
+     * @return the decoded node, or empty if there is no hash or the node is not in storage
+     */
+    public CompletableFuture<Optional<Champ<V>>> loadIfPresent(MaybeMultihash hash) {
+        if (! hash.isPresent())
+            return Futures.of(Optional.empty());
+        return fetch(hash.get());
+    }
+
+    private CompletableFuture<Optional<Champ<V>>> fetch(Multihash hash) {
+        CompletableFuture<Optional<Champ<V>>> ready = prefetched.remove(hash);
+        if (ready != null)
+            return ready;
+        CompletableFuture<Optional<Champ<V>>> res = new CompletableFuture<>();
+        enqueue(hash, res);
+        send();
+        return res;
+    }
+
+    private void enqueue(Multihash hash, CompletableFuture<Optional<Champ<V>>> res) {
+        synchronized (queued) {
+            queued.add(new Pair<>(hash, res));
+        }
+    }
+
+    private void prefetchChildren(Champ<V> node) {
+        for (Multihash child : node.getChildHashes()) {
+            if (prefetched.size() >= maxPrefetched)
+                return;
+            CompletableFuture<Optional<Champ<V>>> res = new CompletableFuture<>();
+            if (prefetched.putIfAbsent(child, res) == null)
+                enqueue(child, res);
+        }
+    }
+
+    private void send() {
+        while (true) {
+            List<Pair<Multihash, CompletableFuture<Optional<Champ<V>>>>> batch;
+            synchronized (queued) {
+                if (queued.isEmpty() || inFlight >= maxInFlight)
+                    return;
+                List<Pair<Multihash, CompletableFuture<Optional<Champ<V>>>>> next =
+                        queued.subList(0, batched ? Math.min(queued.size(), MAX_BATCH_SIZE) : 1);
+                batch = new ArrayList<>(next);
+                next.clear();
+                inFlight++;
+            }
+            List<Multihash> hashes = batch.stream()
+                    .map(p -> p.left)
+                    .collect(Collectors.toList());
+            CompletableFuture<List<Optional<byte[]>>> fetched;
+            try {
+                fetched = batched ?
+                        storage.getMany(hashes) :
+                        storage.get(hashes.get(0))
+                                .thenApply(opt -> Collections.singletonList(opt.map(CborObject::toByteArray)));
+            } catch (Throwable t) {
+                fetched = Futures.errored(t);
+            }
+            fetched.whenComplete((blocks, t) -> {
+                synchronized (queued) {
+                    inFlight--;
+                }
+                for (int i=0; i < batch.size(); i++) {
+                    CompletableFuture<Optional<Champ<V>>> res = batch.get(i).right;
+                    if (t != null) {
+                        res.completeExceptionally(t);
+                        continue;
+                    }
+                    try {
+                        Optional<Champ<V>> node = blocks.get(i)
+                                .map(raw -> Champ.fromCbor(CborObject.fromByteArray(raw), fromCbor));
+                        if (prefetch && node.isPresent())
+                            prefetchChildren(node.get());
+                        res.complete(node);
+                    } catch (Throwable e) {
+                        res.completeExceptionally(e);
+                    }
+                }
+                send();
+            });
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
 {
@@ -46,10 +47,10 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                                                                                  ContentAddressedStorage dht,
                                                                                  Hasher writeHasher,
                                                                                  Function<Cborable, V> fromCbor) {
-        return dht.get(rootHash).thenApply(rawOpt -> {
-            if (! rawOpt.isPresent())
+        return ChampCache.shared().get(rootHash, fromCbor, dht).thenApply(rootOpt -> {
+            if (! rootOpt.isPresent())
                 throw new IllegalStateException("Champ root not present: " + rootHash);
-            return new ChampWrapper<>(Champ.fromCbor(rawOpt.get(), fromCbor), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
+            return new ChampWrapper<>(rootOpt.get(), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
         });
     }
 
@@ -120,6 +121,23 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /** Put many mappings, writing each modified node only once.
+     *
+     * @param mappings key, expected existing value and new value for each mapping
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> putAll(PublicKeyHash owner,
+                                               SigningPrivateKeyAndPublicHash writer,
+                                               List<Triple<byte[], Optional<V>, V>> mappings,
+                                               TransactionId tid) {
+        List<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> mutations = mappings.stream()
+                .map(m -> new Triple<>(new ByteArrayWrapper(m.left), m.middle, Optional.of(m.right)))
+                .collect(Collectors.toList());
+        return root.left.applyBatch(owner, writer, mutations, BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, keyHasher,
+                tid, storage, writeHasher, root.right)
+                .thenCompose(newRoot -> commit(writer, newRoot));
+    }
+
     private CompletableFuture<Multihash> commit(SigningPrivateKeyAndPublicHash writer, Pair<Champ<V>, Multihash> newRoot) {
         root = newRoot;
         return CompletableFuture.completedFuture(newRoot.right);
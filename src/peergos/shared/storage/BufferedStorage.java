@@ -0,0 +1,194 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Holds written blocks in memory, where they can be read back, until they are explicitly committed to the target.
+ *
+ *  This lets a sequence of updates, whose intermediate states never need to be persisted, be applied locally. On
+ *  commit only the blocks reachable from the final roots are written, with one put and one putRaw per writer.
+ */
+public class BufferedStorage extends DelegatingStorage {
+    private static final TransactionId LOCAL = new TransactionId("buffered");
+
+    private final ContentAddressedStorage target;
+    private final Map<Multihash, PutArgs> pending = new LinkedHashMap<>();
+
+    public BufferedStorage(ContentAddressedStorage target) {
+        super(target);
+        this.target = target;
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return new BufferedStorage(target.directToOrigin());
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        // nothing is written to the target until commit, which uses its own transaction
+        return Futures.of(LOCAL);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return Futures.of(true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> flush() {
+        return Futures.of(true);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return Futures.of(buffer(owner, writer, signedHashes, blocks, false));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid,
+                                                     ProgressConsumer<Long> progressCounter) {
+        List<Multihash> res = buffer(owner, writer, signatures, blocks, true);
+        if (progressCounter != null)
+            progressCounter.accept(blocks.stream().mapToLong(b -> b.length).sum());
+        return Futures.of(res);
+    }
+
+    private List<Multihash> buffer(PublicKeyHash owner,
+                                   PublicKeyHash writer,
+                                   List<byte[]> signatures,
+                                   List<byte[]> blocks,
+                                   boolean isRaw) {
+        List<Multihash> res = new ArrayList<>();
+        synchronized (pending) {
+            for (int i=0; i < blocks.size(); i++) {
+                byte[] signature = signatures.get(i);
+                // the signed message is the sha256 of the block
+                byte[] sha256 = Arrays.copyOfRange(signature, signature.length - 32, signature.length);
+                Cid cid = CommittableStorage.hashToCid(sha256, isRaw);
+                pending.put(cid, new PutArgs(owner, writer, signature, blocks.get(i), isRaw));
+                res.add(cid);
+            }
+        }
+        return res;
+    }
+
+    private Optional<byte[]> getPending(Multihash hash) {
+        synchronized (pending) {
+            return Optional.ofNullable(pending.get(hash)).map(p -> p.block);
+        }
+    }
+
+    /**
+     *
+     * @param hash
+     * @return whether the block is only held in this buffer, or a buffer below it, and so isn't committed yet
+     */
+    public boolean isBuffered(Multihash hash) {
+        return getPending(hash).isPresent() ||
+                (target instanceof BufferedStorage && ((BufferedStorage) target).isBuffered(hash));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        Optional<byte[]> local = getPending(hash);
+        if (local.isPresent())
+            return Futures.of(local.map(CborObject::fromByteArray));
+        return target.get(hash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        Optional<byte[]> local = getPending(hash);
+        if (local.isPresent())
+            return Futures.of(local);
+        return target.getRaw(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        List<Optional<byte[]>> local = hashes.stream()
+                .map(this::getPending)
+                .collect(Collectors.toList());
+        List<Multihash> remote = IntStream.range(0, hashes.size())
+                .filter(i -> local.get(i).isEmpty())
+                .mapToObj(hashes::get)
+                .collect(Collectors.toList());
+        if (remote.isEmpty())
+            return Futures.of(local);
+        return target.getMany(remote).thenApply(fetched -> {
+            List<Optional<byte[]>> res = new ArrayList<>();
+            int next = 0;
+            for (Optional<byte[]> block : local)
+                res.add(block.isPresent() ? block : fetched.get(next++));
+            return res;
+        });
+    }
+
+    /** Write every buffered block reachable from the given roots to the target, and discard the rest.
+     *
+     * @param roots
+     * @param tid
+     * @return true when the blocks have been written
+     */
+    public CompletableFuture<Boolean> commit(List<Multihash> roots, TransactionId tid) {
+        List<PutArgs> reachable = new ArrayList<>();
+        synchronized (pending) {
+            Set<Multihash> seen = new HashSet<>();
+            List<Multihash> toVisit = new ArrayList<>(roots);
+            while (! toVisit.isEmpty()) {
+                Multihash hash = toVisit.remove(toVisit.size() - 1);
+                PutArgs block = pending.get(hash);
+                if (block == null || ! seen.add(hash))
+                    continue;
+                reachable.add(block);
+                if (! block.isRaw)
+                    toVisit.addAll(CborObject.fromByteArray(block.block).links());
+            }
+            pending.clear();
+        }
+        Map<List<Object>, List<PutArgs>> byWriter = reachable.stream()
+                .collect(Collectors.groupingBy(p -> Arrays.asList(p.owner, p.writer, p.isRaw),
+                        LinkedHashMap::new, Collectors.toList()));
+        return Futures.combineAll(byWriter.values().stream()
+                .map(group -> {
+                    PutArgs first = group.get(0);
+                    List<byte[]> signatures = group.stream().map(p -> p.signature).collect(Collectors.toList());
+                    List<byte[]> blocks = group.stream().map(p -> p.block).collect(Collectors.toList());
+                    return first.isRaw ?
+                            target.putRaw(first.owner, first.writer, signatures, blocks, tid, x -> {}) :
+                            target.put(first.owner, first.writer, signatures, blocks, tid);
+                })
+                .collect(Collectors.toList()))
+                .thenApply(x -> true);
+    }
+
+    private static class PutArgs {
+        public final PublicKeyHash owner, writer;
+        public final byte[] signature, block;
+        public final boolean isRaw;
+
+        public PutArgs(PublicKeyHash owner, PublicKeyHash writer, byte[] signature, byte[] block, boolean isRaw) {
+            this.owner = owner;
+            this.writer = writer;
+            this.signature = signature;
+            this.block = block;
+            this.isRaw = isRaw;
+        }
+    }
+}
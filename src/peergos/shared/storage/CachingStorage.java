@@ -2,27 +2,66 @@ package peergos.shared.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
+/** A read cache of small blocks, with separate byte budgets for cbor and raw blocks. Concurrent requests for the same
+ *  uncached block share a single fetch from the target.
+ *
+ *  Optionally, misses are coalesced into calls to getMany on the target. At most maxBatchesInFlight batches are
+ *  outstanding at once, and any misses that arrive meanwhile are queued and sent together when one completes. Only
+ *  cbor blocks are batched. Raw blocks are file fragments of up to half a MiB, which gain little from batching and
+ *  would make a batch large.
+ */
 public class CachingStorage extends DelegatingStorage {
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
-    private final int maxValueSize, cacheSize;
+    private final WeightedLruCache<Multihash, byte[]> cborCache, rawCache;
+    private final Map<Multihash, CompletableFuture<Optional<CborObject>>> pending = new ConcurrentHashMap<>();
+    private final Map<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw = new ConcurrentHashMap<>();
+    private final int maxValueSize;
+    private final long maxCborBytes, maxRawBytes;
+    private final int maxBatchesInFlight;
+    private final List<Pair<Multihash, CompletableFuture<Optional<byte[]>>>> queued = new ArrayList<>();
+    private int batchesInFlight = 0;
 
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    /**
+     *
+     * @param target
+     * @param maxCborBytes
+     * @param maxRawBytes
+     * @param maxValueSize
+     * @param maxBatchesInFlight the maximum number of concurrent batched reads, or 0 to fetch each block separately
+     */
+    public CachingStorage(ContentAddressedStorage target,
+                          long maxCborBytes,
+                          long maxRawBytes,
+                          int maxValueSize,
+                          int maxBatchesInFlight) {
         super(target);
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cborCache = new WeightedLruCache<>(maxCborBytes, b -> b.length);
+        this.rawCache = new WeightedLruCache<>(maxRawBytes, b -> b.length);
         this.maxValueSize = maxValueSize;
-        this.cacheSize = cacheSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        this.maxCborBytes = maxCborBytes;
+        this.maxRawBytes = maxRawBytes;
+        this.maxBatchesInFlight = maxBatchesInFlight;
+    }
+
+    public CachingStorage(ContentAddressedStorage target, long maxCborBytes, long maxRawBytes, int maxValueSize) {
+        this(target, maxCborBytes, maxRawBytes, maxValueSize, 0);
+    }
+
+    public WeightedLruCache<Multihash, byte[]> getCborCache() {
+        return cborCache;
+    }
+
+    public WeightedLruCache<Multihash, byte[]> getRawCache() {
+        return rawCache;
     }
 
     @Override
@@ -32,7 +71,7 @@ public class CachingStorage extends DelegatingStorage {
 
     @Override
     public ContentAddressedStorage directToOrigin() {
-        return new CachingStorage(target.directToOrigin(), cacheSize, maxValueSize);
+        return new CachingStorage(target.directToOrigin(), maxCborBytes, maxRawBytes, maxValueSize, maxBatchesInFlight);
     }
 
     @Override
@@ -46,7 +85,7 @@ public class CachingStorage extends DelegatingStorage {
                     for (int i=0; i < blocks.size(); i++) {
                         byte[] block = blocks.get(i);
                         if (block.length < maxValueSize)
-                            cache.put(res.get(i), block);
+                            cborCache.put(res.get(i), block);
                     }
                     return res;
                 });
@@ -54,28 +93,28 @@ public class CachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
+        Optional<byte[]> cached = cborCache.get(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cached.get())));
 
         CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key).thenAccept(cborOpt -> {
+        CompletableFuture<Optional<CborObject>> existing = pending.putIfAbsent(key, result);
+        if (existing != null)
+            return existing;
+
+        CompletableFuture<Optional<CborObject>> fetch = maxBatchesInFlight > 0 ?
+                fetchBatched(key).thenApply(opt -> opt.map(CborObject::fromByteArray)) :
+                target.get(key);
+        fetch.thenAccept(cborOpt -> {
             if (cborOpt.isPresent()) {
                 byte[] value = cborOpt.get().toByteArray();
                 if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
+                    cborCache.put(key, value);
             }
             pending.remove(key);
-            pipe.complete(cborOpt);
             result.complete(cborOpt);
         }).exceptionally(t -> {
             pending.remove(key);
-            pipe.completeExceptionally(t);
             result.completeExceptionally(t);
             return null;
         });
@@ -94,7 +133,7 @@ public class CachingStorage extends DelegatingStorage {
                     for (int i=0; i < blocks.size(); i++) {
                         byte[] block = blocks.get(i);
                         if (block.length < maxValueSize)
-                            cache.put(res.get(i), block);
+                            rawCache.put(res.get(i), block);
                     }
                     return res;
                 });
@@ -102,27 +141,80 @@ public class CachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
+        Optional<byte[]> cached = rawCache.get(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached);
 
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
+        CompletableFuture<Optional<byte[]>> result = new CompletableFuture<>();
+        CompletableFuture<Optional<byte[]>> existing = pendingRaw.putIfAbsent(key, result);
+        if (existing != null)
+            return existing;
 
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
+        CompletableFuture<Optional<byte[]>> fetch = maxBatchesInFlight > 0 && ! isRaw(key) ?
+                fetchBatched(key) :
+                target.getRaw(key);
+        fetch.thenAccept(rawOpt -> {
             if (rawOpt.isPresent()) {
                 byte[] value = rawOpt.get();
                 if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
+                    rawCache.put(key, value);
             }
             pendingRaw.remove(key);
-            pipe.complete(rawOpt);
-            return rawOpt;
+            result.complete(rawOpt);
         }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
+            pendingRaw.remove(key);
+            result.completeExceptionally(t);
             return null;
         });
+        return result;
+    }
+
+    private static boolean isRaw(Multihash key) {
+        return key instanceof Cid && ((Cid) key).codec == Cid.Codec.Raw;
+    }
+
+    private CompletableFuture<Optional<byte[]>> fetchBatched(Multihash key) {
+        CompletableFuture<Optional<byte[]>> res = new CompletableFuture<>();
+        synchronized (queued) {
+            queued.add(new Pair<>(key, res));
+        }
+        sendBatches();
+        return res;
+    }
+
+    private void sendBatches() {
+        while (true) {
+            List<Pair<Multihash, CompletableFuture<Optional<byte[]>>>> batch;
+            synchronized (queued) {
+                if (queued.isEmpty() || batchesInFlight >= maxBatchesInFlight)
+                    return;
+                List<Pair<Multihash, CompletableFuture<Optional<byte[]>>>> next =
+                        queued.subList(0, Math.min(queued.size(), ContentAddressedStorage.HTTP.MAX_BLOCKS_PER_GET));
+                batch = new ArrayList<>(next);
+                next.clear();
+                batchesInFlight++;
+            }
+            List<Multihash> hashes = batch.stream()
+                    .map(p -> p.left)
+                    .collect(Collectors.toList());
+            CompletableFuture<List<Optional<byte[]>>> fetched;
+            try {
+                fetched = target.getMany(hashes);
+            } catch (Throwable t) {
+                fetched = Futures.errored(t);
+            }
+            fetched.whenComplete((blocks, t) -> {
+                for (int i=0; i < batch.size(); i++) {
+                    if (t != null)
+                        batch.get(i).right.completeExceptionally(t);
+                    else
+                        batch.get(i).right.complete(blocks.get(i));
+                }
+                synchronized (queued) {
+                    batchesInFlight--;
+                }
+                sendBatches();
+            });
+        }
     }
 }
@@ -149,6 +149,19 @@ public interface ContentAddressedStorage {
      */
     CompletableFuture<Optional<byte[]>> getRaw(Multihash hash);
 
+    /**
+     * Get many blocks, of either cbor or raw format, in one call
+     * @param hashes
+     * @return The serialized blocks in the order requested, with Optional.empty() for any that can't be found
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(h -> h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw ?
+                        getRaw(h) :
+                        get(h).thenApply(opt -> opt.map(CborObject::toByteArray)))
+                .collect(Collectors.toList()));
+    }
+
     /**
      * Update an existing pin with a new root. This is useful when modifying a tree of ipld objects where only a small
      * number of components are changed
@@ -287,9 +300,9 @@ public interface ContentAddressedStorage {
                 .thenCompose(before -> getLinksAndSize(updated).thenCompose(after -> {
                     int objectDelta = after.left - before.left;
                     List<Multihash> onlyBefore = new ArrayList<>(before.right);
-                    onlyBefore.removeAll(after.right);
+                    onlyBefore.removeAll(new HashSet<>(after.right));
                     List<Multihash> onlyAfter = new ArrayList<>(after.right);
-                    onlyAfter.removeAll(before.right);
+                    onlyAfter.removeAll(new HashSet<>(before.right));
 
                     int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
                     List<Pair<Multihash, Multihash>> pairs = IntStream.range(0, nPairs)
@@ -334,6 +347,9 @@ public interface ContentAddressedStorage {
         public static final String GC = "repo/gc";
         public static final String BLOCK_PUT = "block/put";
         public static final String BLOCK_GET = "block/get";
+        public static final String BLOCK_GET_MANY = "block/get-many";
+        public static final int MAX_BLOCKS_PER_GET = 32;
+        public static final int MAX_BYTES_PER_GET = 4 * 1024 * 1024;
         public static final String BLOCK_RM = "block/rm";
         public static final String BLOCK_STAT = "block/stat";
         public static final String PIN_ADD = "pin/add";
@@ -561,6 +577,80 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        /** A Peergos server returns the blocks in a single response, each prefixed by its length as a 4 byte big
+         *  endian int, or -1 if it is absent. To bound the size of a response, the server stops after the block which
+         *  takes it to MAX_BYTES_PER_GET, and the remaining blocks are requested again.
+         */
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+            if (! isPeergosServer || hashes.size() <= 1)
+                return ContentAddressedStorage.super.getMany(hashes);
+            List<Multihash> remote = hashes.stream()
+                    .filter(h -> ! h.isIdentity())
+                    .collect(Collectors.toList());
+            List<CompletableFuture<List<Optional<byte[]>>>> batches = new ArrayList<>();
+            for (int start = 0; start < remote.size(); start += MAX_BLOCKS_PER_GET) {
+                List<Multihash> batch = remote.subList(start, Math.min(remote.size(), start + MAX_BLOCKS_PER_GET));
+                batches.add(getBatch(batch));
+            }
+            return Futures.combineAllInOrder(batches)
+                    .thenApply(all -> {
+                        Iterator<Optional<byte[]>> fetched = all.stream()
+                                .flatMap(List::stream)
+                                .iterator();
+                        return hashes.stream()
+                                .map(h -> h.isIdentity() ? Optional.of(h.getHash()) : fetched.next())
+                                .collect(Collectors.toList());
+                    });
+        }
+
+        private CompletableFuture<List<Optional<byte[]>>> getBatch(List<Multihash> batch) {
+            String args = batch.stream()
+                    .map(h -> "arg=" + h.toString())
+                    .collect(Collectors.joining("&"));
+            return poster.get(apiPrefix + BLOCK_GET_MANY + "?" + args)
+                    .thenApply(raw -> parseBlocks(raw, batch.size()))
+                    .thenCompose(blocks -> {
+                        if (blocks.size() == batch.size())
+                            return Futures.of(blocks);
+                        if (blocks.isEmpty())
+                            throw new IllegalStateException("Empty multi block response!");
+                        return getBatch(batch.subList(blocks.size(), batch.size()))
+                                .thenApply(rest -> {
+                                    List<Optional<byte[]>> all = new ArrayList<>(blocks);
+                                    all.addAll(rest);
+                                    return all;
+                                });
+                    });
+        }
+
+        /**
+         *
+         * @param raw
+         * @param count
+         * @return the blocks in the response, which may be fewer than requested
+         */
+        public static List<Optional<byte[]>> parseBlocks(byte[] raw, int count) {
+            List<Optional<byte[]>> res = new ArrayList<>(count);
+            int offset = 0;
+            for (int i=0; i < count && offset < raw.length; i++) {
+                if (offset + 4 > raw.length)
+                    throw new IllegalStateException("Truncated multi block response!");
+                int length = ((raw[offset] & 0xff) << 24) | ((raw[offset + 1] & 0xff) << 16) |
+                        ((raw[offset + 2] & 0xff) << 8) | (raw[offset + 3] & 0xff);
+                offset += 4;
+                if (length < 0) {
+                    res.add(Optional.empty());
+                    continue;
+                }
+                if (offset + length > raw.length)
+                    throw new IllegalStateException("Truncated multi block response!");
+                res.add(Optional.of(Arrays.copyOfRange(raw, offset, offset + length)));
+                offset += length;
+            }
+            return res;
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
             return poster.get(apiPrefix + PIN_ADD + "?stream-channels=true&arg=" + hash.toString()
@@ -675,6 +765,11 @@ public interface ContentAddressedStorage {
             return local.getRaw(object);
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+            return local.getMany(hashes);
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
             return local.getLinks(root);
@@ -94,4 +94,17 @@ public class HashVerifyingStorage extends DelegatingStorage {
                         .thenApply(Optional::of))
                         .orElseGet(() -> Futures.of(Optional.empty())));
     }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        return source.getMany(hashes)
+                .thenCompose(blocks -> {
+                    if (blocks.size() != hashes.size())
+                        throw new IllegalStateException("Incorrect number of blocks returned!");
+                    return Futures.combineAllInOrder(IntStream.range(0, hashes.size())
+                            .mapToObj(i -> blocks.get(i).map(bytes -> verify(bytes, hashes.get(i), () -> blocks.get(i)))
+                                    .orElseGet(() -> Futures.of(Optional.empty())))
+                            .collect(Collectors.toList()));
+                });
+    }
 }
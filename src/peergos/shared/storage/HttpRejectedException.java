@@ -0,0 +1,22 @@
+package peergos.shared.storage;
+
+/** The server received a request and explicitly refused it (e.g. a write over quota), so it should not be retried.
+ */
+public class HttpRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public static final String QUOTA_REACHED = "Storage quota reached!";
+
+    public HttpRejectedException(String message) {
+        super(message);
+    }
+
+    /**
+     *
+     * @param serverError the error message returned by the server
+     * @return whether the error is a refusal that will be repeated if the request is retried
+     */
+    public static boolean isRejection(String serverError) {
+        return serverError.startsWith(QUOTA_REACHED);
+    }
+}
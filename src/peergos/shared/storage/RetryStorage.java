@@ -45,6 +45,10 @@ public class RetryStorage implements ContentAddressedStorage {
         return recurse(maxAttempts, f);
     }
 
+    private static boolean isRejection(Throwable t) {
+        return t instanceof HttpRejectedException || t.getCause() instanceof HttpRejectedException;
+    }
+
     private <V> CompletableFuture<V> recurse(int retriesLeft, Supplier<CompletableFuture<V>> f) {
         CompletableFuture<V> res = new CompletableFuture<>();
         try {
@@ -53,7 +57,7 @@ public class RetryStorage implements ContentAddressedStorage {
                     .exceptionally(e -> {
                         if (retriesLeft == 1) {
                             res.completeExceptionally(e);
-                        } else if (e instanceof HttpFileNotFoundException) {
+                        } else if (e instanceof HttpFileNotFoundException || isRejection(e)) {
                             res.completeExceptionally(e);
                         } else {
                             retryAfter(() -> recurse(retriesLeft - 1, f)
@@ -115,6 +119,11 @@ public class RetryStorage implements ContentAddressedStorage {
         return runWithRetry(() -> target.getRaw(hash));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        return runWithRetry(() -> target.getMany(hashes));
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
         return runWithRetry(() -> target.pinUpdate(owner, existing, updated));
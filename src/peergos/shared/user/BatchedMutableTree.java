@@ -0,0 +1,110 @@
+package peergos.shared.user;
+
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A MutableTree which records puts instead of applying them, so they can all be applied later with a single batch
+ *  update of each writer's champ.
+ *
+ *  Until then the WriterData returned by a put is unchanged, and gets see the recorded values. Removes can't be
+ *  batched.
+ */
+public class BatchedMutableTree implements MutableTree {
+
+    private final MutableTree target;
+    private final Map<PublicKeyHash, PendingPuts> pending = new LinkedHashMap<>();
+
+    public BatchedMutableTree(MutableTree target) {
+        this.target = target;
+    }
+
+    @Override
+    public synchronized CompletableFuture<WriterData> put(WriterData base,
+                                                          PublicKeyHash owner,
+                                                          SigningPrivateKeyAndPublicHash writer,
+                                                          byte[] mapKey,
+                                                          MaybeMultihash existing,
+                                                          Multihash value,
+                                                          TransactionId tid) {
+        PendingPuts puts = pending.computeIfAbsent(writer.publicKeyHash, w -> new PendingPuts(owner, writer));
+        ByteArrayWrapper key = new ByteArrayWrapper(mapKey);
+        Pair<MaybeMultihash, Multihash> previous = puts.mappings.get(key);
+        // a later put of the same key replaces the value, but the champ must still hold the first expected value
+        puts.mappings.put(key, new Pair<>(previous == null ? existing : previous.left, value));
+        return Futures.of(base);
+    }
+
+    @Override
+    public CompletableFuture<WriterData> putAll(WriterData base,
+                                                PublicKeyHash owner,
+                                                SigningPrivateKeyAndPublicHash writer,
+                                                List<Triple<byte[], MaybeMultihash, Multihash>> mappings,
+                                                TransactionId tid) {
+        for (Triple<byte[], MaybeMultihash, Multihash> mapping : mappings)
+            put(base, owner, writer, mapping.left, mapping.middle, mapping.right, tid);
+        return Futures.of(base);
+    }
+
+    @Override
+    public CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
+        synchronized (this) {
+            PendingPuts puts = pending.get(writer);
+            Pair<MaybeMultihash, Multihash> value = puts == null ? null : puts.mappings.get(new ByteArrayWrapper(mapKey));
+            if (value != null)
+                return Futures.of(MaybeMultihash.of(value.right));
+        }
+        return target.get(base, owner, writer, mapKey);
+    }
+
+    @Override
+    public CompletableFuture<WriterData> remove(WriterData base,
+                                                PublicKeyHash owner,
+                                                SigningPrivateKeyAndPublicHash writer,
+                                                byte[] mapKey,
+                                                MaybeMultihash existing,
+                                                TransactionId tid) {
+        return Futures.errored(new IllegalStateException("Removes can't be batched!"));
+    }
+
+    /** Apply the recorded puts of each writer to its champ in one batch, and commit the result.
+     *
+     * @param current the snapshot holding the WriterData of every writer with recorded puts
+     * @param committer
+     * @param tid
+     * @return current updated with the new version of each writer
+     */
+    public CompletableFuture<Snapshot> commitAll(Snapshot current, Committer committer, TransactionId tid) {
+        List<PendingPuts> toApply;
+        synchronized (this) {
+            toApply = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        return Futures.reduceAll(toApply, current, (s, puts) -> {
+            CommittedWriterData version = s.get(puts.writer);
+            List<Triple<byte[], MaybeMultihash, Multihash>> mappings = new ArrayList<>();
+            for (Map.Entry<ByteArrayWrapper, Pair<MaybeMultihash, Multihash>> e : puts.mappings.entrySet())
+                mappings.add(new Triple<>(e.getKey().data, e.getValue().left, e.getValue().right));
+            return target.putAll(version.props, puts.owner, puts.writer, mappings, tid)
+                    .thenCompose(wd -> committer.commit(puts.owner, puts.writer, wd, version, tid))
+                    .thenApply(committed -> s.withVersion(puts.writer.publicKeyHash, committed.get(puts.writer)));
+        }, (a, b) -> b);
+    }
+
+    private static class PendingPuts {
+        public final PublicKeyHash owner;
+        public final SigningPrivateKeyAndPublicHash writer;
+        public final Map<ByteArrayWrapper, Pair<MaybeMultihash, Multihash>> mappings = new LinkedHashMap<>();
+
+        public PendingPuts(PublicKeyHash owner, SigningPrivateKeyAndPublicHash writer) {
+            this.owner = owner;
+            this.writer = writer;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package peergos.shared.user;
+
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A Committer which only records the latest WriterData of each writer, so a sequence of updates can be committed
+ *  with a single pointer update per writer.
+ *
+ *  The snapshots it returns keep the hash of the version the updates started from, which makes the final commit a
+ *  compare and swap against that version.
+ */
+public class GroupCommitter implements Committer {
+
+    private final Map<PublicKeyHash, PendingCommit> pending = new LinkedHashMap<>();
+
+    @Override
+    public synchronized CompletableFuture<Snapshot> commit(PublicKeyHash owner,
+                                                           SigningPrivateKeyAndPublicHash signer,
+                                                           WriterData wd,
+                                                           CommittedWriterData existing,
+                                                           TransactionId tid) {
+        pending.put(signer.publicKeyHash, new PendingCommit(owner, signer, wd, existing));
+        return Futures.of(new Snapshot(signer.publicKeyHash, new CommittedWriterData(existing.hash, wd)));
+    }
+
+    /**
+     *
+     * @return the links from every pending WriterData
+     */
+    public synchronized List<Multihash> roots() {
+        List<Multihash> res = new ArrayList<>();
+        for (PendingCommit commit : pending.values())
+            res.addAll(commit.wd.toCbor().links());
+        return res;
+    }
+
+    /** Commit the latest WriterData of every writer through the target committer.
+     *
+     * @param base
+     * @param target
+     * @param tid
+     * @return base updated with the committed versions
+     */
+    public CompletableFuture<Snapshot> commitAll(Snapshot base, Committer target, TransactionId tid) {
+        List<PendingCommit> toCommit;
+        synchronized (this) {
+            toCommit = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        return Futures.reduceAll(toCommit, base,
+                (s, c) -> target.commit(c.owner, c.signer, c.wd, c.existing, tid).thenApply(s::mergeAndOverwriteWith),
+                (a, b) -> b);
+    }
+
+    private static class PendingCommit {
+        public final PublicKeyHash owner;
+        public final SigningPrivateKeyAndPublicHash signer;
+        public final WriterData wd;
+        public final CommittedWriterData existing;
+
+        public PendingCommit(PublicKeyHash owner,
+                             SigningPrivateKeyAndPublicHash signer,
+                             WriterData wd,
+                             CommittedWriterData existing) {
+            this.owner = owner;
+            this.signer = signer;
+            this.wd = wd;
+            this.existing = existing;
+        }
+    }
+}
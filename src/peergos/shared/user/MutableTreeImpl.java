@@ -11,8 +11,10 @@ import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class MutableTreeImpl implements MutableTree {
 	private static final Logger LOG = Logger.getGlobal();
@@ -21,6 +23,7 @@ public class MutableTreeImpl implements MutableTree {
     private final Hasher writeHasher;
     private static final boolean LOGGING = false;
     private final WriteSynchronizer synchronizer;
+    private static final Function<Cborable, CborObject.CborMerkleLink> FROM_CBOR = c -> (CborObject.CborMerkleLink)c;
     private final Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher = x -> Futures.of(x.data);
 
     public MutableTreeImpl(MutablePointers mutable,
@@ -48,19 +51,38 @@ public class MutableTreeImpl implements MutableTree {
                                              Multihash value,
                                              TransactionId tid) {
         return (base.tree.isPresent() ?
-                ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, c -> (CborObject.CborMerkleLink)c) :
-                ChampWrapper.create(owner, writer, hasher, tid, dht, writeHasher, c -> (CborObject.CborMerkleLink)c)
+                ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, FROM_CBOR) :
+                ChampWrapper.create(owner, writer, hasher, tid, dht, writeHasher, FROM_CBOR)
         ).thenCompose(tree -> tree.put(owner, writer, mapKey, existing.map(CborObject.CborMerkleLink::new), new CborObject.CborMerkleLink(value), tid))
                 .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.put (" + ArrayOps.bytesToHex(mapKey)
                         + ", " + value + ") => CAS(" + base.tree + ", " + newRoot + ")") : newRoot)
                 .thenApply(base::withChamp);
     }
 
+    @Override
+    public CompletableFuture<WriterData> putAll(WriterData base,
+                                                PublicKeyHash owner,
+                                                SigningPrivateKeyAndPublicHash writer,
+                                                List<Triple<byte[], MaybeMultihash, Multihash>> mappings,
+                                                TransactionId tid) {
+        List<Triple<byte[], Optional<CborObject.CborMerkleLink>, CborObject.CborMerkleLink>> links = mappings.stream()
+                .map(m -> new Triple<byte[], Optional<CborObject.CborMerkleLink>, CborObject.CborMerkleLink>(m.left,
+                        m.middle.map(CborObject.CborMerkleLink::new), new CborObject.CborMerkleLink(m.right)))
+                .collect(Collectors.toList());
+        return (base.tree.isPresent() ?
+                ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, FROM_CBOR) :
+                ChampWrapper.create(owner, writer, hasher, tid, dht, writeHasher, FROM_CBOR)
+        ).thenCompose(tree -> tree.putAll(owner, writer, links, tid))
+                .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.putAll (" + mappings.size()
+                        + " mappings) => CAS(" + base.tree + ", " + newRoot + ")") : newRoot)
+                .thenApply(base::withChamp);
+    }
+
     @Override
     public CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
         if (! base.tree.isPresent())
             throw new IllegalStateException("Tree root not present for " + writer);
-        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, c -> (CborObject.CborMerkleLink)c).thenCompose(tree -> tree.get(mapKey))
+        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, FROM_CBOR).thenCompose(tree -> tree.get(mapKey))
                 .thenApply(c -> c.map(x -> x.target).map(MaybeMultihash::of).orElse(MaybeMultihash.empty()))
                 .thenApply(maybe -> LOGGING ?
                         log(maybe, "TREE.get (" + ArrayOps.bytesToHex(mapKey)
@@ -76,7 +98,7 @@ public class MutableTreeImpl implements MutableTree {
                                                 TransactionId tid) {
         if (! base.tree.isPresent())
             throw new IllegalStateException("Tree root not present!");
-        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, c -> (CborObject.CborMerkleLink)c)
+        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, FROM_CBOR)
                 .thenCompose(tree -> tree.remove(owner, writer, mapKey, existing.map(CborObject.CborMerkleLink::new), tid))
                 .thenApply(pair -> LOGGING ? log(pair, "TREE.rm ("
                         + ArrayOps.bytesToHex(mapKey) + "  => " + pair) : pair)
@@ -14,6 +14,7 @@ import java.util.concurrent.*;
 import java.util.function.*;
 
 public class OwnedKeyChamp {
+    private static final Function<Cborable, CborObject.CborMerkleLink> FROM_CBOR = c -> (CborObject.CborMerkleLink)c;
 
     public final Multihash root;
     private final ChampWrapper<CborObject.CborMerkleLink> champ;
@@ -30,14 +31,14 @@ public class OwnedKeyChamp {
                                                            ContentAddressedStorage ipfs,
                                                            Hasher hasher,
                                                            TransactionId tid) {
-        Champ<CborObject.CborMerkleLink> newRoot = Champ.empty(c -> (CborObject.CborMerkleLink)c);
+        Champ<CborObject.CborMerkleLink> newRoot = Champ.empty(FROM_CBOR);
         byte[] raw = newRoot.serialize();
         return hasher.sha256(raw)
                 .thenCompose(hash -> ipfs.put(owner, writer.publicKeyHash, writer.secret.signMessage(hash), raw, tid));
     }
 
     public static CompletableFuture<OwnedKeyChamp> build(Multihash root, ContentAddressedStorage ipfs, Hasher hasher) {
-        return ChampWrapper.create(root, b -> Futures.of(b.data), ipfs, hasher, c -> (CborObject.CborMerkleLink)c)
+        return ChampWrapper.create(root, b -> Futures.of(b.data), ipfs, hasher, FROM_CBOR)
                 .thenApply(c -> new OwnedKeyChamp(root, c, ipfs));
     }
 
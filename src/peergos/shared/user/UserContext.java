@@ -1681,6 +1681,18 @@ public class UserContext {
         return entrie.getByPath(path.startsWith("/") ? path : "/" + path, crypto.hasher, network);
     }
 
+    /** Upload many new files to a directory with a single commit.
+     *
+     * @param dir
+     * @param files
+     * @return The updated directory
+     */
+    public CompletableFuture<FileWrapper> uploadFiles(Path dir, List<FileUploadProperties> files) {
+        return getByPath(dir)
+                .thenCompose(opt -> opt.orElseThrow(() -> new IllegalStateException("No directory at " + dir))
+                        .uploadFiles(files, network, crypto));
+    }
+
     public CompletableFuture<FileWrapper> getUserRoot() {
         return getByPath("/" + username).thenApply(opt -> opt.get());
     }
@@ -16,9 +16,9 @@ public class BufferedAsyncReader implements AsyncReader {
     private volatile boolean closed = false;
     private final AsyncLock<Integer> lock = new AsyncLock<>(Futures.of(0));
 
-    public BufferedAsyncReader(AsyncReader source, int nChunksToBuffer, long fileSize, long bufferStartInFile) {
+    private BufferedAsyncReader(AsyncReader source, byte[] buffer, long fileSize, long bufferStartInFile) {
         this.source = source;
-        this.buffer = new byte[nChunksToBuffer * Chunk.MAX_SIZE];
+        this.buffer = buffer;
         this.fileSize = fileSize;
         this.bufferStartInFile = bufferStartInFile;
         this.readOffsetInFile = bufferStartInFile;
@@ -26,6 +26,10 @@ public class BufferedAsyncReader implements AsyncReader {
         this.startInBuffer = 0;
     }
 
+    public BufferedAsyncReader(AsyncReader source, int nChunksToBuffer, long fileSize, long bufferStartInFile) {
+        this(source, new byte[nChunksToBuffer * Chunk.MAX_SIZE], fileSize, bufferStartInFile);
+    }
+
     public BufferedAsyncReader(AsyncReader source, int nChunksToBuffer, long fileSize) {
         this(source, nChunksToBuffer, fileSize, 0);
     }
@@ -173,10 +177,11 @@ public class BufferedAsyncReader implements AsyncReader {
 
         close();
         long aligned = offset - offset % Chunk.MAX_SIZE;
-        return source.seek(aligned)
+        return awaitPendingFills()
+                .thenCompose(x -> source.seek(aligned))
                 .thenCompose(r -> {
-                    BufferedAsyncReader res = new BufferedAsyncReader(r, buffer.length / Chunk.MAX_SIZE, fileSize, aligned);
-                    // do a dummy read into our buffer to get to correct position
+                    BufferedAsyncReader res = new BufferedAsyncReader(r, buffer, fileSize, aligned);
+                    // do a dummy read to get to correct position, this copies the skipped bytes onto themselves
                     return res.internalReadIntoArray(buffer, 0, (int) (offset - aligned))
                             .thenApply(n -> res);
                 });
@@ -186,8 +191,15 @@ public class BufferedAsyncReader implements AsyncReader {
     public CompletableFuture<AsyncReader> reset() {
         System.out.println("BufferedReader.reset()");
         close();
-        return source.reset()
-                .thenApply(r -> new BufferedAsyncReader(r, buffer.length/Chunk.MAX_SIZE, fileSize));
+        return awaitPendingFills()
+                .thenCompose(x -> source.reset())
+                .thenApply(r -> new BufferedAsyncReader(r, buffer, fileSize, 0));
+    }
+
+    /** Once closed, the buffer can be handed to a new reader after any in flight fills have finished writing to it
+     */
+    private CompletableFuture<Integer> awaitPendingFills() {
+        return lock.runWithLock(Futures::of).exceptionally(t -> 0);
     }
 
     @Override
@@ -82,6 +82,27 @@ public class EncryptedChunkRetriever implements FileRetriever {
                                                               Optional<byte[]> streamSecret,
                                                               MaybeMultihash ourExistingHash,
                                                               ProgressConsumer<Long> monitor) {
+        if (startIndex >= 2 * Chunk.MAX_SIZE && streamSecret.isPresent()) {
+            // go straight to the target chunk, whose location can be derived from ours
+            long chunkOffset = startIndex - startIndex % Chunk.MAX_SIZE;
+            return FileProperties.calculateMapKey(streamSecret.get(), ourCap.getMapKey(), chunkOffset, crypto.hasher)
+                    .thenCompose(mapKey -> {
+                        AbsoluteCapability targetCap = ourCap.withMapKey(mapKey);
+                        return network.getMetadata(version, targetCap)
+                                .thenCompose(meta -> {
+                                    if (meta.isPresent())
+                                        return meta.get().retriever(ourCap.rBaseKey, streamSecret, mapKey, crypto.hasher)
+                                                .thenCompose(retriever -> retriever
+                                                        .getChunk(version, network, crypto, startIndex - chunkOffset,
+                                                                truncateTo - chunkOffset, targetCap, streamSecret,
+                                                                meta.get().committedHash(), l -> {}));
+                                    Chunk newEmptyChunk = new Chunk(new byte[0], dataKey, mapKey, dataKey.createNonce());
+                                    LocatedChunk withLocation = new LocatedChunk(targetCap.getLocation(),
+                                            MaybeMultihash.empty(), newEmptyChunk);
+                                    return CompletableFuture.completedFuture(Optional.of(withLocation));
+                                });
+                    });
+        }
         if (startIndex >= Chunk.MAX_SIZE) {
             AbsoluteCapability nextChunkCap = ourCap.withMapKey(nextChunkLabel);
             return network.getMetadata(version, nextChunkCap)
@@ -2,7 +2,7 @@ package peergos.shared.user.fs;
 
 
 import peergos.shared.cbor.*;
-import peergos.shared.user.fs.erasure.Erasure;
+import peergos.shared.user.fs.erasure.*;
 import peergos.shared.util.*;
 
 import java.util.*;
@@ -24,7 +24,7 @@ public class ErasureFragmenter implements Fragmenter {
     }
 
     public byte[][] split(byte[] input) {
-        return Erasure.split(input, nOriginalFragments, nAllowedFailures);
+        return ReedSolomon.get(nOriginalFragments, nAllowedFailures).encode(input);
     }
 
     public byte[] recombine(byte[][] encoded, int startOffset, int truncateLength) {
@@ -0,0 +1,19 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.util.*;
+
+/** A new file to be uploaded as part of a group of files.
+ */
+public class FileUploadProperties {
+    public final String filename;
+    public final AsyncReader fileData;
+    public final long length;
+    public final ProgressConsumer<Long> monitor;
+
+    public FileUploadProperties(String filename, AsyncReader fileData, long length, ProgressConsumer<Long> monitor) {
+        this.filename = filename;
+        this.fileData = fileData;
+        this.length = length;
+        this.monitor = monitor;
+    }
+}
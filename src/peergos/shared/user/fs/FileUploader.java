@@ -18,6 +18,7 @@ import java.util.stream.*;
 
 public class FileUploader implements AutoCloseable {
 	private static final Logger LOG = Logger.getGlobal();
+    public static final int DEFAULT_WINDOW = 4;
 
     private final String name;
     private final long offset, length;
@@ -105,12 +106,90 @@ public class FileUploader implements AutoCloseable {
         });
     }
 
+    /** Upload the file with up to window chunks being read, encrypted and uploaded concurrently.
+     *
+     *  Each chunk is still committed in its own transaction, and in order, so a failed upload leaves a committed
+     *  prefix of the file, as it would uploading one chunk at a time. A window of 1 uploads each chunk in turn.
+     */
     public CompletableFuture<Snapshot> upload(Snapshot current,
                                               Committer committer,
                                               NetworkAccess network,
                                               PublicKeyHash owner,
                                               SigningPrivateKeyAndPublicHash writer,
-                                              Hasher hasher) {
+                                              Hasher hasher,
+                                              int window) {
+        if (window <= 1)
+            return uploadSequentially(current, committer, network, owner, writer, hasher);
+        long t1 = System.currentTimeMillis();
+        List<CompletableFuture<Snapshot>> committed = new ArrayList<>();
+        CompletableFuture<Boolean> previousRead = Futures.of(true);
+        CompletableFuture<Snapshot> previousCommit = Futures.of(current);
+        for (long i = 0; i < nchunks; i++) {
+            long chunkIndex = i;
+            // don't read more than window chunks ahead of the last commit
+            CompletableFuture<Boolean> windowFree = i < window ?
+                    Futures.of(true) :
+                    committed.get((int) (i - window)).thenApply(x -> true);
+            CompletableFuture<byte[]> data = previousRead
+                    .thenCompose(x -> windowFree)
+                    .thenCompose(x -> readChunk(chunkIndex));
+            previousRead = data.thenApply(x -> true);
+            CompletableFuture<Snapshot> prior = previousCommit;
+            CompletableFuture<Snapshot> commit = data.thenCompose(bytes -> IpfsTransaction.call(owner,
+                    tid -> encryptAndUpload(bytes, chunkIndex, network, owner, writer, hasher, tid)
+                            .thenCompose(chunk -> prior.thenCompose(s -> network.uploadChunk(s, committer, chunk.left,
+                                    owner, chunk.right.chunk.mapKey(), writer, tid))),
+                    network.dhtClient));
+            // report any failure only after the preceding chunks have finished
+            CompletableFuture<Snapshot> inOrder = prior.thenCompose(s -> commit);
+            committed.add(inOrder);
+            previousCommit = inOrder;
+        }
+        return previousCommit.thenApply(x -> {
+            LOG.info("File encryption, upload took: " +(System.currentTimeMillis()-t1) + " mS");
+            return x;
+        });
+    }
+
+    private CompletableFuture<byte[]> readChunk(long chunkIndex) {
+        long position = chunkIndex * Chunk.MAX_SIZE;
+        boolean isLastChunk = length < position + Chunk.MAX_SIZE;
+        byte[] data = new byte[isLastChunk ? (int)(length - position) : Chunk.MAX_SIZE];
+        return reader.readIntoArray(data, 0, data.length).thenApply(x -> data);
+    }
+
+    /**
+     *
+     * @return the metadata for the chunk, and the chunk, after its fragments have been uploaded
+     */
+    private CompletableFuture<Pair<CryptreeNode, LocatedChunk>> encryptAndUpload(byte[] data,
+                                                                                 long chunkIndex,
+                                                                                 NetworkAccess network,
+                                                                                 PublicKeyHash owner,
+                                                                                 SigningPrivateKeyAndPublicHash writer,
+                                                                                 Hasher hasher,
+                                                                                 TransactionId tid) {
+        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+        byte[] nonce = baseKey.createNonce();
+        return FileProperties.calculateMapKey(props.streamSecret.get(), firstLocation, chunkIndex * Chunk.MAX_SIZE, hasher)
+                .thenCompose(mapKey -> FileProperties.calculateNextMapKey(props.streamSecret.get(), mapKey, hasher)
+                        .thenCompose(nextMapKey -> {
+                            Chunk chunk = new Chunk(data, dataKey, mapKey, nonce);
+                            LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()),
+                                    MaybeMultihash.empty(), chunk);
+                            Location nextLocation = new Location(owner, writer.publicKeyHash, nextMapKey);
+                            return uploadFragments(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
+                                    nextLocation, Optional.empty(), hasher, network, monitor, tid)
+                                    .thenApply(metadata -> new Pair<>(metadata, locatedChunk));
+                        }));
+    }
+
+    private CompletableFuture<Snapshot> uploadSequentially(Snapshot current,
+                                                           Committer committer,
+                                                           NetworkAccess network,
+                                                           PublicKeyHash owner,
+                                                           SigningPrivateKeyAndPublicHash writer,
+                                                           Hasher hasher) {
         long t1 = System.currentTimeMillis();
 
         List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
@@ -135,9 +214,33 @@ public class FileUploader implements AutoCloseable {
                                                           Hasher hasher,
                                                           NetworkAccess network,
                                                           ProgressConsumer<Long> monitor) {
-        CappedProgressConsumer progress = new CappedProgressConsumer(monitor, chunk.chunk.length());
         if (! writer.publicKeyHash.equals(chunk.location.writer))
             throw new IllegalStateException("Trying to write a chunk to the wrong signing key space!");
+        return IpfsTransaction.call(chunk.location.owner,
+                tid -> uploadFragments(writer, props, parentLocation, parentparentKey, baseKey, chunk, nextChunkLocation,
+                        writerLink, hasher, network, monitor, tid)
+                        .thenCompose(metadata -> network.uploadChunk(current, committer, metadata, chunk.location.owner,
+                                chunk.chunk.mapKey(), writer, tid)),
+                network.dhtClient);
+    }
+
+    /** Encrypt a chunk and upload its fragments, without committing its metadata.
+     *
+     * @return the metadata to commit for the chunk
+     */
+    private static CompletableFuture<CryptreeNode> uploadFragments(SigningPrivateKeyAndPublicHash writer,
+                                                                   FileProperties props,
+                                                                   Location parentLocation,
+                                                                   SymmetricKey parentparentKey,
+                                                                   SymmetricKey baseKey,
+                                                                   LocatedChunk chunk,
+                                                                   Location nextChunkLocation,
+                                                                   Optional<SymmetricLinkToSigner> writerLink,
+                                                                   Hasher hasher,
+                                                                   NetworkAccess network,
+                                                                   ProgressConsumer<Long> monitor,
+                                                                   TransactionId tid) {
+        CappedProgressConsumer progress = new CappedProgressConsumer(monitor, chunk.chunk.length());
         RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(nextChunkLocation.getMapKey(), baseKey);
         return CryptreeNode.createFile(chunk.existingHash, chunk.location.writer, baseKey,
                 chunk.chunk.key(), props, chunk.chunk.data(), parentLocation, parentparentKey, nextChunk,
@@ -153,11 +256,8 @@ public class FileUploader implements AutoCloseable {
                     if (fragments.size() < file.right.size() || fragments.isEmpty())
                         progress.accept((long) chunk.chunk.length());
                     LOG.info("Uploading chunk with " + fragments.size() + " fragments\n");
-                    return IpfsTransaction.call(chunk.location.owner,
-                            tid -> network.uploadFragments(fragments, chunk.location.owner, writer, progress, tid)
-                                    .thenCompose(hashes -> network.uploadChunk(current, committer, metadata, chunk.location.owner,
-                                            chunk.chunk.mapKey(), writer, tid)),
-                            network.dhtClient);
+                    return network.uploadFragments(fragments, chunk.location.owner, writer, progress, tid)
+                            .thenApply(hashes -> metadata);
                 });
     }
 
@@ -607,6 +607,106 @@ public class FileWrapper {
                         .thenCompose(childOpt -> childOpt.get().truncate(length, network, crypto)));
     }
 
+    /** Upload many new files to this directory with a single commit.
+     *
+     *  Every block is buffered locally while the files are uploaded and then linked from this directory all at once.
+     *  The new chunks are added to the writer's champ in a single batch, and finally the reachable blocks are written
+     *  in bulk, followed by one pointer update. The file contents are held in memory until the commit, so this is
+     *  intended for groups of small files.
+     *
+     * @param files
+     * @param network
+     * @param crypto
+     * @return The updated version of this directory after the upload
+     */
+    public CompletableFuture<FileWrapper> uploadFiles(List<FileUploadProperties> files,
+                                                      NetworkAccess network,
+                                                      Crypto crypto) {
+        if (! isDirectory())
+            return Futures.errored(new IllegalStateException("Cannot upload a sub file to a file!"));
+        if (! isWritable())
+            return Futures.errored(new IllegalStateException("Cannot upload files to a directory without write access!"));
+        Set<String> names = new HashSet<>();
+        for (FileUploadProperties file : files) {
+            if (! isLegalName(file.filename))
+                return Futures.errored(new IllegalStateException("Illegal filename: " + file.filename));
+            if (! names.add(file.filename))
+                return Futures.errored(new IllegalStateException("Duplicate filename: " + file.filename));
+        }
+        if (files.isEmpty())
+            return Futures.of(this);
+
+        return network.synchronizer.applyComplexUpdate(owner(), signingPair(), (current, committer) -> {
+            BufferedStorage buffer = new BufferedStorage(network.dhtClient);
+            NetworkAccess bufferedNetwork = network.withStorage(buffer);
+            BatchedMutableTree batch = new BatchedMutableTree(bufferedNetwork.tree);
+            NetworkAccess buffered = bufferedNetwork.withMutableTree(batch);
+            GroupCommitter group = new GroupCommitter();
+            return current.withWriter(owner(), writer(), network)
+                    .thenCompose(base -> getUpdated(base, network)
+                            .thenCompose(latest -> latest.pointer.fileAccess.getAllChildrenCapabilities(base,
+                                    latest.pointer.capability, crypto.hasher, network)
+                                    .thenCompose(children -> {
+                                        for (NamedAbsoluteCapability child : children) {
+                                            if (names.contains(child.name.name))
+                                                throw new IllegalStateException("File already exists with name " + child.name.name);
+                                        }
+                                        List<NamedRelativeCapability> childCaps = new ArrayList<>();
+                                        return Futures.reduceAll(files, base,
+                                                (s, file) -> latest.uploadNewFile(s, group, file, buffered, crypto)
+                                                        .thenApply(p -> {
+                                                            childCaps.add(p.right);
+                                                            return p.left;
+                                                        }),
+                                                (a, b) -> b)
+                                                .thenCompose(s -> latest.pointer.fileAccess.addChildrenAndCommit(s, group,
+                                                        childCaps, latest.writableFilePointer(), latest.signingPair(), buffered, crypto))
+                                                .thenCompose(s -> IpfsTransaction.call(owner(),
+                                                        tid -> batch.commitAll(s, group, tid)
+                                                                .thenCompose(x -> buffer.commit(group.roots(), tid))
+                                                                .thenCompose(x -> group.commitAll(base, committer, tid)),
+                                                        network.dhtClient));
+                                    })));
+        }).thenCompose(finished -> getUpdated(finished, network));
+    }
+
+    /** Upload the chunks of a new file, without linking it from this directory.
+     *
+     * @return The updated snapshot and the capability to link from this directory
+     */
+    private CompletableFuture<Pair<Snapshot, NamedRelativeCapability>> uploadNewFile(Snapshot current,
+                                                                                     Committer committer,
+                                                                                     FileUploadProperties file,
+                                                                                     NetworkAccess network,
+                                                                                     Crypto crypto) {
+        SymmetricKey fileWriteKey = SymmetricKey.random();
+        SymmetricKey fileKey = SymmetricKey.random();
+        SymmetricKey dataKey = SymmetricKey.random();
+        SymmetricKey dirParentKey = pointer.fileAccess.getParentKey(pointer.capability.rBaseKey);
+        Location parentLocation = getLocation();
+        byte[] firstChunkMapKey = crypto.random.randomBytes(32);
+        SigningPrivateKeyAndPublicHash signer = signingPair();
+        WritableAbsoluteCapability fileWriteCap = new WritableAbsoluteCapability(owner(), signer.publicKeyHash,
+                firstChunkMapKey, fileKey, fileWriteKey);
+        NamedRelativeCapability namedCap = new NamedRelativeCapability(new PathElement(file.filename),
+                writableFilePointer().relativise(fileWriteCap));
+
+        return calculateMimeType(file.fileData, file.length, file.filename)
+                .thenCompose(mimeType -> file.fileData.reset()
+                        .thenCompose(reader -> generateThumbnail(network, reader,
+                                (int) Math.min(file.length, Integer.MAX_VALUE), file.filename, mimeType))
+                        .thenCompose(thumbData -> file.fileData.reset().thenCompose(reader -> {
+                            Optional<byte[]> streamSecret = Optional.of(crypto.random.randomBytes(32));
+                            FileProperties fileProps = new FileProperties(file.filename, false, false, mimeType,
+                                    file.length, LocalDateTime.now(), false, thumbData, streamSecret);
+                            FileUploader chunks = new FileUploader(file.filename, mimeType, reader, 0, file.length,
+                                    fileKey, dataKey, parentLocation, dirParentKey, file.monitor, fileProps, firstChunkMapKey);
+                            // blocks are only buffered locally until the group commit, so there is no latency to overlap
+                            return chunks.upload(current, committer, network, parentLocation.owner, signer, crypto.hasher, 1)
+                                    .thenApply(updated -> new Pair<>(updated, namedCap));
+                        })));
+    }
+
     @JsMethod
     public CompletableFuture<FileWrapper> overwriteFileJS(AsyncReader fileData,
                                                           int endHigh,
@@ -953,7 +1053,8 @@ public class FileWrapper {
                                                                 firstChunkMapKey, fileKey,
                                                                 fileWriteKey);
 
-                                                        return chunks.upload(current, committer, network, parentLocation.owner, signer, crypto.hasher)
+                                                        return chunks.upload(current, committer, network, parentLocation.owner, signer,
+                                                                crypto.hasher, FileUploader.DEFAULT_WINDOW)
                                                                 .thenCompose(updatedWD -> latest.addChildPointer(updatedWD,
                                                                         committer, fileWriteCap, new PathElement(filename), network, crypto))
                                                                 .thenCompose(cwd -> fileData.reset().thenCompose(resetAgain ->
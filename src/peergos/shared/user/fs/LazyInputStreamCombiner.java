@@ -12,7 +12,16 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 
+/** Reads a file chunk by chunk, decrypting each chunk as it is reached.
+ *
+ *  For files with a stream secret the locations of subsequent chunks can be derived without fetching the chunks in
+ *  between, so while the file is being read sequentially the following chunks are fetched and decrypted in parallel.
+ *  The read ahead window doubles with each sequential chunk up to a maximum, and is dropped after a seek. Seeks go
+ *  straight to the target chunk, rather than following the chain of chunks from the current one.
+ */
 public class LazyInputStreamCombiner implements AsyncReader {
+    public static final int DEFAULT_MAX_READ_AHEAD = 4;
+
     private final WriterData version;
     private final NetworkAccess network;
     private final Crypto crypto;
@@ -24,6 +33,12 @@ public class LazyInputStreamCombiner implements AsyncReader {
     private final byte[] originalChunkLocation;
     private final Optional<byte[]> streamSecret;
     private final AbsoluteCapability originalNextPointer;
+    private final int maxReadAhead;
+    // decrypted chunks requested before they were needed, by their offset in the file
+    private final Map<Long, CompletableFuture<Pair<byte[], AbsoluteCapability>>> readAhead;
+    private int readAheadWindow = 0;
+    // locations of chunks we have passed, by offset, for files without a stream secret
+    private final TreeMap<Long, AbsoluteCapability> knownChunks;
 
     private byte[] currentChunk;
     private AbsoluteCapability nextChunkPointer;
@@ -44,6 +59,24 @@ public class LazyInputStreamCombiner implements AsyncReader {
                                    SymmetricKey baseKey,
                                    long totalLength,
                                    ProgressConsumer<Long> monitor) {
+        this(version, globalIndex, chunk, nextChunkPointer, originalChunk, originalChunkLocation, streamSecret,
+                originalNextChunkPointer, network, crypto, baseKey, totalLength, monitor, DEFAULT_MAX_READ_AHEAD);
+    }
+
+    public LazyInputStreamCombiner(WriterData version,
+                                   long globalIndex,
+                                   byte[] chunk,
+                                   Location nextChunkPointer,
+                                   byte[] originalChunk,
+                                   byte[] originalChunkLocation,
+                                   Optional<byte[]> streamSecret,
+                                   Location originalNextChunkPointer,
+                                   NetworkAccess network,
+                                   Crypto crypto,
+                                   SymmetricKey baseKey,
+                                   long totalLength,
+                                   ProgressConsumer<Long> monitor,
+                                   int maxReadAhead) {
         if (chunk == null)
             throw new IllegalStateException("Null initial chunk!");
         this.version = version;
@@ -60,11 +93,17 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.nextChunkPointer = AbsoluteCapability.build(nextChunkPointer, baseKey);
         this.globalIndex = globalIndex;
         this.index = 0;
+        this.maxReadAhead = maxReadAhead;
+        this.readAhead = new ConcurrentHashMap<>();
+        this.knownChunks = new TreeMap<>();
+        recordChunk(Chunk.MAX_SIZE, originalNextPointer);
     }
 
     private LazyInputStreamCombiner(WriterData version, NetworkAccess network, Crypto crypto, SymmetricKey baseKey,
                                     ProgressConsumer<Long> monitor, long totalLength, byte[] originalChunk, byte[] originalChunkLocation, Optional<byte[]> streamSecret,
-                                    AbsoluteCapability originalNextPointer, byte[] currentChunk, AbsoluteCapability nextChunkPointer, long globalIndex, int index) {
+                                    AbsoluteCapability originalNextPointer, byte[] currentChunk, AbsoluteCapability nextChunkPointer, long globalIndex, int index,
+                                    int maxReadAhead, Map<Long, CompletableFuture<Pair<byte[], AbsoluteCapability>>> readAhead,
+                                    TreeMap<Long, AbsoluteCapability> knownChunks) {
         this.version = version;
         this.network = network;
         this.crypto = crypto;
@@ -79,22 +118,73 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.nextChunkPointer = nextChunkPointer;
         this.globalIndex = globalIndex;
         this.index = index;
+        this.maxReadAhead = maxReadAhead;
+        this.readAhead = readAhead;
+        this.knownChunks = knownChunks;
     }
 
     private LazyInputStreamCombiner copy() {
         return new LazyInputStreamCombiner( version, network, crypto, baseKey, monitor, totalLength, originalChunk, originalChunkLocation,
-                streamSecret, originalNextPointer, currentChunk, nextChunkPointer, globalIndex, index);
+                streamSecret, originalNextPointer, currentChunk, nextChunkPointer, globalIndex, index, maxReadAhead, readAhead, knownChunks);
     }
 
     public CompletableFuture<Boolean> getNextStream(int len) {
-        return getSubsequentMetadata(this.nextChunkPointer, 0)
-                .thenCompose(access -> getChunk(access, nextChunkPointer.getMapKey(), len))
-                .thenApply(p -> {
+        long nextOffset = globalIndex + Chunk.MAX_SIZE;
+        AbsoluteCapability nextCap = this.nextChunkPointer;
+        CompletableFuture<Pair<byte[], AbsoluteCapability>> prefetched = readAhead.remove(nextOffset);
+        CompletableFuture<Pair<byte[], AbsoluteCapability>> next = prefetched == null ?
+                fetchChunk(nextCap, len) :
+                prefetched.exceptionally(t -> null)
+                        .thenCompose(p -> p != null ? Futures.of(p) : fetchChunk(nextCap, len));
+        cancelReadAheadOutside(nextOffset + Chunk.MAX_SIZE, Long.MAX_VALUE);
+        readAheadWindow = Math.min(maxReadAhead, Math.max(1, readAheadWindow * 2));
+        if (nextCap != null)
+            readAheadAfter(nextOffset, nextCap);
+        return next.thenApply(p -> {
                     updateState(0,globalIndex + Chunk.MAX_SIZE, p.left, p.right);
                     return true;
                 });
     }
 
+    private CompletableFuture<Pair<byte[], AbsoluteCapability>> fetchChunk(AbsoluteCapability cap, int truncateTo) {
+        return getMetadata(cap)
+                .thenCompose(access -> getChunk(access, cap.getMapKey(), truncateTo));
+    }
+
+    /** Request the chunks in the read ahead window following the chunk at the given offset
+     *
+     * @param offset
+     * @param cap the capability for the chunk at offset
+     */
+    private void readAheadAfter(long offset, AbsoluteCapability cap) {
+        if (! streamSecret.isPresent())
+            return;
+        CompletableFuture<byte[]> mapKey = Futures.of(cap.getMapKey());
+        for (int i=1; i <= readAheadWindow; i++) {
+            long chunkOffset = offset + i * (long) Chunk.MAX_SIZE;
+            if (chunkOffset >= totalLength)
+                return;
+            mapKey = mapKey.thenCompose(current -> FileProperties.calculateNextMapKey(streamSecret.get(), current, crypto.hasher));
+            if (readAhead.containsKey(chunkOffset))
+                continue;
+            int truncateTo = (int) Math.min(Chunk.MAX_SIZE, totalLength - chunkOffset);
+            readAhead.put(chunkOffset, mapKey.thenCompose(key -> fetchChunk(cap.withMapKey(key), truncateTo)));
+        }
+    }
+
+    /** Drop any requested chunks outside [from, to). Their downloads will still complete, but the results are discarded.
+     */
+    private void cancelReadAheadOutside(long from, long to) {
+        Iterator<Map.Entry<Long, CompletableFuture<Pair<byte[], AbsoluteCapability>>>> it = readAhead.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, CompletableFuture<Pair<byte[], AbsoluteCapability>>> e = it.next();
+            if (e.getKey() < from || e.getKey() >= to) {
+                it.remove();
+                e.getValue().cancel(false);
+            }
+        }
+    }
+
     private CompletableFuture<Pair<byte[], AbsoluteCapability>> getChunk(CryptreeNode access, byte[] chunkLocation, int truncateTo) {
         if (access.isDirectory())
                 throw new IllegalStateException("File linked to a directory for its next chunk!");
@@ -113,14 +203,14 @@ public class LazyInputStreamCombiner implements AsyncReader {
                 });
     }
 
-    private CompletableFuture<CryptreeNode> getSubsequentMetadata(AbsoluteCapability nextCap, long chunks) {
-        if (nextCap == null) {
+    private CompletableFuture<CryptreeNode> getMetadata(AbsoluteCapability cap) {
+        if (cap == null) {
             CompletableFuture<CryptreeNode> err = new CompletableFuture<>();
             err.completeExceptionally(new EOFException());
             return err;
         }
 
-        return network.getMetadata(version, nextCap)
+        return network.getMetadata(version, cap)
                 .thenCompose(meta -> {
                     if (!meta.isPresent()) {
                         CompletableFuture<CryptreeNode> err = new CompletableFuture<>();
@@ -128,14 +218,6 @@ public class LazyInputStreamCombiner implements AsyncReader {
                         return err;
                     }
                     return CompletableFuture.completedFuture(meta.get());
-                }).thenCompose(access -> {
-                    if (chunks == 0)
-                        return CompletableFuture.completedFuture(access);
-                    return access.getNextChunkLocation(baseKey, streamSecret, nextCap.getMapKey(), crypto.hasher)
-                            .thenCompose(mapKey -> {
-                                AbsoluteCapability newNextCap = nextCap.withMapKey(mapKey);
-                                return getSubsequentMetadata(newNextCap, chunks - 1);
-                            });
                 });
     }
 
@@ -147,34 +229,56 @@ public class LazyInputStreamCombiner implements AsyncReader {
             return CompletableFuture.completedFuture(this);
         }
 
-        long toRead = Math.min(available, skip);
-
-        long toSkipAfterThisChunk = skip - toRead;
-            // skip through the cryptree nodes without downloading the data
-            long finalOffset = globalIndex + skip;
-            long finalInternalIndex = finalOffset % Chunk.MAX_SIZE;
-            long startOfTargetChunk = finalOffset - finalInternalIndex;
-            long chunksToSkip = toSkipAfterThisChunk / Chunk.MAX_SIZE;
-            int truncateTo = (int) Math.min(Chunk.MAX_SIZE, totalLength - startOfTargetChunk);
-            // short circuit for files in the new deterministic (but still secret) format
-            if (streamSecret.isPresent()) {
-                return FileProperties.calculateMapKey(streamSecret.get(), originalChunkLocation,
-                        finalOffset, crypto.hasher)
-                        .thenCompose(targetChunkLocation -> {
-                            AbsoluteCapability targetPointer = nextChunkPointer.withMapKey(targetChunkLocation);
-                            return getSubsequentMetadata(targetPointer, 0)
-                                    .thenCompose(access -> getChunk(access, targetPointer.getMapKey(), truncateTo))
-                                    .thenCompose(p -> {
-                                        updateState(index, finalOffset, p.left, p.right);
-                                        return skip(finalInternalIndex);});
-                        });
-            }
-            return getSubsequentMetadata(nextChunkPointer, chunksToSkip)
-                    .thenCompose(access -> getChunk(access, nextChunkPointer.getMapKey(), truncateTo))
-                    .thenCompose(p -> {
-                        updateState(index, finalOffset, p.left, p.right);
-                        return skip(finalInternalIndex);
+        // go straight to the target chunk without downloading the data in between
+        long finalOffset = globalIndex + index + skip;
+        long finalInternalIndex = finalOffset % Chunk.MAX_SIZE;
+        long startOfTargetChunk = finalOffset - finalInternalIndex;
+        int truncateTo = (int) Math.min(Chunk.MAX_SIZE, totalLength - startOfTargetChunk);
+        CompletableFuture<Pair<byte[], AbsoluteCapability>> prefetched = readAhead.remove(startOfTargetChunk);
+        CompletableFuture<Pair<byte[], AbsoluteCapability>> target = prefetched == null ?
+                fetchChunkAt(startOfTargetChunk, truncateTo) :
+                prefetched.exceptionally(t -> null)
+                        .thenCompose(p -> p != null ? Futures.of(p) : fetchChunkAt(startOfTargetChunk, truncateTo));
+        return target.thenCompose(p -> {
+            updateState(0, startOfTargetChunk, p.left, p.right);
+            return skip(finalInternalIndex);
+        });
+    }
+
+    /** Files with a stream secret have their chunk locations derived directly from the offset. For older files we
+     *  follow next chunk pointers from the nearest chunk whose location we already know.
+     */
+    private CompletableFuture<Pair<byte[], AbsoluteCapability>> fetchChunkAt(long offset, int truncateTo) {
+        if (streamSecret.isPresent())
+            return FileProperties.calculateMapKey(streamSecret.get(), originalChunkLocation, offset, crypto.hasher)
+                    .thenCompose(mapKey -> fetchChunk(originalNextPointer.withMapKey(mapKey), truncateTo));
+        Map.Entry<Long, AbsoluteCapability> nearest;
+        synchronized (knownChunks) {
+            nearest = knownChunks.floorEntry(offset);
+        }
+        return walkTo(nearest.getValue(), nearest.getKey(), offset)
+                .thenCompose(p -> getChunk(p.left, p.right.getMapKey(), truncateTo));
+    }
+
+    private CompletableFuture<Pair<CryptreeNode, AbsoluteCapability>> walkTo(AbsoluteCapability cap, long offset, long target) {
+        return getMetadata(cap).thenCompose(access -> {
+            if (offset >= target)
+                return Futures.of(new Pair<>(access, cap));
+            return access.getNextChunkLocation(baseKey, streamSecret, cap.getMapKey(), crypto.hasher)
+                    .thenCompose(mapKey -> {
+                        AbsoluteCapability next = cap.withMapKey(mapKey);
+                        recordChunk(offset + Chunk.MAX_SIZE, next);
+                        return walkTo(next, offset + Chunk.MAX_SIZE, target);
                     });
+        });
+    }
+
+    private void recordChunk(long offset, AbsoluteCapability cap) {
+        if (streamSecret.isPresent())
+            return;
+        synchronized (knownChunks) {
+            knownChunks.put(offset, cap);
+        }
     }
 
     @Override
@@ -184,6 +288,9 @@ public class LazyInputStreamCombiner implements AsyncReader {
         if (totalLength < seek)
             throw new IllegalStateException("Cannot seek to position "+ seek + " in file of length " + totalLength);
         long globalOffset = globalIndex + index;
+        // keep only read ahead which the new position will use
+        long targetChunk = seek - seek % Chunk.MAX_SIZE;
+        cancelReadAheadOutside(targetChunk, targetChunk + (maxReadAhead + 1) * (long) Chunk.MAX_SIZE);
         if (seek > globalOffset)
             return copy().skip(seek - globalOffset);
         return copy().reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek));
@@ -193,9 +300,12 @@ public class LazyInputStreamCombiner implements AsyncReader {
         return this.currentChunk.length - this.index;
     }
 
-    public void close() {}
+    public void close() {
+        cancelReadAheadOutside(0, 0);
+    }
 
     public CompletableFuture<AsyncReader> reset() {
+        this.readAheadWindow = 0;
         this.globalIndex = 0;
         this.currentChunk = originalChunk;
         this.nextChunkPointer = originalNextPointer;
@@ -240,6 +350,7 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.globalIndex = globalIndex;
         this.currentChunk = chunk;
         this.nextChunkPointer = nextChunkPointer;
+        recordChunk(globalIndex + Chunk.MAX_SIZE, nextChunkPointer);
     }
 
 }
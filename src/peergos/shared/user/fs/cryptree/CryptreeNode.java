@@ -328,26 +328,87 @@ public class CryptreeNode implements Cborable {
                                                                                       AbsoluteCapability us,
                                                                                       Hasher hasher,
                                                                                       NetworkAccess network) {
-        return inVersion.withWriter(us.owner, us.writer, network).thenCompose(version -> {
-            CompletableFuture<Set<NamedAbsoluteCapability>> childrenFuture = getDirectChildrenCapabilities(us, version, network);
-
-            CompletableFuture<Optional<RetrievedCapability>> moreChildrenFuture = getNextChunk(version, us, network,
-                    Optional.empty(), hasher);
-
-            return childrenFuture.thenCompose(children -> moreChildrenFuture.thenCompose(moreChildrenSource -> {
-                        CompletableFuture<Set<NamedAbsoluteCapability>> moreChildren = moreChildrenSource
-                                .map(d -> d.fileAccess.getAllChildrenCapabilities(version, d.capability, hasher, network))
-                                .orElse(CompletableFuture.completedFuture(Collections.emptySet()));
-                        return moreChildren.thenApply(moreRetrievedChildren -> {
-                            Set<NamedAbsoluteCapability> results = Stream.concat(
-                                    children.stream(),
-                                    moreRetrievedChildren.stream())
-                                    .collect(Collectors.toSet());
-                            return results;
-                        });
-                    })
-            );
-        });
+        return inVersion.withWriter(us.owner, us.writer, network).thenCompose(version ->
+                forEachBlob(version, us, network, hasher, (blobIndex, blob) ->
+                        blob.fileAccess.getDirectChildrenCapabilities(blob.capability, version, network)
+                                .thenApply(children -> {
+                                    DirectoryHints.setBlobIndex(us, blobIndex, children.stream()
+                                            .map(c -> c.name.name)
+                                            .collect(Collectors.toList()));
+                                    return children;
+                                }))
+                        .thenApply(all -> all.stream()
+                                .flatMap(Set::stream)
+                                .collect(Collectors.toSet())));
+    }
+
+    /** Call onBlob with each blob of this directory, and its index in the chain, as soon as the blob is located.
+     *
+     *  Each blob's location is only known from the previous blob, so blob locations seen on an earlier read are
+     *  fetched in parallel, and then checked against the actual links between the blobs. An unchanged directory is
+     *  then located in two round trips, rather than one per blob.
+     */
+    private <T> CompletableFuture<List<T>> forEachBlob(Snapshot version,
+                                                       AbsoluteCapability us,
+                                                       NetworkAccess network,
+                                                       Hasher hasher,
+                                                       BiFunction<Integer, RetrievedCapability, CompletableFuture<T>> onBlob) {
+        List<CompletableFuture<T>> results = new ArrayList<>();
+        List<AbsoluteCapability> found = new ArrayList<>();
+        RetrievedCapability first = new RetrievedCapability(us, this);
+        results.add(onBlob.apply(0, first));
+        return getHintedBlobs(version, DirectoryHints.chain(us), network)
+                .thenCompose(hinted -> followChain(version, first, hinted, network, hasher, onBlob, results, found))
+                .thenCompose(done -> {
+                    DirectoryHints.setChain(us, found);
+                    return Futures.combineAllInOrder(results);
+                });
+    }
+
+    private static CompletableFuture<List<Optional<RetrievedCapability>>> getHintedBlobs(Snapshot version,
+                                                                                         List<AbsoluteCapability> hinted,
+                                                                                         NetworkAccess network) {
+        return Futures.combineAllInOrder(hinted.stream()
+                .map(cap -> network.getMetadata(version.get(cap.writer).props, cap)
+                        .thenApply(opt -> opt.map(node -> new RetrievedCapability(cap, node))))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     *
+     * @param current the last blob located
+     * @param hinted fetched candidates for the remaining blobs, in order
+     * @return true when the end of the chain has been reached
+     */
+    private static <T> CompletableFuture<Boolean> followChain(Snapshot version,
+                                                              RetrievedCapability current,
+                                                              List<Optional<RetrievedCapability>> hinted,
+                                                              NetworkAccess network,
+                                                              Hasher hasher,
+                                                              BiFunction<Integer, RetrievedCapability, CompletableFuture<T>> onBlob,
+                                                              List<CompletableFuture<T>> results,
+                                                              List<AbsoluteCapability> found) {
+        return current.fileAccess.getNextChunkLocation(current.capability.rBaseKey, Optional.empty(),
+                current.capability.getMapKey(), hasher)
+                .thenCompose(nextMapKey -> {
+                    Optional<RetrievedCapability> candidate = hinted.isEmpty() ? Optional.empty() : hinted.get(0);
+                    boolean hintValid = candidate.isPresent() &&
+                            Arrays.equals(candidate.get().capability.getMapKey(), nextMapKey);
+                    CompletableFuture<Optional<RetrievedCapability>> next = hintValid ?
+                            Futures.of(candidate) :
+                            current.fileAccess.getNextChunk(version, current.capability.withMapKey(nextMapKey), network);
+                    // once a hint is wrong the rest are useless
+                    List<Optional<RetrievedCapability>> remaining = hintValid ?
+                            hinted.subList(1, hinted.size()) :
+                            Collections.emptyList();
+                    return next.thenCompose(blob -> {
+                        if (blob.isEmpty())
+                            return Futures.of(true);
+                        found.add(blob.get().capability);
+                        results.add(onBlob.apply(found.size(), blob.get()));
+                        return followChain(version, blob.get(), remaining, network, hasher, onBlob, results, found);
+                    });
+                });
     }
 
     public CompletableFuture<Set<RetrievedCapability>> getDirectChildren(NetworkAccess network,
@@ -378,39 +439,80 @@ public class CryptreeNode implements Cborable {
                                                                    Hasher hasher,
                                                                    NetworkAccess network,
                                                                    AbsoluteCapability us) {
-        CompletableFuture<Set<RetrievedCapability>> childrenFuture = getDirectChildren(network, us, version);
-
-        CompletableFuture<Optional<RetrievedCapability>> moreChildrenFuture = getNextChunk(version, us, network,
-                Optional.empty(), hasher);
-
-        return childrenFuture.thenCompose(children -> moreChildrenFuture.thenCompose(moreChildrenSource -> {
-                    CompletableFuture<Set<RetrievedCapability>> moreChildren = moreChildrenSource
-                            .map(d -> d.fileAccess.getChildren(version, hasher, network, d.capability))
-                            .orElse(CompletableFuture.completedFuture(Collections.emptySet()));
-                    return moreChildren.thenApply(moreRetrievedChildren -> {
-                        Set<RetrievedCapability> results = Stream.concat(
-                                children.stream(),
-                                moreRetrievedChildren.stream())
-                                .collect(Collectors.toSet());
-                        return results;
-                    });
-                })
-        );
+        return forEachBlob(version, us, network, hasher, (blobIndex, blob) ->
+                blob.fileAccess.getDirectChildrenCapabilities(blob.capability, version, network)
+                        .thenCompose(children -> {
+                            DirectoryHints.setBlobIndex(us, blobIndex, children.stream()
+                                    .map(c -> c.name.name)
+                                    .collect(Collectors.toList()));
+                            return network.retrieveAllMetadata(children.stream()
+                                    .map(n -> n.cap)
+                                    .collect(Collectors.toList()), version);
+                        }))
+                .thenApply(all -> all.stream()
+                        .flatMap(List::stream)
+                        .collect(Collectors.toSet()));
     }
 
+    /** If the child was previously seen in a later blob, and the chain of blobs up to it is unchanged, only that
+     *  blob is searched. Otherwise the blobs are searched in order.
+     */
     public CompletableFuture<Optional<RetrievedCapability>> getChild(String name,
                                                                      AbsoluteCapability us,
                                                                      Snapshot version,
                                                                      Hasher hasher,
                                                                      NetworkAccess network) {
+        Optional<Integer> hint = DirectoryHints.blobIndex(us, name);
+        List<AbsoluteCapability> chain = DirectoryHints.chain(us);
+        if (hint.isEmpty() || hint.get() > chain.size())
+            return findChild(name, us, 0, us, version, hasher, network);
+        return getHintedBlobs(version, chain.subList(0, hint.get()), network)
+                .thenCompose(hinted -> checkChain(new RetrievedCapability(us, this), hinted, hasher))
+                .thenCompose(blob -> blob.isPresent() ?
+                        blob.get().fileAccess.getDirectChild(network, name, blob.get().capability, version) :
+                        Futures.of(Optional.<RetrievedCapability>empty()))
+                .thenCompose(res -> res.isPresent() ?
+                        Futures.of(res) :
+                        findChild(name, us, 0, us, version, hasher, network));
+    }
+
+    /**
+     *
+     * @return the last of the hinted blobs, if they are all present and linked in order from current
+     */
+    private static CompletableFuture<Optional<RetrievedCapability>> checkChain(RetrievedCapability current,
+                                                                               List<Optional<RetrievedCapability>> hinted,
+                                                                               Hasher hasher) {
+        if (hinted.isEmpty())
+            return Futures.of(Optional.of(current));
+        Optional<RetrievedCapability> next = hinted.get(0);
+        if (next.isEmpty())
+            return Futures.of(Optional.empty());
+        return current.fileAccess.getNextChunkLocation(current.capability.rBaseKey, Optional.empty(),
+                current.capability.getMapKey(), hasher)
+                .thenCompose(nextMapKey -> Arrays.equals(nextMapKey, next.get().capability.getMapKey()) ?
+                        checkChain(next.get(), hinted.subList(1, hinted.size()), hasher) :
+                        Futures.of(Optional.empty()));
+    }
+
+    private CompletableFuture<Optional<RetrievedCapability>> findChild(String name,
+                                                                       AbsoluteCapability dir,
+                                                                       int blobIndex,
+                                                                       AbsoluteCapability us,
+                                                                       Snapshot version,
+                                                                       Hasher hasher,
+                                                                       NetworkAccess network) {
         return getDirectChild(network, name, us, version)
                 .thenCompose(directOpt -> {
-                    if (directOpt.isPresent())
+                    if (directOpt.isPresent()) {
+                        DirectoryHints.setBlobIndex(dir, blobIndex, Collections.singletonList(name));
                         return Futures.of(directOpt);
+                    }
                     return getNextChunk(version, us, network,
                             Optional.empty(), hasher).thenCompose(nextOpt -> {
                         if (nextOpt.isPresent())
-                            return nextOpt.get().fileAccess.getChild(name, nextOpt.get().capability, version, hasher, network);
+                            return nextOpt.get().fileAccess.findChild(name, dir, blobIndex + 1,
+                                    nextOpt.get().capability, version, hasher, network);
                         return Futures.of(Optional.empty());
                     });
                 });
@@ -0,0 +1,85 @@
+package peergos.shared.user.fs.cryptree;
+
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+
+/** Remembers where the blobs of recently read multi blob directories are, and which blob each child was found in.
+ *
+ *  These are only hints. Blobs found through them are checked against the links in the chain of blobs before use.
+ *  Only map keys are stored, never keys.
+ */
+class DirectoryHints {
+    private static final int MAX_DIRECTORIES = 100;
+    // bounds the memory used by a huge directory, children beyond this are found by searching the chain
+    private static final int MAX_NAMES_PER_DIRECTORY = 1000;
+    private static final LRUCache<ByteArrayWrapper, DirectoryHints> cache = new LRUCache<>(MAX_DIRECTORIES);
+
+    // map keys of the blobs after the first, in order
+    private final List<byte[]> chain;
+    private final Map<String, Integer> blobIndexByName;
+
+    private DirectoryHints(List<byte[]> chain, Map<String, Integer> blobIndexByName) {
+        this.chain = chain;
+        this.blobIndexByName = blobIndexByName;
+    }
+
+    private static DirectoryHints getOrCreate(AbsoluteCapability dir) {
+        ByteArrayWrapper key = new ByteArrayWrapper(dir.getMapKey());
+        DirectoryHints existing = cache.get(key);
+        if (existing != null)
+            return existing;
+        DirectoryHints hints = new DirectoryHints(new ArrayList<>(), new LRUCache<>(MAX_NAMES_PER_DIRECTORY));
+        cache.put(key, hints);
+        return hints;
+    }
+
+    /**
+     *
+     * @param dir
+     * @return the capabilities of the blobs after the first in the directory, as last seen
+     */
+    static synchronized List<AbsoluteCapability> chain(AbsoluteCapability dir) {
+        DirectoryHints hints = cache.get(new ByteArrayWrapper(dir.getMapKey()));
+        if (hints == null)
+            return Collections.emptyList();
+        List<AbsoluteCapability> res = new ArrayList<>();
+        for (byte[] mapKey : hints.chain)
+            res.add(dir.withMapKey(mapKey));
+        return res;
+    }
+
+    static synchronized void setChain(AbsoluteCapability dir, List<AbsoluteCapability> blobs) {
+        if (blobs.isEmpty()) {
+            // single blob directories don't need hints
+            cache.remove(new ByteArrayWrapper(dir.getMapKey()));
+            return;
+        }
+        DirectoryHints hints = getOrCreate(dir);
+        hints.chain.clear();
+        for (AbsoluteCapability blob : blobs)
+            hints.chain.add(blob.getMapKey());
+    }
+
+    /**
+     *
+     * @param dir
+     * @param name
+     * @return the index of the blob, in the chain of blobs, in which the child was last seen
+     */
+    static synchronized Optional<Integer> blobIndex(AbsoluteCapability dir, String name) {
+        DirectoryHints hints = cache.get(new ByteArrayWrapper(dir.getMapKey()));
+        if (hints == null)
+            return Optional.empty();
+        return Optional.ofNullable(hints.blobIndexByName.get(name));
+    }
+
+    static synchronized void setBlobIndex(AbsoluteCapability dir, int blobIndex, Collection<String> names) {
+        if (blobIndex == 0) // the first blob is always searched first anyway
+            return;
+        DirectoryHints hints = getOrCreate(dir);
+        for (String name : names)
+            hints.blobIndexByName.put(name, blobIndex);
+    }
+}
@@ -74,13 +74,17 @@ public class Erasure {
                 if (encoded[k] == null || encoded[k].length == 0)
                     break;
                 if (k == originalBlobs - 1) {
-                    // shortcut
-                    ByteArrayOutputStream res = new ByteArrayOutputStream();
-                    for (int i = 0; i < tbSize; i += symbolSize) {
-                        for (int j = 0; j < originalBlobs; j++)
-                            res.write(encoded[j], i, symbolSize);
+                    // shortcut, interleave the original fragments straight into the result
+                    byte[] res = new byte[truncateTo];
+                    int written = 0;
+                    for (int i = 0; i < tbSize && written < truncateTo; i += symbolSize) {
+                        for (int j = 0; j < originalBlobs && written < truncateTo; j++) {
+                            int toCopy = Math.min(symbolSize, truncateTo - written);
+                            System.arraycopy(encoded[j], i, res, written, toCopy);
+                            written += toCopy;
+                        }
                     }
-                    return Arrays.copyOfRange(res.toByteArray(), 0, truncateTo);
+                    return res;
                 }
             }
 
@@ -0,0 +1,105 @@
+package peergos.shared.user.fs.erasure;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A systematic Reed-Solomon encoder over GF(256) which produces exactly the same fragments as Erasure.split.
+ *
+ *  The products of every generator coefficient with every field element are precomputed, so each input byte costs
+ *  one table lookup per parity symbol. Stripes are read from the input and written into the output fragments in
+ *  place, and independent runs of stripes are encoded in parallel.
+ */
+public class ReedSolomon {
+    private static final int FIELD_SIZE = 256;
+    private static final int STRIPES_PER_TASK = 1024;
+    private static final Map<Integer, ReedSolomon> encoders = new HashMap<>();
+
+    private final int originalBlobs, totalBlobs;
+    private final int inputSize, nec, symbolSize;
+    // products[j * FIELD_SIZE + x] = g(j+1) * x, for the generator polynomial g with g(0) = 1
+    private final byte[] products;
+
+    private ReedSolomon(int originalBlobs, int allowedFailures) {
+        GaloisField f = new GaloisField256();
+        this.originalBlobs = originalBlobs;
+        this.totalBlobs = originalBlobs + allowedFailures * 2;
+        int encodeSize = (f.size() / totalBlobs) * totalBlobs;
+        this.inputSize = encodeSize * originalBlobs / totalBlobs;
+        this.nec = encodeSize - inputSize;
+        this.symbolSize = inputSize / originalBlobs;
+        if (symbolSize * originalBlobs != inputSize)
+            throw new IllegalStateException("Bad alignment of bytes in chunking. " +
+                    inputSize + " != " + symbolSize + " * " + originalBlobs);
+
+        int[] generator = {1};
+        for (int i=0; i < nec; i++) {
+            int[] next = new int[generator.length + 1];
+            for (int j=0; j < generator.length; j++) {
+                next[j] ^= generator[j];
+                next[j + 1] ^= f.mul(generator[j], f.exp(i));
+            }
+            generator = next;
+        }
+        this.products = new byte[nec * FIELD_SIZE];
+        for (int j=0; j < nec; j++)
+            for (int x=0; x < FIELD_SIZE; x++)
+                products[j * FIELD_SIZE + x] = (byte) f.mul(generator[j + 1], x);
+    }
+
+    public static synchronized ReedSolomon get(int originalBlobs, int allowedFailures) {
+        int key = originalBlobs * FIELD_SIZE + allowedFailures;
+        ReedSolomon existing = encoders.get(key);
+        if (existing != null)
+            return existing;
+        ReedSolomon encoder = new ReedSolomon(originalBlobs, allowedFailures);
+        encoders.put(key, encoder);
+        return encoder;
+    }
+
+    /**
+     *
+     * @param input
+     * @return the original fragments followed by the parity fragments
+     */
+    public byte[][] encode(byte[] input) {
+        int stripes = (input.length + inputSize - 1) / inputSize;
+        byte[][] res = new byte[totalBlobs][stripes * symbolSize];
+        int tasks = (stripes + STRIPES_PER_TASK - 1) / STRIPES_PER_TASK;
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            byte[] parity = new byte[nec];
+            int end = Math.min(stripes, (task + 1) * STRIPES_PER_TASK);
+            for (int stripe = task * STRIPES_PER_TASK; stripe < end; stripe++)
+                encodeStripe(input, stripe, parity, res);
+        });
+        return res;
+    }
+
+    private void encodeStripe(byte[] input, int stripe, byte[] parity, byte[][] res) {
+        int start = stripe * inputSize;
+        int available = Math.min(inputSize, input.length - start);
+        Arrays.fill(parity, (byte) 0);
+        // the remainder of dividing the stripe (zero padded) by the generator, computed as a shift register
+        for (int i=0; i < inputSize; i++) {
+            int in = i < available ? input[start + i] : 0;
+            int feedback = (in ^ parity[0]) & 0xff;
+            if (feedback == 0) {
+                System.arraycopy(parity, 1, parity, 0, nec - 1);
+                parity[nec - 1] = 0;
+                continue;
+            }
+            for (int j=0; j < nec - 1; j++)
+                parity[j] = (byte) (parity[j + 1] ^ products[j * FIELD_SIZE + feedback]);
+            parity[nec - 1] = products[(nec - 1) * FIELD_SIZE + feedback];
+        }
+
+        int outOffset = stripe * symbolSize;
+        for (int b=0; b < originalBlobs; b++) {
+            int from = b * symbolSize;
+            int toCopy = Math.min(symbolSize, available - from);
+            if (toCopy > 0)
+                System.arraycopy(input, start + from, res[b], outOffset, toCopy);
+        }
+        for (int b=originalBlobs; b < totalBlobs; b++)
+            System.arraycopy(parity, (b - originalBlobs) * symbolSize, res[b], outOffset, symbolSize);
+    }
+}
@@ -0,0 +1,158 @@
+package peergos.shared.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** A thread safe LRU cache bounded by the total weight (e.g. size in bytes) of its values rather than their number.
+ *
+ *  The cache is split into independently locked segments by key hash, so concurrent readers of different keys rarely
+ *  contend. Each segment evicts its least recently used entries once it exceeds its share of the total weight.
+ */
+public class WeightedLruCache<K, V> {
+    private static final int SEGMENTS = 16;
+
+    private final List<Segment<K, V>> segments;
+    private final Function<V, Integer> weigher;
+    private final long maxWeight;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    public WeightedLruCache(long maxWeight, Function<V, Integer> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.segments = new ArrayList<>(SEGMENTS);
+        for (int i=0; i < SEGMENTS; i++)
+            segments.add(new Segment<>(maxWeight / SEGMENTS));
+    }
+
+    private Segment<K, V> segment(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments.get(h & (SEGMENTS - 1));
+    }
+
+    public Optional<V> get(K key) {
+        V val = segment(key).get(key);
+        if (val == null) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        return Optional.of(val);
+    }
+
+    public boolean containsKey(K key) {
+        return segment(key).containsKey(key);
+    }
+
+    /** Values heavier than a segment's share of the total weight are not cached.
+     *
+     * @param key
+     * @param value
+     */
+    public void put(K key, V value) {
+        int weight = weigher.apply(value);
+        evictions.addAndGet(segment(key).put(key, value, weight));
+    }
+
+    public void remove(K key) {
+        segment(key).remove(key);
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments)
+            segment.clear();
+    }
+
+    public long weight() {
+        long total = 0;
+        for (Segment<K, V> segment : segments)
+            total += segment.weight();
+        return total;
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    public double hitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "WeightedLruCache{weight=" + weight() + "/" + maxWeight + ", hits=" + hitCount() + ", misses=" +
+                missCount() + ", evictions=" + evictionCount() + "}";
+    }
+
+    private static class Segment<K, V> {
+        private final long maxWeight;
+        private final LinkedHashMap<K, Pair<V, Integer>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight = 0;
+
+        public Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        public synchronized V get(K key) {
+            Pair<V, Integer> entry = entries.get(key);
+            return entry == null ? null : entry.left;
+        }
+
+        public synchronized boolean containsKey(K key) {
+            return entries.containsKey(key);
+        }
+
+        /**
+         *
+         * @return the number of entries evicted
+         */
+        public synchronized int put(K key, V value, int valueWeight) {
+            if (valueWeight > maxWeight)
+                return 0;
+            Pair<V, Integer> existing = entries.put(key, new Pair<>(value, valueWeight));
+            if (existing != null)
+                weight -= existing.right;
+            weight += valueWeight;
+            int evicted = 0;
+            Iterator<Map.Entry<K, Pair<V, Integer>>> lru = entries.entrySet().iterator();
+            while (weight > maxWeight && lru.hasNext()) {
+                weight -= lru.next().getValue().right;
+                lru.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        public synchronized void remove(K key) {
+            Pair<V, Integer> existing = entries.remove(key);
+            if (existing != null)
+                weight -= existing.right;
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        public synchronized long weight() {
+            return weight;
+        }
+    }
+}